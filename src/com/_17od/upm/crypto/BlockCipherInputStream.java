@@ -0,0 +1,195 @@
+/*
+ * Universal Password Manager
+ * Copyright (C) 2005-2013 Adrian Smith
+ *
+ * This file is part of Universal Password Manager.
+ *   
+ * Universal Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Universal Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Universal Password Manager; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com._17od.upm.crypto;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+
+/**
+ * An InputStream that decrypts the bytes read from the underlying stream (or
+ * ByteBuffer) as they're consumed. Only one buffer's worth of ciphertext is
+ * held in memory at any time.
+ * 
+ * If the final block can't be decrypted (e.g. the padding is wrong because
+ * the key is wrong) an IOException is thrown whose cause is a CryptoException.
+ * Use isDecryptionFailure() to tell these apart from ordinary IO problems.
+ */
+public class BlockCipherInputStream extends FilterInputStream {
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final int BLOCK_SIZE = 16;
+
+    private final PaddedCipher cipher;
+    private final ByteBuffer source;
+    private final byte[] inputBuffer;
+    private final byte[] outputBuffer;
+    private int outputPos;
+    private int outputLength;
+    private boolean finished;
+
+
+    public BlockCipherInputStream(InputStream is, PaddedCipher cipher) {
+        super(is);
+        this.cipher = cipher;
+        this.source = null;
+        this.inputBuffer = new byte[BUFFER_SIZE];
+        this.outputBuffer = new byte[cipher.getOutputSize(BUFFER_SIZE)];
+    }
+
+
+    /**
+     * Decrypt the bytes between the buffer's position and its limit. The
+     * buffer itself isn't modified so a read only (or memory mapped) buffer
+     * can be used. It's handed straight to the cipher a piece at a time
+     * rather than being copied into an input buffer first.
+     */
+    public BlockCipherInputStream(ByteBuffer encrypted, PaddedCipher cipher) {
+        super(null);
+        this.cipher = cipher;
+        this.source = encrypted.duplicate();
+        this.inputBuffer = null;
+        this.outputBuffer = new byte[cipher.getOutputSize(BUFFER_SIZE)];
+    }
+
+
+    public int read() throws IOException {
+        if (outputPos >= outputLength && !fillBuffer()) {
+            return -1;
+        }
+        return outputBuffer[outputPos++] & 0xff;
+    }
+
+
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (outputPos >= outputLength && !fillBuffer()) {
+            return -1;
+        }
+        int bytesToCopy = Math.min(len, outputLength - outputPos);
+        System.arraycopy(outputBuffer, outputPos, b, off, bytesToCopy);
+        outputPos += bytesToCopy;
+        return bytesToCopy;
+    }
+
+
+    public long skip(long n) throws IOException {
+        long skipped = 0;
+        while (skipped < n) {
+            if (outputPos >= outputLength && !fillBuffer()) {
+                break;
+            }
+            int bytesToSkip = (int) Math.min(n - skipped, outputLength - outputPos);
+            outputPos += bytesToSkip;
+            skipped += bytesToSkip;
+        }
+        return skipped;
+    }
+
+
+    public int available() {
+        return outputLength - outputPos;
+    }
+
+
+    public void close() throws IOException {
+        if (in != null) {
+            in.close();
+        }
+    }
+
+
+    public boolean markSupported() {
+        return false;
+    }
+
+
+    public synchronized void mark(int readlimit) {
+    }
+
+
+    public synchronized void reset() throws IOException {
+        throw new IOException("mark/reset not supported");
+    }
+
+
+    /**
+     * Decrypt the next chunk of the underlying stream into the output buffer.
+     * Loops because a chunk smaller than the cipher's block size may not
+     * produce any output yet.
+     * @return false if the end of the stream has been reached
+     */
+    private boolean fillBuffer() throws IOException {
+        outputPos = 0;
+        outputLength = 0;
+        while (outputLength == 0) {
+            if (finished) {
+                return false;
+            }
+            try {
+                if (source != null) {
+                    decryptSource();
+                } else {
+                    int bytesRead = in.read(inputBuffer);
+                    if (bytesRead == -1) {
+                        finished = true;
+                        outputLength = cipher.doFinal(outputBuffer, 0);
+                    } else {
+                        outputLength = cipher.processBytes(inputBuffer, 0, bytesRead, outputBuffer, 0);
+                    }
+                }
+            } catch (CryptoException e) {
+                throw new IOException(e);
+            }
+        }
+        return true;
+    }
+
+
+    private void decryptSource() throws CryptoException {
+        ByteBuffer output = ByteBuffer.wrap(outputBuffer);
+        if (!source.hasRemaining()) {
+            finished = true;
+            outputLength = cipher.doFinal(source, output);
+            return;
+        }
+        // The cipher wants room in the output for any block it's holding back
+        // from the last piece as well as for this one
+        ByteBuffer input = source.duplicate();
+        input.limit(input.position() + Math.min(input.remaining(), BUFFER_SIZE - BLOCK_SIZE));
+        source.position(input.limit());
+        outputLength = cipher.processBytes(input, output);
+    }
+
+
+    /**
+     * @return true if the given exception was thrown because the stream
+     * couldn't be decrypted rather than because of an underlying IO problem
+     */
+    public static boolean isDecryptionFailure(IOException e) {
+        return e.getCause() instanceof CryptoException;
+    }
+
+}
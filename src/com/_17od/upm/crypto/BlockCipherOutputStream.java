@@ -0,0 +1,115 @@
+/*
+ * Universal Password Manager
+ * Copyright (C) 2005-2013 Adrian Smith
+ *
+ * This file is part of Universal Password Manager.
+ *   
+ * Universal Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Universal Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Universal Password Manager; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com._17od.upm.crypto;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+
+/**
+ * An OutputStream that encrypts everything written to it before passing it
+ * on to the underlying stream.
+ * 
+ * finish() writes out the final (padded) block without closing the
+ * underlying stream. This allows the caller to sync the underlying file
+ * before it's closed.
+ */
+public class BlockCipherOutputStream extends FilterOutputStream {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final PaddedCipher cipher;
+    private final byte[] outputBuffer;
+    private final byte[] singleByte = new byte[1];
+    private boolean finished;
+
+
+    public BlockCipherOutputStream(OutputStream os, PaddedCipher cipher) {
+        super(os);
+        this.cipher = cipher;
+        this.outputBuffer = new byte[cipher.getOutputSize(BUFFER_SIZE)];
+    }
+
+
+    public void write(int b) throws IOException {
+        singleByte[0] = (byte) b;
+        write(singleByte, 0, 1);
+    }
+
+
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (finished) {
+            throw new IOException("Stream has already been finished");
+        }
+        // Process in chunks so that the output buffer doesn't have to grow
+        // to the size of the largest write
+        while (len > 0) {
+            int chunkLength = Math.min(len, BUFFER_SIZE);
+            int outputLength;
+            try {
+                outputLength = cipher.processBytes(b, off, chunkLength, outputBuffer, 0);
+            } catch (CryptoException e) {
+                throw new IOException(e);
+            }
+            if (outputLength > 0) {
+                out.write(outputBuffer, 0, outputLength);
+            }
+            off += chunkLength;
+            len -= chunkLength;
+        }
+    }
+
+
+    /**
+     * Write out the final block and flush the underlying stream. Nothing can
+     * be written to this stream afterwards.
+     */
+    public void finish() throws IOException {
+        if (!finished) {
+            finished = true;
+            try {
+                int outputLength = cipher.doFinal(outputBuffer, 0);
+                out.write(outputBuffer, 0, outputLength);
+            } catch (CryptoException e) {
+                throw new IOException(e);
+            }
+        }
+        out.flush();
+    }
+
+
+    public void flush() throws IOException {
+        // Nothing is held back other than the cipher's partial block, which
+        // can only be written out by finish()
+        out.flush();
+    }
+
+
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            out.close();
+        }
+    }
+
+}
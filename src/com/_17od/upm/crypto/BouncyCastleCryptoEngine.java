@@ -0,0 +1,134 @@
+/*
+ * Universal Password Manager
+ * Copyright (C) 2005-2013 Adrian Smith
+ *
+ * This file is part of Universal Password Manager.
+ *   
+ * Universal Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Universal Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Universal Password Manager; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com._17od.upm.crypto;
+
+import org.bouncycastle.crypto.BufferedBlockCipher;
+import org.bouncycastle.crypto.DataLengthException;
+import org.bouncycastle.crypto.InvalidCipherTextException;
+import org.bouncycastle.crypto.PBEParametersGenerator;
+import org.bouncycastle.crypto.digests.MD5Digest;
+import org.bouncycastle.crypto.engines.AESEngine;
+import org.bouncycastle.crypto.engines.DESEngine;
+import org.bouncycastle.crypto.generators.PKCS5S1ParametersGenerator;
+import org.bouncycastle.crypto.modes.AEADBlockCipher;
+import org.bouncycastle.crypto.modes.CBCBlockCipher;
+import org.bouncycastle.crypto.modes.GCMBlockCipher;
+import org.bouncycastle.crypto.paddings.PKCS7Padding;
+import org.bouncycastle.crypto.paddings.PaddedBufferedBlockCipher;
+import org.bouncycastle.crypto.params.AEADParameters;
+import org.bouncycastle.crypto.params.KeyParameter;
+import org.bouncycastle.crypto.params.ParametersWithIV;
+
+
+/**
+ * Uses BouncyCastle's lightweight API. It's pure Java so it works on every
+ * JVM but doesn't benefit from the AES instructions of modern CPUs.
+ */
+public class BouncyCastleCryptoEngine implements CryptoEngine {
+
+    public String getName() {
+        return "BouncyCastle";
+    }
+
+
+    public boolean isAvailable() {
+        return true;
+    }
+
+
+    public PaddedCipher createCipher(boolean forEncryption, byte[] key, byte[] iv) {
+        BufferedBlockCipher cipher = new PaddedBufferedBlockCipher(new CBCBlockCipher(new AESEngine()), new PKCS7Padding());
+        cipher.init(forEncryption, new ParametersWithIV(new KeyParameter(key), iv));
+        return new BouncyCastleCipher(cipher);
+    }
+
+
+    public byte[] processRecord(boolean forEncryption, byte[] key, byte[] nonce, byte[] associatedData,
+            byte[] input, int offset, int length) throws CryptoException {
+        AEADBlockCipher cipher = new GCMBlockCipher(new AESEngine());
+        cipher.init(forEncryption, new AEADParameters(new KeyParameter(key), EncryptionService.TAG_LENGTH * 8, nonce, associatedData));
+
+        byte[] output = new byte[cipher.getOutputSize(length)];
+        try {
+            int outputLength = cipher.processBytes(input, offset, length, output, 0);
+            outputLength += cipher.doFinal(output, outputLength);
+            if (outputLength < output.length) {
+                byte[] results = new byte[outputLength];
+                System.arraycopy(output, 0, results, 0, outputLength);
+                return results;
+            }
+            return output;
+        } catch (InvalidCipherTextException | DataLengthException e) {
+            throw new CryptoException(e);
+        }
+    }
+
+
+    public byte[] processLegacy(boolean forEncryption, char[] password, byte[] salt, byte[] input) throws CryptoException {
+        PBEParametersGenerator keyGenerator = new PKCS5S1ParametersGenerator(new MD5Digest());
+        keyGenerator.init(PBEParametersGenerator.PKCS5PasswordToBytes(password), salt, 20);
+        BufferedBlockCipher cipher = new PaddedBufferedBlockCipher(new CBCBlockCipher(new DESEngine()), new PKCS7Padding());
+        cipher.init(forEncryption, keyGenerator.generateDerivedParameters(64, 64));
+
+        byte[] output = new byte[cipher.getOutputSize(input.length)];
+        try {
+            int outputLength = cipher.processBytes(input, 0, input.length, output, 0);
+            outputLength += cipher.doFinal(output, outputLength);
+            byte[] results = new byte[outputLength];
+            System.arraycopy(output, 0, results, 0, outputLength);
+            return results;
+        } catch (InvalidCipherTextException | DataLengthException e) {
+            throw new CryptoException(e);
+        }
+    }
+
+
+    private static final class BouncyCastleCipher implements PaddedCipher {
+
+        private final BufferedBlockCipher cipher;
+
+        BouncyCastleCipher(BufferedBlockCipher cipher) {
+            this.cipher = cipher;
+        }
+
+        public int getOutputSize(int length) {
+            return cipher.getOutputSize(length);
+        }
+
+        public int processBytes(byte[] input, int inputOffset, int length, byte[] output, int outputOffset) throws CryptoException {
+            try {
+                return cipher.processBytes(input, inputOffset, length, output, outputOffset);
+            } catch (DataLengthException e) {
+                throw new CryptoException(e);
+            }
+        }
+
+        public int doFinal(byte[] output, int outputOffset) throws CryptoException {
+            try {
+                return cipher.doFinal(output, outputOffset);
+            } catch (InvalidCipherTextException | DataLengthException e) {
+                throw new CryptoException(e);
+            }
+        }
+
+    }
+
+}
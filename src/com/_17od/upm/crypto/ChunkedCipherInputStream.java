@@ -0,0 +1,214 @@
+/*
+ * Universal Password Manager
+ * Copyright (C) 2005-2013 Adrian Smith
+ *
+ * This file is part of Universal Password Manager.
+ *   
+ * Universal Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Universal Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Universal Password Manager; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com._17od.upm.crypto;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import org.bouncycastle.crypto.InvalidCipherTextException;
+
+
+/**
+ * Decrypts a stream written by ChunkedCipherOutputStream. Chunks are read
+ * from the underlying stream ahead of the caller and decrypted on the
+ * common ForkJoinPool.
+ * 
+ * If a chunk fails its tag check (because the key is wrong or the stream
+ * has been tampered with or truncated) an IOException is thrown whose cause
+ * is a CryptoException, see BlockCipherInputStream.isDecryptionFailure().
+ */
+public class ChunkedCipherInputStream extends FilterInputStream {
+
+    private static final int ENCRYPTED_CHUNK_SIZE = ChunkedCipherOutputStream.CHUNK_SIZE + EncryptionService.TAG_LENGTH;
+
+    private final EncryptionService encryptionService;
+    private final byte[] associatedData;
+    private final ArrayDeque<ForkJoinTask<byte[]>> decrypting = new ArrayDeque<>();
+    private final int maxDecrypting;
+    private byte[] noncePrefix;
+
+    // The last chunk read from the underlying stream. It isn't decrypted
+    // until the next one has been read as until then we don't know whether
+    // it's the final chunk.
+    private byte[] readAhead;
+    private int chunkIndex;
+    private boolean sourceFinished;
+
+    private byte[] output = new byte[0];
+    private int outputPos;
+
+
+    /**
+     * @param encryptionService is used from several threads at once so it
+     * shouldn't be used for anything else, see EncryptionService.copy()
+     */
+    public ChunkedCipherInputStream(InputStream is, EncryptionService encryptionService, byte[] associatedData) {
+        super(is);
+        this.encryptionService = encryptionService;
+        this.associatedData = associatedData.clone();
+        this.maxDecrypting = ChunkedCipherOutputStream.getMaxInFlight();
+    }
+
+
+    public int read() throws IOException {
+        if (outputPos >= output.length && !fillOutput()) {
+            return -1;
+        }
+        return output[outputPos++] & 0xff;
+    }
+
+
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (outputPos >= output.length && !fillOutput()) {
+            return -1;
+        }
+        int bytesToCopy = Math.min(len, output.length - outputPos);
+        System.arraycopy(output, outputPos, b, off, bytesToCopy);
+        outputPos += bytesToCopy;
+        return bytesToCopy;
+    }
+
+
+    public long skip(long n) throws IOException {
+        long skipped = 0;
+        while (skipped < n) {
+            if (outputPos >= output.length && !fillOutput()) {
+                break;
+            }
+            int bytesToSkip = (int) Math.min(n - skipped, output.length - outputPos);
+            outputPos += bytesToSkip;
+            skipped += bytesToSkip;
+        }
+        return skipped;
+    }
+
+
+    public int available() {
+        return output.length - outputPos;
+    }
+
+
+    public void close() throws IOException {
+        for (ForkJoinTask<byte[]> task : decrypting) {
+            task.cancel(false);
+        }
+        decrypting.clear();
+        Arrays.fill(output, (byte) 0);
+        in.close();
+    }
+
+
+    public boolean markSupported() {
+        return false;
+    }
+
+
+    public synchronized void mark(int readlimit) {
+    }
+
+
+    public synchronized void reset() throws IOException {
+        throw new IOException("mark/reset not supported");
+    }
+
+
+    /**
+     * Replace the output buffer with the next decrypted chunk, first making
+     * sure the pool has as many chunks to work on as it's allowed.
+     * @return false if the end of the stream has been reached
+     */
+    private boolean fillOutput() throws IOException {
+        do {
+            while (!sourceFinished && decrypting.size() < maxDecrypting) {
+                readChunk();
+            }
+            if (decrypting.isEmpty()) {
+                return false;
+            }
+            Arrays.fill(output, (byte) 0);
+            output = ChunkedCipherOutputStream.join(decrypting.remove());
+            outputPos = 0;
+        } while (output.length == 0);
+        return true;
+    }
+
+
+    /**
+     * Read the next chunk and hand the one before it to the pool
+     */
+    private void readChunk() throws IOException {
+        if (noncePrefix == null) {
+            noncePrefix = new byte[ChunkedCipherOutputStream.NONCE_PREFIX_LENGTH];
+            if (readFully(noncePrefix) < noncePrefix.length) {
+                throw truncated();
+            }
+        }
+
+        byte[] chunk = new byte[ENCRYPTED_CHUNK_SIZE];
+        int length = readFully(chunk);
+        if (length == 0) {
+            if (readAhead == null) {
+                // Even an empty stream has a final chunk
+                throw truncated();
+            }
+            sourceFinished = true;
+        }
+        if (readAhead != null) {
+            submitChunk(readAhead, sourceFinished);
+        }
+        readAhead = length == 0 ? null : length < chunk.length ? Arrays.copyOf(chunk, length) : chunk;
+    }
+
+
+    private void submitChunk(final byte[] cipherText, boolean last) {
+        final byte[] nonce = ChunkedCipherOutputStream.chunkNonce(noncePrefix, chunkIndex++, last);
+        decrypting.add(ForkJoinPool.commonPool().submit(new Callable<byte[]>() {
+            public byte[] call() throws CryptoException {
+                return encryptionService.decryptRecord(cipherText, 0, cipherText.length, nonce, associatedData);
+            }
+        }));
+    }
+
+
+    private int readFully(byte[] b) throws IOException {
+        int offset = 0;
+        int bytesRead;
+        while (offset < b.length && (bytesRead = in.read(b, offset, b.length - offset)) != -1) {
+            offset += bytesRead;
+        }
+        return offset;
+    }
+
+
+    private static IOException truncated() {
+        return new IOException(new CryptoException(new InvalidCipherTextException("The encrypted stream is truncated")));
+    }
+
+}
@@ -0,0 +1,222 @@
+/*
+ * Universal Password Manager
+ * Copyright (C) 2005-2013 Adrian Smith
+ *
+ * This file is part of Universal Password Manager.
+ *   
+ * Universal Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Universal Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Universal Password Manager; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com._17od.upm.crypto;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+
+/**
+ * An OutputStream that splits everything written to it into CHUNK_SIZE
+ * chunks and encrypts and authenticates each one separately with AES-GCM.
+ * The chunks are encrypted on the common ForkJoinPool while the caller
+ * carries on writing and are written to the underlying stream in order.
+ * 
+ * The stream starts with a random NONCE_PREFIX_LENGTH byte prefix. The
+ * nonce for each chunk is the prefix followed by the chunk's index as a 4
+ * byte int and a byte that's 1 for the final chunk and 0 otherwise, so
+ * chunks can't be reordered, dropped or truncated without the tag check
+ * failing. The same associated data is authenticated with every chunk.
+ * 
+ * finish() writes out the final chunk without closing the underlying
+ * stream.
+ */
+public class ChunkedCipherOutputStream extends FilterOutputStream {
+
+    public static final int CHUNK_SIZE = 64 * 1024;
+    public static final int NONCE_PREFIX_LENGTH = 7;
+
+    private final EncryptionService encryptionService;
+    private final byte[] associatedData;
+    private final byte[] noncePrefix;
+    private final ArrayDeque<ForkJoinTask<byte[]>> encrypting = new ArrayDeque<>();
+    private final int maxEncrypting;
+    private final byte[] singleByte = new byte[1];
+    private byte[] chunk = new byte[CHUNK_SIZE];
+    private int chunkLength;
+    private int chunkIndex;
+    private boolean started;
+    private boolean finished;
+
+
+    /**
+     * @param encryptionService is used from several threads at once so it
+     * shouldn't be used for anything else, see EncryptionService.copy()
+     */
+    public ChunkedCipherOutputStream(OutputStream os, EncryptionService encryptionService, byte[] associatedData) {
+        super(os);
+        this.encryptionService = encryptionService;
+        this.associatedData = associatedData.clone();
+        this.noncePrefix = Arrays.copyOf(encryptionService.generateNonce(), NONCE_PREFIX_LENGTH);
+        this.maxEncrypting = getMaxInFlight();
+    }
+
+
+    public void write(int b) throws IOException {
+        singleByte[0] = (byte) b;
+        write(singleByte, 0, 1);
+    }
+
+
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (finished) {
+            throw new IOException("Stream has already been finished");
+        }
+        while (len > 0) {
+            // A full chunk is only sent off once there's more to write as
+            // until then it might be the final one
+            if (chunkLength == CHUNK_SIZE) {
+                submitChunk(false);
+            }
+            int bytesToCopy = Math.min(len, CHUNK_SIZE - chunkLength);
+            System.arraycopy(b, off, chunk, chunkLength, bytesToCopy);
+            chunkLength += bytesToCopy;
+            off += bytesToCopy;
+            len -= bytesToCopy;
+        }
+    }
+
+
+    /**
+     * Encrypt and write out the final chunk and flush the underlying
+     * stream. Nothing can be written to this stream afterwards.
+     */
+    public void finish() throws IOException {
+        if (!finished) {
+            finished = true;
+            submitChunk(true);
+            while (!encrypting.isEmpty()) {
+                writeChunk();
+            }
+        }
+        out.flush();
+    }
+
+
+    public void flush() throws IOException {
+        // The chunk being filled can't be written out until it's full
+        out.flush();
+    }
+
+
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            for (ForkJoinTask<byte[]> task : encrypting) {
+                task.cancel(false);
+            }
+            out.close();
+        }
+    }
+
+
+    private void submitChunk(boolean last) throws IOException {
+        if (!started) {
+            started = true;
+            out.write(noncePrefix);
+        }
+        final byte[] plainText = chunk;
+        final int length = chunkLength;
+        final byte[] nonce = chunkNonce(noncePrefix, chunkIndex++, last);
+        encrypting.add(ForkJoinPool.commonPool().submit(new Callable<byte[]>() {
+            public byte[] call() throws CryptoException {
+                try {
+                    return encryptionService.encryptRecord(plainText, 0, length, nonce, associatedData);
+                } finally {
+                    Arrays.fill(plainText, 0, length, (byte) 0);
+                }
+            }
+        }));
+        chunk = new byte[CHUNK_SIZE];
+        chunkLength = 0;
+
+        // Don't let the caller get too far ahead of the encryption
+        while (encrypting.size() > maxEncrypting) {
+            writeChunk();
+        }
+    }
+
+
+    private void writeChunk() throws IOException {
+        out.write(join(encrypting.remove()));
+    }
+
+
+    /**
+     * @return the nonce for the chunk at the given index
+     */
+    static byte[] chunkNonce(byte[] noncePrefix, int index, boolean last) {
+        byte[] nonce = Arrays.copyOf(noncePrefix, EncryptionService.NONCE_LENGTH);
+        nonce[NONCE_PREFIX_LENGTH] = (byte) (index >>> 24);
+        nonce[NONCE_PREFIX_LENGTH + 1] = (byte) (index >>> 16);
+        nonce[NONCE_PREFIX_LENGTH + 2] = (byte) (index >>> 8);
+        nonce[NONCE_PREFIX_LENGTH + 3] = (byte) index;
+        nonce[NONCE_PREFIX_LENGTH + 4] = (byte) (last ? 1 : 0);
+        return nonce;
+    }
+
+
+    /**
+     * @return how many chunks to have queued up on the pool at once. Enough
+     * to keep every thread busy without holding the whole database in
+     * memory.
+     */
+    static int getMaxInFlight() {
+        return Math.max(2, ForkJoinPool.getCommonPoolParallelism() * 2);
+    }
+
+
+    /**
+     * Wait for a chunk to be encrypted or decrypted. A tag that doesn't
+     * match is thrown as an IOException whose cause is a CryptoException, as
+     * BlockCipherInputStream does.
+     */
+    static byte[] join(ForkJoinTask<byte[]> task) throws IOException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a chunk to be processed", e);
+        } catch (ExecutionException e) {
+            // The pool may have wrapped the exception thrown by the cipher
+            // (more than once) so look for it in the chain of causes
+            for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+                if (cause instanceof CryptoException) {
+                    throw new IOException(cause);
+                }
+            }
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+}
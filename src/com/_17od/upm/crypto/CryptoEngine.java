@@ -0,0 +1,71 @@
+/*
+ * Universal Password Manager
+ * Copyright (C) 2005-2013 Adrian Smith
+ *
+ * This file is part of Universal Password Manager.
+ *   
+ * Universal Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Universal Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Universal Password Manager; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com._17od.upm.crypto;
+
+
+/**
+ * The cipher constructions UPM's database formats are built from. Every
+ * engine must produce exactly the same output, they only differ in where
+ * the implementation comes from and so in how fast it is. CryptoEngines
+ * decides which one is used.
+ * 
+ * Engines other than the built in ones can be added by listing them in
+ * META-INF/services/com._17od.upm.crypto.CryptoEngine on the classpath.
+ */
+public interface CryptoEngine {
+
+    /**
+     * @return the name the engine is chosen by in the preferences, also
+     * shown to the user and logged
+     */
+    String getName();
+
+    /**
+     * @return false if the engine can't be used on this JVM
+     */
+    boolean isAvailable();
+
+    /**
+     * @return a new AES/CBC/PKCS7 cipher. Used for the database formats that
+     * are encrypted as a single stream.
+     * @param key a 16, 24 or 32 byte AES key
+     * @param iv the 16 byte initialisation vector
+     */
+    PaddedCipher createCipher(boolean forEncryption, byte[] key, byte[] iv);
+
+    /**
+     * Encrypt or decrypt a single record with AES-GCM and a 16 byte tag.
+     * @return the ciphertext followed by the tag or, when decrypting, the
+     * plaintext
+     * @throws CryptoException if the tag doesn't match
+     */
+    byte[] processRecord(boolean forEncryption, byte[] key, byte[] nonce, byte[] associatedData,
+            byte[] input, int offset, int length) throws CryptoException;
+
+    /**
+     * Encrypt or decrypt using PBEWithMD5AndDES with 20 iterations. Only
+     * used to read databases from before version 2.
+     * @throws CryptoException if the padding is wrong (usually because the
+     * password is wrong)
+     */
+    byte[] processLegacy(boolean forEncryption, char[] password, byte[] salt, byte[] input) throws CryptoException;
+
+}
@@ -0,0 +1,216 @@
+/*
+ * Universal Password Manager
+ * Copyright (C) 2005-2013 Adrian Smith
+ *
+ * This file is part of Universal Password Manager.
+ *   
+ * Universal Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Universal Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Universal Password Manager; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com._17od.upm.crypto;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+
+/**
+ * Keeps track of the CryptoEngines and decides which one is used. The
+ * preference names an engine to use. If it's AUTO, or the engine it names
+ * can't be used, the JCA engine is used if it gets the same answers as
+ * BouncyCastle (the reference the database formats were written with),
+ * otherwise the first built in engine that does. The engines are checked
+ * once, the first time one is needed.
+ */
+public final class CryptoEngines {
+
+    public static final String AUTO = "auto";
+
+    private static final Log log = LogFactory.getLog(CryptoEngines.class);
+
+    private static final List<CryptoEngine> engines = loadEngines();
+
+    private static String preference = AUTO;
+    private static CryptoEngine preferred;
+
+
+    private CryptoEngines() {
+    }
+
+
+    /**
+     * @return every engine that's available on this JVM, the built in ones
+     * first
+     */
+    public static List<CryptoEngine> getEngines() {
+        return engines;
+    }
+
+
+    /**
+     * @return the engine with the given name or null if there isn't an
+     * available engine by that name
+     */
+    public static CryptoEngine getEngine(String name) {
+        for (CryptoEngine engine : engines) {
+            if (engine.getName().equalsIgnoreCase(name)) {
+                return engine;
+            }
+        }
+        return null;
+    }
+
+
+    /**
+     * @param name the name of the engine to use or AUTO (or null) to use
+     * JCA if it's correct. Takes effect the next time getPreferred() is called.
+     */
+    public static synchronized void setPreference(String name) {
+        preference = name == null || name.trim().isEmpty() ? AUTO : name.trim();
+        preferred = null;
+    }
+
+
+    /**
+     * @return the engine to use for new EncryptionServices
+     */
+    public static synchronized CryptoEngine getPreferred() {
+        if (preferred == null) {
+            preferred = select();
+        }
+        return preferred;
+    }
+
+
+    private static CryptoEngine select() {
+        BouncyCastleCryptoEngine reference = new BouncyCastleCryptoEngine();
+        if (!preference.equalsIgnoreCase(AUTO)) {
+            CryptoEngine engine = getEngine(preference);
+            if (engine != null && isCorrect(engine, reference)) {
+                log.info("Using the " + engine.getName() + " crypto engine");
+                return engine;
+            }
+            log.warn("The " + preference + " crypto engine can't be used, picking one instead");
+        }
+
+        // The JCA engine uses the JVM's AES intrinsics where the CPU has
+        // them so it's used if it's correct. Otherwise the built in engines
+        // come before any that are plugged in.
+        List<CryptoEngine> candidates = new ArrayList<>(engines);
+        CryptoEngine jca = getEngine(JCACryptoEngine.NAME);
+        if (jca != null) {
+            candidates.remove(jca);
+            candidates.add(0, jca);
+        }
+        for (CryptoEngine engine : candidates) {
+            if (isCorrect(engine, reference)) {
+                log.info("Using the " + engine.getName() + " crypto engine");
+                return engine;
+            }
+            log.warn("The " + engine.getName() + " crypto engine gives the wrong results, it won't be used");
+        }
+        return reference;
+    }
+
+
+    /**
+     * Pick the engine on a background thread so that it's ready by the time
+     * a database is opened. getPreferred() waits for it to finish.
+     */
+    public static void selectInBackground() {
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                getPreferred();
+            }
+        });
+        thread.setName("CryptoEngineSelection");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+
+    /**
+     * @return true if the engine encrypts some sample data exactly as the
+     * reference engine does and can decrypt it again
+     */
+    static boolean isCorrect(CryptoEngine engine, CryptoEngine reference) {
+        byte[] key = sample(32, 1);
+        byte[] iv = sample(16, 2);
+        byte[] nonce = sample(EncryptionService.NONCE_LENGTH, 3);
+        byte[] associatedData = sample(20, 4);
+        byte[] plainText = sample(1000, 5);
+        char[] password = "password".toCharArray();
+        byte[] salt = sample(EncryptionService.SALT_LENGTH, 6);
+        try {
+            byte[] cbc = process(engine.createCipher(true, key, iv), plainText);
+            byte[] gcm = engine.processRecord(true, key, nonce, associatedData, plainText, 0, plainText.length);
+            byte[] legacy = engine.processLegacy(true, password, salt, plainText);
+            return Arrays.equals(cbc, process(reference.createCipher(true, key, iv), plainText))
+                    && Arrays.equals(plainText, process(engine.createCipher(false, key, iv), cbc))
+                    && Arrays.equals(gcm, reference.processRecord(true, key, nonce, associatedData, plainText, 0, plainText.length))
+                    && Arrays.equals(plainText, engine.processRecord(false, key, nonce, associatedData, gcm, 0, gcm.length))
+                    && Arrays.equals(legacy, reference.processLegacy(true, password, salt, plainText))
+                    && Arrays.equals(plainText, engine.processLegacy(false, password, salt, legacy));
+        } catch (CryptoException | RuntimeException e) {
+            log.debug("The " + engine.getName() + " crypto engine failed its self test", e);
+            return false;
+        }
+    }
+
+
+    private static byte[] process(PaddedCipher cipher, byte[] input) throws CryptoException {
+        byte[] output = new byte[cipher.getOutputSize(input.length)];
+        int outputLength = cipher.processBytes(input, 0, input.length, output, 0);
+        outputLength += cipher.doFinal(output, outputLength);
+        return Arrays.copyOf(output, outputLength);
+    }
+
+
+    private static byte[] sample(int length, int seed) {
+        byte[] b = new byte[length];
+        for (int i = 0; i < length; i++) {
+            b[i] = (byte) (i * 31 + seed);
+        }
+        return b;
+    }
+
+
+    private static List<CryptoEngine> loadEngines() {
+        List<CryptoEngine> all = new ArrayList<>();
+        all.add(new BouncyCastleCryptoEngine());
+        all.add(new JCACryptoEngine());
+        try {
+            for (CryptoEngine engine : ServiceLoader.load(CryptoEngine.class)) {
+                all.add(engine);
+            }
+        } catch (ServiceConfigurationError e) {
+            log.warn("Couldn't load the crypto engines listed in META-INF/services", e);
+        }
+
+        List<CryptoEngine> available = new ArrayList<>();
+        for (CryptoEngine engine : all) {
+            if (engine.isAvailable()) {
+                available.add(engine);
+            }
+        }
+        return Collections.unmodifiableList(available);
+    }
+
+}
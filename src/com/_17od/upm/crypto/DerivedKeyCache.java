@@ -0,0 +1,140 @@
+/*
+ * Universal Password Manager
+ * Copyright (C) 2005-2013 Adrian Smith
+ *
+ * This file is part of Universal Password Manager.
+ *   
+ * Universal Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Universal Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Universal Password Manager; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com._17od.upm.crypto;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.bouncycastle.crypto.macs.HMac;
+import org.bouncycastle.crypto.params.KeyParameter;
+
+
+/**
+ * Remembers the keys derived from recent passwords and salts so that
+ * reloading or syncing a database doesn't pay for the key derivation again.
+ * 
+ * Passwords aren't kept. Entries are looked up by an HMAC of the password,
+ * salt and derivation method whose key is random and lives only as long as
+ * this JVM. The least recently used entry is dropped once there are
+ * MAX_ENTRIES. Dropped entries, and every entry when clear() is called (when
+ * the database is locked), have their key bytes overwritten.
+ */
+public final class DerivedKeyCache {
+
+    static final int MAX_ENTRIES = 8;
+
+    private static final byte[] sessionKey = new byte[32];
+    static {
+        new SecureRandom().nextBytes(sessionKey);
+    }
+
+    private static final LinkedHashMap<ByteBuffer, byte[]> keys = new LinkedHashMap<ByteBuffer, byte[]>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        protected boolean removeEldestEntry(Map.Entry<ByteBuffer, byte[]> eldest) {
+            if (size() > MAX_ENTRIES) {
+                Arrays.fill(eldest.getValue(), (byte) 0);
+                return true;
+            }
+            return false;
+        }
+    };
+
+
+    private DerivedKeyCache() {
+    }
+
+
+    /**
+     * @param method identifies the derivation function and its parameters
+     * @return a copy of the key derived from password and salt with method
+     * or null if it isn't cached
+     */
+    public static synchronized byte[] get(String method, byte[] salt, char[] password) {
+        byte[] key = keys.get(fingerprint(method, salt, password));
+        return key == null ? null : key.clone();
+    }
+
+
+    /**
+     * Cache a copy of key. The caller is free to wipe its own copy.
+     */
+    public static synchronized void put(String method, byte[] salt, char[] password, byte[] key) {
+        byte[] previous = keys.put(fingerprint(method, salt, password), key.clone());
+        if (previous != null) {
+            Arrays.fill(previous, (byte) 0);
+        }
+    }
+
+
+    /**
+     * Wipe and forget every cached key
+     */
+    public static synchronized void clear() {
+        for (Iterator<byte[]> it = keys.values().iterator(); it.hasNext();) {
+            Arrays.fill(it.next(), (byte) 0);
+            it.remove();
+        }
+    }
+
+
+    static synchronized int size() {
+        return keys.size();
+    }
+
+
+    private static ByteBuffer fingerprint(String method, byte[] salt, char[] password) {
+        HMac mac = new HMac(new SHA256Digest());
+        mac.init(new KeyParameter(sessionKey));
+        byte[] methodBytes = method.getBytes(StandardCharsets.UTF_8);
+        update(mac, methodBytes);
+        update(mac, salt);
+        byte[] passwordBytes = new byte[password.length * 2];
+        for (int i = 0; i < password.length; i++) {
+            passwordBytes[i * 2] = (byte) (password[i] >>> 8);
+            passwordBytes[i * 2 + 1] = (byte) password[i];
+        }
+        update(mac, passwordBytes);
+        Arrays.fill(passwordBytes, (byte) 0);
+
+        byte[] result = new byte[mac.getMacSize()];
+        mac.doFinal(result, 0);
+        return ByteBuffer.wrap(result);
+    }
+
+
+    // Each field is length prefixed so that different fields can't run
+    // together into the same input
+    private static void update(HMac mac, byte[] field) {
+        mac.update((byte) (field.length >>> 24));
+        mac.update((byte) (field.length >>> 16));
+        mac.update((byte) (field.length >>> 8));
+        mac.update((byte) field.length);
+        mac.update(field, 0, field.length);
+    }
+
+}
@@ -20,31 +20,46 @@
  */
 package com._17od.upm.crypto;
 
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.security.NoSuchAlgorithmException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
 import java.security.SecureRandom;
+import java.util.Arrays;
 
-import org.bouncycastle.crypto.BufferedBlockCipher;
 import org.bouncycastle.crypto.CipherParameters;
-import org.bouncycastle.crypto.InvalidCipherTextException;
-import org.bouncycastle.crypto.PBEParametersGenerator;
 import org.bouncycastle.crypto.digests.SHA256Digest;
-import org.bouncycastle.crypto.engines.AESEngine;
-import org.bouncycastle.crypto.generators.PKCS12ParametersGenerator;
-import org.bouncycastle.crypto.modes.CBCBlockCipher;
-import org.bouncycastle.crypto.paddings.PKCS7Padding;
-import org.bouncycastle.crypto.paddings.PaddedBufferedBlockCipher;
+import org.bouncycastle.crypto.macs.HMac;
+import org.bouncycastle.crypto.params.KeyParameter;
+import org.bouncycastle.crypto.params.ParametersWithIV;
 
 
 public class EncryptionService {
 
     private static final String randomAlgorithm = "SHA1PRNG";
     public static final int SALT_LENGTH = 8;
+    public static final int NONCE_LENGTH = 12;
+    public static final int TAG_LENGTH = 16;
+    public static final int MAC_LENGTH = 16;
 
+    private static final byte[] MAC_KEY_LABEL = "UPM header MAC".getBytes(StandardCharsets.US_ASCII);
+
+    private final CryptoEngine engine;
     private byte[] salt;
-    private BufferedBlockCipher encryptCipher;
-    private BufferedBlockCipher decryptCipher;
+    private KeyDerivation keyDerivation = KeyDerivation.LEGACY;
+    private CipherParameters keyParams;
+    private SecureRandom nonceGenerator;
+    private PaddedCipher encryptCipher;
+    private PaddedCipher decryptCipher;
 
     public EncryptionService(char[] password) throws CryptoException {
+        this(password, CryptoEngines.getPreferred());
+    }
+
+    public EncryptionService(char[] password, CryptoEngine engine) throws CryptoException {
+        this.engine = engine;
         try {
             this.salt = generateSalt();
         } catch (NoSuchAlgorithmException e) {
@@ -54,19 +69,82 @@ public class EncryptionService {
     }
 
     public EncryptionService(char[] password, byte[] salt) {
+        this(password, salt, CryptoEngines.getPreferred());
+    }
+
+    public EncryptionService(char[] password, byte[] salt, CryptoEngine engine) {
+        this(password, salt, KeyDerivation.LEGACY, engine);
+    }
+
+    public EncryptionService(char[] password, byte[] salt, KeyDerivation keyDerivation, CryptoEngine engine) {
+        this.engine = engine;
         this.salt = salt;
-        initCipher(password);
+        initCipher(password, keyDerivation);
     }
 
+    private EncryptionService(EncryptionService other) {
+        this.engine = other.engine;
+        this.salt = other.salt;
+        this.keyDerivation = other.keyDerivation;
+        this.keyParams = other.keyParams;
+        encryptCipher = createCipher(true);
+        decryptCipher = createCipher(false);
+    }
+
+    /**
+     * @return a copy of this service that carries on using the current key
+     * even if initCipher() is called on this one later
+     */
+    public EncryptionService copy() {
+        return new EncryptionService(this);
+    }
+
+    /**
+     * @return true if other encrypts with the same key as this service
+     */
+    public boolean hasSameKey(EncryptionService other) {
+        return keyParams == other.keyParams;
+    }
+
+    /**
+     * Derive a new key from password, keeping the salt and the way the key
+     * is derived
+     */
     public void initCipher(char[] password) {
-        PBEParametersGenerator keyGenerator = new PKCS12ParametersGenerator(new SHA256Digest());
-        keyGenerator.init(PKCS12ParametersGenerator.PKCS12PasswordToBytes(password), salt, 20);
-        CipherParameters keyParams = keyGenerator.generateDerivedParameters(256, 128);
-        
-        encryptCipher = new PaddedBufferedBlockCipher(new CBCBlockCipher(new AESEngine()), new PKCS7Padding());
-        encryptCipher.init(true, keyParams);
-        decryptCipher = new PaddedBufferedBlockCipher(new CBCBlockCipher(new AESEngine()), new PKCS7Padding());
-        decryptCipher.init(false, keyParams);
+        initCipher(password, keyDerivation);
+    }
+
+    /**
+     * Derive a new key from password using the given algorithm and cost,
+     * for example one picked by KeyDerivation.calibrate()
+     */
+    public void initCipher(char[] password, KeyDerivation keyDerivation) {
+        String method = keyDerivation.toString();
+        byte[] derived = DerivedKeyCache.get(method, salt, password);
+        if (derived == null) {
+            derived = keyDerivation.derive(password, salt);
+            DerivedKeyCache.put(method, salt, password, derived);
+        }
+        this.keyDerivation = keyDerivation;
+        keyParams = new ParametersWithIV(new KeyParameter(derived, 0, KeyDerivation.KEY_LENGTH),
+                derived, KeyDerivation.KEY_LENGTH, KeyDerivation.IV_LENGTH);
+        Arrays.fill(derived, (byte) 0);
+
+        encryptCipher = createCipher(true);
+        decryptCipher = createCipher(false);
+    }
+
+    private PaddedCipher createCipher(boolean forEncryption) {
+        ParametersWithIV params = (ParametersWithIV) keyParams;
+        return engine.createCipher(forEncryption, ((KeyParameter) params.getParameters()).getKey(), params.getIV());
+    }
+
+    public KeyDerivation getKeyDerivation() {
+        return keyDerivation;
+    }
+
+    public CryptoEngine getEngine() {
+        return engine;
     }
 
     private byte[] generateSalt() throws NoSuchAlgorithmException {
@@ -77,31 +155,173 @@ public class EncryptionService {
     }
 
     public byte[] encrypt(byte[] plainText) throws CryptoException {
+        // The padding makes the output size exact so there's nothing to trim
         byte[] encryptedBytes = new byte[encryptCipher.getOutputSize(plainText.length)];
-        int outputLength = encryptCipher.processBytes(plainText, 0, plainText.length, encryptedBytes, 0);
-        try {
-            outputLength += encryptCipher.doFinal(encryptedBytes, outputLength);
-        } catch (InvalidCipherTextException e) {
-            throw new CryptoException(e);
-        }
-
-        byte[] results = new byte[outputLength];
-        System.arraycopy(encryptedBytes, 0, results, 0, outputLength);
-        return results;
+        int outputLength = encryptCipher.doFinal(ByteBuffer.wrap(plainText), ByteBuffer.wrap(encryptedBytes));
+        return outputLength == encryptedBytes.length ? encryptedBytes : Arrays.copyOf(encryptedBytes, outputLength);
     }
     
     public byte[] decrypt(byte[] encryptedBytes) throws CryptoException {
         byte[] decryptedBytes = new byte[decryptCipher.getOutputSize(encryptedBytes.length)];
-        int outputLength = decryptCipher.processBytes(encryptedBytes, 0, encryptedBytes.length, decryptedBytes, 0);
-        try {
-            outputLength += decryptCipher.doFinal(decryptedBytes, outputLength);
-        } catch (InvalidCipherTextException e) {
-            throw new CryptoException(e);
+        int outputLength = decryptCipher.doFinal(ByteBuffer.wrap(encryptedBytes), ByteBuffer.wrap(decryptedBytes));
+        byte[] results = Arrays.copyOf(decryptedBytes, outputLength);
+        Arrays.fill(decryptedBytes, (byte) 0);
+        return results;
+    }
+
+    /**
+     * Encrypt the bytes between plainText's position and its limit into
+     * cipherText, which needs getEncryptedSize(plainText.remaining()) bytes
+     * remaining. Both buffers can be direct. To encrypt in place pass the
+     * buffer and a duplicate of it whose limit leaves room for the
+     * padding.
+     * @return the number of bytes written to cipherText
+     */
+    public int encrypt(ByteBuffer plainText, ByteBuffer cipherText) throws CryptoException {
+        return encryptCipher.doFinal(plainText, cipherText);
+    }
+
+    /**
+     * Decrypt the bytes between cipherText's position and its limit into
+     * plainText, which needs getDecryptedSize(cipherText.remaining()) bytes
+     * remaining. As with encrypt(ByteBuffer, ByteBuffer) a buffer can be
+     * decrypted in place by passing it and buffer.duplicate().
+     * @return the number of bytes written to plainText, which is less than
+     * cipherText's length by the size of the padding
+     * @throws CryptoException if the padding is wrong, usually because the
+     * password is wrong
+     */
+    public int decrypt(ByteBuffer cipherText, ByteBuffer plainText) throws CryptoException {
+        return decryptCipher.doFinal(cipherText, plainText);
+    }
+
+    /**
+     * @return the exact size of length bytes once they're encrypted
+     */
+    public int getEncryptedSize(int length) {
+        return encryptCipher.getOutputSize(length);
+    }
+
+    /**
+     * @return the most that length encrypted bytes can decrypt to
+     */
+    public int getDecryptedSize(int length) {
+        return decryptCipher.getOutputSize(length);
+    }
+
+    /**
+     * Wrap the given stream of encrypted bytes in a stream that decrypts them
+     * as they're read. Each call gets its own cipher so the returned stream
+     * can be used independently of this object's other methods.
+     */
+    public InputStream decrypt(InputStream encryptedStream) {
+        return new BlockCipherInputStream(encryptedStream, createCipher(false));
+    }
+
+    /**
+     * Decrypt the bytes between the buffer's position and its limit as
+     * they're read from the returned stream. Used to decrypt a memory mapped
+     * file without copying it onto the heap first.
+     */
+    public InputStream decrypt(ByteBuffer encrypted) {
+        return new BlockCipherInputStream(encrypted, createCipher(false));
+    }
+
+    /**
+     * Wrap the given stream in one that encrypts everything written to it.
+     * BlockCipherOutputStream.finish() must be called to write out the
+     * final block.
+     */
+    public BlockCipherOutputStream encrypt(OutputStream os) {
+        return new BlockCipherOutputStream(os, createCipher(true));
+    }
+
+    /**
+     * Wrap the given stream in one that encrypts everything written to it
+     * in chunks that are each authenticated along with associatedData. The
+     * chunks are encrypted in parallel. ChunkedCipherOutputStream.finish()
+     * must be called to write out the final chunk.
+     */
+    public ChunkedCipherOutputStream encryptChunked(OutputStream os, byte[] associatedData) {
+        return new ChunkedCipherOutputStream(os, copy(), associatedData);
+    }
+
+    /**
+     * Decrypt a stream written by encryptChunked(). associatedData must be
+     * the same bytes it was encrypted with.
+     */
+    public InputStream decryptChunked(InputStream encryptedStream, byte[] associatedData) {
+        return new ChunkedCipherInputStream(encryptedStream, copy(), associatedData);
+    }
+
+    /**
+     * @return a random nonce for use with encryptRecord(). A nonce must
+     * never be used to encrypt two different records.
+     */
+    public byte[] generateNonce() {
+        if (nonceGenerator == null) {
+            nonceGenerator = new SecureRandom();
         }
+        byte[] nonce = new byte[NONCE_LENGTH];
+        nonceGenerator.nextBytes(nonce);
+        return nonce;
+    }
 
-        byte[] results = new byte[outputLength];
-        System.arraycopy(decryptedBytes, 0, results, 0, outputLength);
-        return results;
+    /**
+     * Encrypt and authenticate a single record using AES-GCM. The
+     * associatedData isn't stored in the result but the same bytes must be
+     * given to decryptRecord(), so it can be used to bind the record to
+     * something stored elsewhere (like its name).
+     * @return the ciphertext followed by a TAG_LENGTH byte tag
+     */
+    public byte[] encryptRecord(byte[] plainText, int offset, int length, byte[] nonce, byte[] associatedData) throws CryptoException {
+        return processRecord(true, plainText, offset, length, nonce, associatedData);
+    }
+
+    /**
+     * @throws CryptoException if the record, nonce or associatedData have
+     * been tampered with or the wrong key is being used
+     */
+    public byte[] decryptRecord(byte[] cipherText, int offset, int length, byte[] nonce, byte[] associatedData) throws CryptoException {
+        return processRecord(false, cipherText, offset, length, nonce, associatedData);
+    }
+
+    private byte[] processRecord(boolean forEncryption, byte[] input, int offset, int length, byte[] nonce, byte[] associatedData) throws CryptoException {
+        KeyParameter key = (KeyParameter) ((ParametersWithIV) keyParams).getParameters();
+        return engine.processRecord(forEncryption, key.getKey(), nonce, associatedData, input, offset, length);
+    }
+
+    /**
+     * @return a MAC_LENGTH byte HMAC-SHA256 of the given bytes. Its key is
+     * derived from the encryption key, so only someone with the password
+     * can make one that verifyMac() accepts.
+     */
+    public byte[] mac(byte[] input, int offset, int length) {
+        byte[] encryptionKey = ((KeyParameter) ((ParametersWithIV) keyParams).getParameters()).getKey();
+        HMac mac = new HMac(new SHA256Digest());
+        mac.init(new KeyParameter(encryptionKey));
+        mac.update(MAC_KEY_LABEL, 0, MAC_KEY_LABEL.length);
+        byte[] macKey = new byte[mac.getMacSize()];
+        mac.doFinal(macKey, 0);
+
+        mac.init(new KeyParameter(macKey));
+        Arrays.fill(macKey, (byte) 0);
+        mac.update(input, offset, length);
+        byte[] result = new byte[mac.getMacSize()];
+        mac.doFinal(result, 0);
+        return Arrays.copyOf(result, MAC_LENGTH);
+    }
+
+    /**
+     * @return true if expected (MAC_LENGTH bytes from expectedOffset) is the
+     * mac() of the given bytes
+     */
+    public boolean verifyMac(byte[] input, int offset, int length, byte[] expected, int expectedOffset) {
+        if (expected.length - expectedOffset < MAC_LENGTH) {
+            return false;
+        }
+        return MessageDigest.isEqual(mac(input, offset, length),
+                Arrays.copyOfRange(expected, expectedOffset, expectedOffset + MAC_LENGTH));
     }
 
     public byte[] getSalt() {
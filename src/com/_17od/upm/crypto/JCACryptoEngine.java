@@ -0,0 +1,150 @@
+/*
+ * Universal Password Manager
+ * Copyright (C) 2005-2013 Adrian Smith
+ *
+ * This file is part of Universal Password Manager.
+ *   
+ * Universal Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Universal Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Universal Password Manager; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com._17od.upm.crypto;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+
+/**
+ * Uses the JVM's own javax.crypto implementation. On HotSpot its AES is
+ * compiled down to the CPU's AES instructions where there are any, which
+ * makes it many times faster than BouncyCastle.
+ */
+public class JCACryptoEngine implements CryptoEngine {
+
+    static final String NAME = "JCA";
+
+    // PKCS5 padding is what the JCA calls PKCS7 padding of a 16 byte block
+    private static final String CBC_TRANSFORMATION = "AES/CBC/PKCS5Padding";
+    private static final String GCM_TRANSFORMATION = "AES/GCM/NoPadding";
+
+    public String getName() {
+        return NAME;
+    }
+
+
+    /**
+     * @return false if the JVM can't do AES with a 256 bit key. Older JVMs
+     * need the unlimited strength policy files installing.
+     */
+    public boolean isAvailable() {
+        try {
+            Cipher.getInstance(CBC_TRANSFORMATION);
+            Cipher.getInstance(GCM_TRANSFORMATION);
+            return Cipher.getMaxAllowedKeyLength("AES") >= 256;
+        } catch (GeneralSecurityException e) {
+            return false;
+        }
+    }
+
+
+    public PaddedCipher createCipher(boolean forEncryption, byte[] key, byte[] iv) {
+        try {
+            Cipher cipher = Cipher.getInstance(CBC_TRANSFORMATION);
+            cipher.init(forEncryption ? Cipher.ENCRYPT_MODE : Cipher.DECRYPT_MODE,
+                    new SecretKeySpec(key, "AES"), new IvParameterSpec(iv));
+            return new JCACipher(cipher);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Can't create an AES cipher, check isAvailable() first", e);
+        }
+    }
+
+
+    public byte[] processRecord(boolean forEncryption, byte[] key, byte[] nonce, byte[] associatedData,
+            byte[] input, int offset, int length) throws CryptoException {
+        try {
+            Cipher cipher = Cipher.getInstance(GCM_TRANSFORMATION);
+            cipher.init(forEncryption ? Cipher.ENCRYPT_MODE : Cipher.DECRYPT_MODE,
+                    new SecretKeySpec(key, "AES"), new GCMParameterSpec(EncryptionService.TAG_LENGTH * 8, nonce));
+            if (associatedData != null) {
+                cipher.updateAAD(associatedData);
+            }
+            return cipher.doFinal(input, offset, length);
+        } catch (GeneralSecurityException e) {
+            throw new CryptoException(e);
+        }
+    }
+
+
+    public byte[] processLegacy(boolean forEncryption, char[] password, byte[] salt, byte[] input) throws CryptoException {
+        if (forEncryption) {
+            return DESDecryptionService.encrypt(password, salt, input);
+        }
+        return DESDecryptionService.decrypt(password, salt, input);
+    }
+
+
+    private static final class JCACipher implements PaddedCipher {
+
+        private final Cipher cipher;
+
+        JCACipher(Cipher cipher) {
+            this.cipher = cipher;
+        }
+
+        public int getOutputSize(int length) {
+            return cipher.getOutputSize(length);
+        }
+
+        public int processBytes(byte[] input, int inputOffset, int length, byte[] output, int outputOffset) throws CryptoException {
+            try {
+                return cipher.update(input, inputOffset, length, output, outputOffset);
+            } catch (GeneralSecurityException e) {
+                throw new CryptoException(e);
+            }
+        }
+
+        public int doFinal(byte[] output, int outputOffset) throws CryptoException {
+            try {
+                return cipher.doFinal(output, outputOffset);
+            } catch (GeneralSecurityException e) {
+                throw new CryptoException(e);
+            }
+        }
+
+        // The Cipher works on direct buffers itself and copes with the
+        // output overlapping the input
+
+        public int processBytes(ByteBuffer input, ByteBuffer output) throws CryptoException {
+            try {
+                return cipher.update(input, output);
+            } catch (GeneralSecurityException e) {
+                throw new CryptoException(e);
+            }
+        }
+
+        public int doFinal(ByteBuffer input, ByteBuffer output) throws CryptoException {
+            try {
+                return cipher.doFinal(input, output);
+            } catch (GeneralSecurityException e) {
+                throw new CryptoException(e);
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,256 @@
+/*
+ * Universal Password Manager
+ * Copyright (C) 2005-2013 Adrian Smith
+ *
+ * This file is part of Universal Password Manager.
+ *   
+ * Universal Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Universal Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Universal Password Manager; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com._17od.upm.crypto;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.bouncycastle.crypto.PBEParametersGenerator;
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.bouncycastle.crypto.generators.PKCS12ParametersGenerator;
+import org.bouncycastle.crypto.macs.HMac;
+import org.bouncycastle.crypto.params.KeyParameter;
+import org.bouncycastle.crypto.params.ParametersWithIV;
+
+
+/**
+ * How the AES key and IV are derived from the password and salt: an
+ * algorithm and its cost (the number of iterations). Databases from before
+ * version 6, and version 6 databases that don't store one, use LEGACY.
+ * 
+ * The cost of PBKDF2 can be calibrated so that deriving a key takes about
+ * a given time on this machine, see calibrate().
+ */
+public final class KeyDerivation {
+
+    public static final int PKCS12_SHA256 = 1;
+    public static final int PBKDF2_HMAC_SHA256 = 2;
+
+    public static final int KEY_LENGTH = 32;
+    public static final int IV_LENGTH = 16;
+
+    // Bounds on what calibrate() picks and what a database file may ask for,
+    // so that a corrupt file can't make unlocking take hours
+    public static final int MIN_PBKDF2_ITERATIONS = 10000;
+    public static final int MAX_ITERATIONS = 50 * 1000 * 1000;
+
+    public static final KeyDerivation LEGACY = new KeyDerivation(PKCS12_SHA256, 20);
+
+    // calibrate() times rounds of at least CALIBRATION_ROUND_NANOS deriving
+    // keys with CALIBRATION_ITERATIONS. While the JIT is still compiling the
+    // digest the rounds get faster, so it keeps going for at least
+    // MIN_CALIBRATION_NANOS and until STEADY_ROUNDS in a row are no faster
+    // than the best so far (by more than 2%), or MAX_CALIBRATION_NANOS is up.
+    private static final int CALIBRATION_ITERATIONS = 1000;
+    private static final long CALIBRATION_ROUND_NANOS = 10 * 1000 * 1000L;
+    private static final int STEADY_ROUNDS = 10;
+    private static final long MIN_CALIBRATION_NANOS = 250 * 1000 * 1000L;
+    private static final long MAX_CALIBRATION_NANOS = 1000 * 1000 * 1000L;
+
+    // The IV is an HMAC of this with the key PBKDF2 derives
+    private static final byte[] PBKDF2_IV_LABEL = "UPM IV".getBytes(StandardCharsets.US_ASCII);
+
+    private final int algorithm;
+    private final int iterations;
+
+
+    private KeyDerivation(int algorithm, int iterations) {
+        this.algorithm = algorithm;
+        this.iterations = iterations;
+    }
+
+
+    /**
+     * @throws IllegalArgumentException if the algorithm isn't known or the
+     * iterations are out of range
+     */
+    public static KeyDerivation get(int algorithm, int iterations) {
+        if (algorithm != PKCS12_SHA256 && algorithm != PBKDF2_HMAC_SHA256) {
+            throw new IllegalArgumentException("Unknown key derivation algorithm " + algorithm);
+        }
+        if (iterations < 1 || iterations > MAX_ITERATIONS) {
+            throw new IllegalArgumentException("Key derivation iterations out of range: " + iterations);
+        }
+        return new KeyDerivation(algorithm, iterations);
+    }
+
+
+    /**
+     * Time PBKDF2 on this machine and pick the number of iterations that
+     * makes deriving a key take about targetMillis, rounded to the nearest
+     * thousand and kept between MIN_PBKDF2_ITERATIONS and MAX_ITERATIONS.
+     * Takes between a quarter of a second and a second, depending on how
+     * long the JIT takes to settle but not on the target.
+     */
+    public static KeyDerivation calibrate(long targetMillis) {
+        KeyDerivation sample = new KeyDerivation(PBKDF2_HMAC_SHA256, CALIBRATION_ITERATIONS);
+        double nanosPerIteration = Double.MAX_VALUE;
+        int steadyRounds = 0;
+        long calibrationStart = System.nanoTime();
+        long elapsed = 0;
+        while ((steadyRounds < STEADY_ROUNDS || elapsed < MIN_CALIBRATION_NANOS) && elapsed < MAX_CALIBRATION_NANOS) {
+            long start = System.nanoTime();
+            int derivations = sample.deriveFor(CALIBRATION_ROUND_NANOS);
+            double roundNanosPerIteration = (double) (System.nanoTime() - start) / derivations / CALIBRATION_ITERATIONS;
+            if (roundNanosPerIteration < nanosPerIteration * 0.98) {
+                steadyRounds = 0;
+            } else {
+                steadyRounds++;
+            }
+            nanosPerIteration = Math.min(nanosPerIteration, roundNanosPerIteration);
+            elapsed = System.nanoTime() - calibrationStart;
+        }
+
+        long iterations = Math.round(targetMillis * 1e6 / nanosPerIteration / 1000) * 1000;
+        iterations = Math.max(MIN_PBKDF2_ITERATIONS, Math.min(MAX_ITERATIONS, iterations));
+        return new KeyDerivation(PBKDF2_HMAC_SHA256, (int) iterations);
+    }
+
+
+    /**
+     * Derive keys over and over for at least the given time.
+     * @return the number of keys derived
+     */
+    int deriveFor(long nanos) {
+        char[] password = "calibration".toCharArray();
+        byte[] salt = new byte[EncryptionService.SALT_LENGTH];
+        long start = System.nanoTime();
+        int derivations = 0;
+        do {
+            Arrays.fill(derive(password, salt), (byte) 0);
+            derivations++;
+        } while (System.nanoTime() - start < nanos);
+        return derivations;
+    }
+
+
+    public int getAlgorithm() {
+        return algorithm;
+    }
+
+
+    public int getIterations() {
+        return iterations;
+    }
+
+
+    /**
+     * @return KEY_LENGTH bytes of key followed by IV_LENGTH bytes of IV. The
+     * caller should wipe them when they're done with.
+     */
+    public byte[] derive(char[] password, byte[] salt) {
+        if (algorithm == PKCS12_SHA256) {
+            PBEParametersGenerator keyGenerator = new PKCS12ParametersGenerator(new SHA256Digest());
+            byte[] passwordBytes = PBEParametersGenerator.PKCS12PasswordToBytes(password);
+            keyGenerator.init(passwordBytes, salt, iterations);
+            ParametersWithIV params = (ParametersWithIV) keyGenerator.generateDerivedParameters(KEY_LENGTH * 8, IV_LENGTH * 8);
+            Arrays.fill(passwordBytes, (byte) 0);
+
+            byte[] derived = new byte[KEY_LENGTH + IV_LENGTH];
+            System.arraycopy(((KeyParameter) params.getParameters()).getKey(), 0, derived, 0, KEY_LENGTH);
+            System.arraycopy(params.getIV(), 0, derived, KEY_LENGTH, IV_LENGTH);
+            return derived;
+        }
+
+        // Each 32 bytes of PBKDF2 output costs the full iteration count, so
+        // only the key comes from it and the IV is a cheap step on from that
+        byte[] key = pbkdf2(password, salt, KEY_LENGTH);
+        HMac mac = new HMac(new SHA256Digest());
+        mac.init(new KeyParameter(key));
+        mac.update(PBKDF2_IV_LABEL, 0, PBKDF2_IV_LABEL.length);
+        byte[] iv = new byte[mac.getMacSize()];
+        mac.doFinal(iv, 0);
+
+        byte[] derived = new byte[KEY_LENGTH + IV_LENGTH];
+        System.arraycopy(key, 0, derived, 0, KEY_LENGTH);
+        System.arraycopy(iv, 0, derived, KEY_LENGTH, IV_LENGTH);
+        Arrays.fill(key, (byte) 0);
+        Arrays.fill(iv, (byte) 0);
+        return derived;
+    }
+
+
+    /**
+     * PBKDF2 from RFC 8018 with HMAC-SHA256, the password encoded as UTF-8.
+     * The BouncyCastle we build against only does it with SHA-1.
+     */
+    private byte[] pbkdf2(char[] password, byte[] salt, int length) {
+        ByteBuffer encoded = StandardCharsets.UTF_8.encode(CharBuffer.wrap(password));
+        byte[] passwordBytes = new byte[encoded.remaining()];
+        encoded.get(passwordBytes);
+        Arrays.fill(encoded.array(), (byte) 0);
+
+        HMac mac = new HMac(new SHA256Digest());
+        mac.init(new KeyParameter(passwordBytes));
+        Arrays.fill(passwordBytes, (byte) 0);
+
+        int macSize = mac.getMacSize();
+        byte[] derived = new byte[length];
+        byte[] u = new byte[macSize];
+        byte[] block = new byte[macSize];
+        for (int blockIndex = 1, offset = 0; offset < length; blockIndex++, offset += macSize) {
+            mac.update(salt, 0, salt.length);
+            mac.update((byte) (blockIndex >>> 24));
+            mac.update((byte) (blockIndex >>> 16));
+            mac.update((byte) (blockIndex >>> 8));
+            mac.update((byte) blockIndex);
+            mac.doFinal(u, 0);
+            System.arraycopy(u, 0, block, 0, macSize);
+            for (int i = 1; i < iterations; i++) {
+                mac.update(u, 0, macSize);
+                mac.doFinal(u, 0);
+                for (int j = 0; j < macSize; j++) {
+                    block[j] ^= u[j];
+                }
+            }
+            System.arraycopy(block, 0, derived, offset, Math.min(macSize, length - offset));
+        }
+        Arrays.fill(u, (byte) 0);
+        Arrays.fill(block, (byte) 0);
+        return derived;
+    }
+
+
+    /**
+     * @return a name for this algorithm and cost, used to tell keys apart in
+     * DerivedKeyCache
+     */
+    public String toString() {
+        return (algorithm == PKCS12_SHA256 ? "PKCS12-SHA256-" : "PBKDF2-HMAC-SHA256-") + iterations;
+    }
+
+
+    public boolean equals(Object o) {
+        if (!(o instanceof KeyDerivation)) {
+            return false;
+        }
+        KeyDerivation other = (KeyDerivation) o;
+        return algorithm == other.algorithm && iterations == other.iterations;
+    }
+
+
+    public int hashCode() {
+        return algorithm * 31 + iterations;
+    }
+
+}
@@ -0,0 +1,141 @@
+/*
+ * Universal Password Manager
+ * Copyright (C) 2005-2013 Adrian Smith
+ *
+ * This file is part of Universal Password Manager.
+ *   
+ * Universal Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Universal Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Universal Password Manager; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com._17od.upm.crypto;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import javax.crypto.ShortBufferException;
+
+/**
+ * A block cipher in CBC mode with PKCS7 padding that's fed its input a piece
+ * at a time. It's the part of BouncyCastle's BufferedBlockCipher that
+ * EncryptionService and the cipher streams need, so that the cipher can
+ * come from somewhere else, see CryptoEngine.
+ * 
+ * Once doFinal() has been called the cipher is ready to process a new
+ * message with the same key and IV.
+ * 
+ * The ByteBuffer methods work on heap, direct and memory mapped buffers.
+ * The output may share the input's memory (e.g. output is
+ * input.duplicate()) as long as the output's position isn't after the
+ * input's, which is how to encrypt or decrypt in place. Their default
+ * implementations go through the byte array methods, copying a piece at a
+ * time when a buffer has no accessible array. Those copies are zeroed once
+ * they've been used.
+ */
+public interface PaddedCipher {
+
+    /**
+     * @return the size of the buffer needed to hold the output of
+     * processBytes() and doFinal() for length bytes of input
+     */
+    int getOutputSize(int length);
+
+    /**
+     * @return the number of bytes written to output. Some of the input may
+     * be held back until more arrives or doFinal() is called.
+     */
+    int processBytes(byte[] input, int inputOffset, int length, byte[] output, int outputOffset) throws CryptoException;
+
+    /**
+     * Process whatever input has been held back, adding or checking the
+     * padding.
+     * @return the number of bytes written to output
+     * @throws CryptoException if the padding is wrong (usually because the
+     * key is wrong) or the input wasn't a whole number of blocks
+     */
+    int doFinal(byte[] output, int outputOffset) throws CryptoException;
+
+    /**
+     * Process the bytes between input's position and its limit into output
+     * starting at its position. Both positions are advanced.
+     * @return the number of bytes written to output
+     * @throws CryptoException if output has less than
+     * getOutputSize(input.remaining()) bytes remaining
+     */
+    default int processBytes(ByteBuffer input, ByteBuffer output) throws CryptoException {
+        int outputSize = getOutputSize(input.remaining());
+        if (output.remaining() < outputSize) {
+            throw new CryptoException(new ShortBufferException(
+                    "Need " + outputSize + " bytes of output but only have " + output.remaining()));
+        }
+        if (input.hasArray() && output.hasArray()) {
+            int outputLength = processBytes(input.array(), input.arrayOffset() + input.position(), input.remaining(),
+                    output.array(), output.arrayOffset() + output.position());
+            input.position(input.limit());
+            output.position(output.position() + outputLength);
+            return outputLength;
+        }
+
+        byte[] inputPiece = new byte[Math.min(input.remaining(), 8192)];
+        byte[] outputPiece = output.hasArray() ? null : new byte[getOutputSize(inputPiece.length)];
+        try {
+            int outputLength = 0;
+            while (input.hasRemaining()) {
+                int length = Math.min(input.remaining(), inputPiece.length);
+                input.get(inputPiece, 0, length);
+                int pieceLength;
+                if (outputPiece == null) {
+                    pieceLength = processBytes(inputPiece, 0, length, output.array(), output.arrayOffset() + output.position());
+                    output.position(output.position() + pieceLength);
+                } else {
+                    pieceLength = processBytes(inputPiece, 0, length, outputPiece, 0);
+                    output.put(outputPiece, 0, pieceLength);
+                }
+                outputLength += pieceLength;
+            }
+            return outputLength;
+        } finally {
+            // One side or the other is plaintext
+            Arrays.fill(inputPiece, (byte) 0);
+            if (outputPiece != null) {
+                Arrays.fill(outputPiece, (byte) 0);
+            }
+        }
+    }
+
+    /**
+     * Process the bytes between input's position and its limit and then
+     * finish as doFinal(byte[], int) does.
+     * @return the number of bytes written to output
+     * @throws CryptoException if output has less than
+     * getOutputSize(input.remaining()) bytes remaining or for any of the
+     * reasons doFinal(byte[], int) does
+     */
+    default int doFinal(ByteBuffer input, ByteBuffer output) throws CryptoException {
+        int outputLength = processBytes(input, output);
+        if (output.hasArray()) {
+            int finalLength = doFinal(output.array(), output.arrayOffset() + output.position());
+            output.position(output.position() + finalLength);
+            return outputLength + finalLength;
+        }
+        byte[] finalBlock = new byte[getOutputSize(0)];
+        try {
+            int finalLength = doFinal(finalBlock, 0);
+            output.put(finalBlock, 0, finalLength);
+            return outputLength + finalLength;
+        } finally {
+            Arrays.fill(finalBlock, (byte) 0);
+        }
+    }
+
+}
@@ -22,62 +22,249 @@ package com._17od.upm.database;
 
 import java.io.InputStream;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
 
+/**
+ * An account in the database. The account name is held as a String as it's
+ * the key accounts are looked up by. The other fields are held UTF-8 encoded
+ * back to back in a single byte array and decoded each time they're asked
+ * for. That's one object per account rather than four Strings, and unlike a
+ * String the array can be wiped once the database is closed.
+ * 
+ * Once the account is added to a database the password and notes are moved
+ * out of the array and off the heap into the database's SecretStore.
+ */
 public class AccountInformation extends FlatPackObject {
 
+    private static final byte[] NO_FIELDS = new byte[0];
+
+    private static final int USER_ID = 0;
+    private static final int PASSWORD = 1;
+    private static final int URL = 2;
+    private static final int NOTES = 3;
+
     private String accountName;
-    private String userId;
-    private String password;
-    private String url;
-    private String notes;
+
+    // The user id, password, url and notes. Each field ends where the next
+    // one starts, the notes run to the end of the array.
+    private byte[] fields;
+    private int userIdEnd;
+    private int passwordEnd;
+    private int urlEnd;
+
+    // Where the password and notes are kept once they've been moved off the
+    // heap. While secrets is set their slots in fields are empty.
+    private SecretStore secrets;
+    private long passwordHandle;
+    private long notesHandle;
 
 
     public AccountInformation() {
         accountName = "";
-        userId = "";
-        password = "";
-        url = "";
-        notes = "";
+        fields = NO_FIELDS;
     }
     
     
     public AccountInformation(String accountName, String userId,
             String password, String url, String notes) {
         this.accountName = accountName;
-        this.userId = userId;
-        this.password = password;
-        this.url = url;
-        this.notes = notes;
+        pack(userId, password, url, notes);
     }
 
 
     public AccountInformation(InputStream is) throws IOException, ProblemReadingDatabaseFile {
-        assemble(is, Charset.forName("UTF-8"));
+        this(new FlatPackReader(is), StandardCharsets.UTF_8);
     }
 
 
     public AccountInformation(InputStream is, Charset charset) throws IOException, ProblemReadingDatabaseFile {
-        assemble(is, charset);
+        this(new FlatPackReader(is), charset);
+    }
+
+
+    public AccountInformation(FlatPackReader reader, Charset charset) throws IOException, ProblemReadingDatabaseFile {
+        assemble(reader, charset);
     }
     
     
-    public void flatPack(OutputStream os) throws IOException {
-        os.write(flatPack(accountName));
-        os.write(flatPack(userId));
-        os.write(flatPack(password));
-        os.write(flatPack(url));
-        os.write(flatPack(notes));
+    public void flatPack(FlatPackWriter writer) throws FieldTooLongException {
+        int mark = writer.beginRecord();
+        writer.writeString(accountName);
+        for (int field = USER_ID; field <= NOTES; field++) {
+            if (isOffHeap(field)) {
+                writer.writeUTF8(secrets.get(handle(field)));
+            } else {
+                int start = fieldStart(field);
+                writer.writeUTF8(fields, start, fieldEnd(field) - start);
+            }
+        }
+        writer.endRecord(mark);
+    }
+
+    private void assemble(FlatPackReader reader, Charset charset) throws IOException, ProblemReadingDatabaseFile {
+        long end = reader.beginRecord();
+        accountName = reader.readString(charset);
+        if (charset.equals(StandardCharsets.UTF_8)) {
+            // The fields are already in the form we keep them in
+            int[] ends = new int[NOTES + 1];
+            fields = reader.readUndecodedStrings(ends);
+            userIdEnd = ends[USER_ID];
+            passwordEnd = ends[PASSWORD];
+            urlEnd = ends[URL];
+        } else {
+            pack(reader.readString(charset), reader.readString(charset),
+                    reader.readString(charset), reader.readString(charset));
+        }
+        reader.endRecord(end);
+    }
+
+    private void pack(CharSequence userId, CharSequence password, CharSequence url, CharSequence notes) {
+        userId = nullToEmpty(userId);
+        password = nullToEmpty(password);
+        url = nullToEmpty(url);
+        notes = nullToEmpty(notes);
+        fields = new byte[FlatPackWriter.utf8Length(userId) + FlatPackWriter.utf8Length(password)
+                + FlatPackWriter.utf8Length(url) + FlatPackWriter.utf8Length(notes)];
+        userIdEnd = FlatPackWriter.encodeUTF8(userId, fields, 0);
+        passwordEnd = FlatPackWriter.encodeUTF8(password, fields, userIdEnd);
+        urlEnd = FlatPackWriter.encodeUTF8(url, fields, passwordEnd);
+        FlatPackWriter.encodeUTF8(notes, fields, urlEnd);
+    }
+
+    /**
+     * Move the password and notes into the given store, wiping the copy
+     * they're moved from
+     */
+    void moveSecretsTo(SecretStore store) {
+        if (store == secrets) {
+            return;
+        }
+
+        long newPasswordHandle;
+        long newNotesHandle;
+        if (secrets != null) {
+            newPasswordHandle = store.put(secrets.get(passwordHandle));
+            newNotesHandle = store.put(secrets.get(notesHandle));
+            secrets.free(passwordHandle);
+            secrets.free(notesHandle);
+        } else {
+            newPasswordHandle = store.put(fields, userIdEnd, passwordEnd - userIdEnd);
+            newNotesHandle = store.put(fields, urlEnd, fields.length - urlEnd);
+
+            // Leave only the user id and url on the heap
+            int urlLength = urlEnd - passwordEnd;
+            byte[] newFields = new byte[userIdEnd + urlLength];
+            System.arraycopy(fields, 0, newFields, 0, userIdEnd);
+            System.arraycopy(fields, passwordEnd, newFields, userIdEnd, urlLength);
+            Arrays.fill(fields, (byte) 0);
+            fields = newFields;
+            passwordEnd = userIdEnd;
+            urlEnd = newFields.length;
+        }
+
+        secrets = store;
+        passwordHandle = newPasswordHandle;
+        notesHandle = newNotesHandle;
+    }
+
+    /**
+     * Replace one field. The fields either side are copied across as they
+     * are and the old array is wiped.
+     */
+    private void setField(int field, CharSequence value) {
+        value = nullToEmpty(value);
+        if (isOffHeap(field)) {
+            secrets.free(handle(field));
+            long newHandle = secrets.put(value);
+            if (field == PASSWORD) {
+                passwordHandle = newHandle;
+            } else {
+                notesHandle = newHandle;
+            }
+            return;
+        }
+
+        int start = fieldStart(field);
+        int end = fieldEnd(field);
+        int length = FlatPackWriter.utf8Length(value);
+        int delta = length - (end - start);
+
+        byte[] newFields = new byte[fields.length + delta];
+        System.arraycopy(fields, 0, newFields, 0, start);
+        FlatPackWriter.encodeUTF8(value, newFields, start);
+        System.arraycopy(fields, end, newFields, start + length, fields.length - end);
+        if (field <= USER_ID) {
+            userIdEnd += delta;
+        }
+        if (field <= PASSWORD) {
+            passwordEnd += delta;
+        }
+        if (field <= URL) {
+            urlEnd += delta;
+        }
+
+        Arrays.fill(fields, (byte) 0);
+        fields = newFields;
+    }
+
+    private String getField(int field) {
+        if (isOffHeap(field)) {
+            char[] chars = secrets.getChars(handle(field));
+            try {
+                return new String(chars);
+            } finally {
+                Arrays.fill(chars, '\0');
+            }
+        }
+        int start = fieldStart(field);
+        return new String(fields, start, fieldEnd(field) - start, StandardCharsets.UTF_8);
     }
 
-    private void assemble(InputStream is, Charset charset) throws IOException, ProblemReadingDatabaseFile {
-        accountName = getString(is, charset);
-        userId = getString(is, charset);
-        password = getString(is, charset);
-        url = getString(is, charset);
-        notes = getString(is, charset);
+    private boolean isOffHeap(int field) {
+        return secrets != null && (field == PASSWORD || field == NOTES);
+    }
+
+    private long handle(int field) {
+        return field == PASSWORD ? passwordHandle : notesHandle;
+    }
+
+    private int fieldStart(int field) {
+        return field == USER_ID ? 0 : fieldEnd(field - 1);
+    }
+
+    private int fieldEnd(int field) {
+        switch (field) {
+            case USER_ID:
+                return userIdEnd;
+            case PASSWORD:
+                return passwordEnd;
+            case URL:
+                return urlEnd;
+            default:
+                return fields.length;
+        }
+    }
+
+    private static CharSequence nullToEmpty(CharSequence s) {
+        return s == null ? "" : s;
+    }
+
+    /**
+     * Overwrite the fields held by this account with zeros. Once wiped every
+     * field other than the account name reads as zeros too so only do this
+     * when the account is finished with.
+     */
+    public void wipe() {
+        Arrays.fill(fields, (byte) 0);
+        if (secrets != null) {
+            secrets.free(passwordHandle);
+            secrets.free(notesHandle);
+        }
     }
     
     public String getAccountName() {
@@ -89,35 +276,51 @@ public class AccountInformation extends FlatPackObject {
     }
 
     public String getNotes() {
-        return notes;
+        return getField(NOTES);
     }
 
     public void setNotes(String notes) {
-        this.notes = notes;
+        setField(NOTES, notes);
     }
 
     public String getPassword() {
-        return password;
+        return getField(PASSWORD);
     }
 
     public void setPassword(String password) {
-        this.password = password;
+        setField(PASSWORD, password);
+    }
+
+    /**
+     * @return the password decoded into a new char array. Unlike
+     * getPassword() this doesn't leave a copy on the heap that can't be
+     * wiped, so zero the array once it's finished with.
+     */
+    public char[] getPasswordChars() {
+        if (isOffHeap(PASSWORD)) {
+            return secrets.getChars(passwordHandle);
+        }
+        return SecretStore.decode(ByteBuffer.wrap(fields, userIdEnd, passwordEnd - userIdEnd));
+    }
+
+    public void setPassword(char[] password) {
+        setField(PASSWORD, password == null ? null : CharBuffer.wrap(password));
     }
 
     public String getUrl() {
-        return url;
+        return getField(URL);
     }
 
     public void setUrl(String url) {
-        this.url = url;
+        setField(URL, url);
     }
 
     public String getUserId() {
-        return userId;
+        return getField(USER_ID);
     }
 
     public void setUserId(String userId) {
-        this.userId = userId;
+        setField(USER_ID, userId);
     }
 
 }
@@ -22,7 +22,6 @@ package com._17od.upm.database;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 
 
 public class DatabaseHeader extends FlatPackObject {
@@ -33,7 +32,12 @@ public class DatabaseHeader extends FlatPackObject {
     
     
     public DatabaseHeader(InputStream is) throws IOException, ProblemReadingDatabaseFile {
-        assemble(is);
+        this(new FlatPackReader(is));
+    }
+    
+    
+    public DatabaseHeader(FlatPackReader reader) throws IOException, ProblemReadingDatabaseFile {
+        assemble(reader);
     }
     
     
@@ -44,17 +48,17 @@ public class DatabaseHeader extends FlatPackObject {
     }
     
     
-    public void flatPack(OutputStream os) throws IOException {
-        os.write(flatPack(String.valueOf(majorVersion)));
-        os.write(flatPack(String.valueOf(minorVersion)));
-        os.write(flatPack(String.valueOf(patchVersion)));
+    public void flatPack(FlatPackWriter writer) throws FieldTooLongException {
+        writer.writeInt(majorVersion);
+        writer.writeInt(minorVersion);
+        writer.writeInt(patchVersion);
     }
 
     
-    private void assemble(InputStream is) throws IOException, ProblemReadingDatabaseFile {
-        majorVersion = getInt(is);
-        minorVersion = getInt(is);
-        patchVersion = getInt(is);
+    private void assemble(FlatPackReader reader) throws IOException, ProblemReadingDatabaseFile {
+        majorVersion = reader.readInt();
+        minorVersion = reader.readInt();
+        patchVersion = reader.readInt();
     }    
 
     public String getVersion() {
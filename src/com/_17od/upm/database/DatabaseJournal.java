@@ -0,0 +1,338 @@
+/*
+ * Universal Password Manager
+ * Copyright (C) 2005-2013 Adrian Smith
+ *
+ * This file is part of Universal Password Manager.
+ *   
+ * Universal Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Universal Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Universal Password Manager; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com._17od.upm.database;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com._17od.upm.crypto.CryptoException;
+import com._17od.upm.crypto.EncryptionService;
+
+
+/**
+ * A log of the changes made to a database since it was last saved in full.
+ * Appending a change only costs as much as the change itself, rather than
+ * re-encrypting and rewriting the whole database.
+ * 
+ * The journal is kept alongside the database in a file with the same name
+ * plus ".journal". It's
+ *   MAGIC BASE_REVISION [ENTRY]...
+ * where BASE_REVISION is the revision of the database file the journal
+ * extends. Each entry is
+ *   LENGTH REVISION NONCE [CHANGES]
+ * where CHANGES is a list of (OP_PUT ACCOUNT) or (OP_DELETE ACCOUNT_NAME)
+ * encoded as in database version 4. CHANGES is encrypted with AES-GCM using
+ * the database's key and is authenticated together with the database's
+ * salt, BASE_REVISION and REVISION, so an entry can only be applied to the
+ * database file it was written against.
+ * 
+ * Each entry is tagged with the database revision it brings the database up
+ * to and the entries follow on from each other. A journal whose base is
+ * older than the database file has already been folded into it and is
+ * deleted, so it doesn't matter if the journal isn't deleted after a full
+ * save. Anything else that doesn't follow on (most likely another copy of
+ * UPM journalling a change to the same database at the same revision) is a
+ * conflict: replay stops there and keeps a copy of the journal, see
+ * getConflictFile().
+ */
+public class DatabaseJournal {
+
+    private static final Log LOG = LogFactory.getLog(DatabaseJournal.class);
+
+    private static final String FILE_SUFFIX = ".journal";
+    private static final String CONFLICT_SUFFIX = ".conflict";
+
+    private static final int MAGIC = 0x55504d4a; // "UPMJ"
+    private static final int HEADER_LENGTH = 8;
+
+    private static final int OP_PUT = 1;
+    private static final int OP_DELETE = 2;
+
+    // Guards against allocating a huge buffer for a corrupt entry length
+    private static final int MAX_ENTRY_LENGTH = 64 * 1024 * 1024;
+
+    private final Path journalFile;
+    private final EncryptionService encryptionService;
+    private File conflictFile;
+
+
+    public DatabaseJournal(File databaseFile, EncryptionService encryptionService) {
+        this.journalFile = getJournalFile(databaseFile).toPath();
+        this.encryptionService = encryptionService;
+    }
+
+
+    public static File getJournalFile(File databaseFile) {
+        return new File(databaseFile.getPath() + FILE_SUFFIX);
+    }
+
+
+    /**
+     * Append a change to the journal and make sure it's on disk. Starting a
+     * new journal makes revision - 1 its base, so the database file must
+     * have been saved in full at that revision.
+     * @param revision the revision of the database after the change
+     * @param deletedAccountName an account to delete (may be null)
+     * @param account an account to add, replacing any account with the same
+     * name (may be null)
+     */
+    public void append(int revision, String deletedAccountName, AccountInformation account) throws IOException, CryptoException {
+        FlatPackWriter writer = new FlatPackWriter(FlatPackFormat.BINARY);
+        if (deletedAccountName != null) {
+            writer.writeInt(OP_DELETE);
+            writer.writeString(deletedAccountName);
+        }
+        if (account != null) {
+            writer.writeInt(OP_PUT);
+            account.flatPack(writer);
+        }
+        byte[] changes = writer.toByteArray();
+
+        try (FileChannel channel = FileChannel.open(journalFile, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            int baseRevision;
+            ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+            if (channel.size() < HEADER_LENGTH) {
+                // A new journal (or one whose header was only partly
+                // written, in which case it has no entries)
+                baseRevision = revision - 1;
+                header.putInt(MAGIC).putInt(baseRevision).flip();
+                channel.truncate(0);
+                writeFully(channel, header, 0);
+            } else {
+                while (header.hasRemaining() && channel.read(header, header.position()) != -1) {
+                }
+                header.flip();
+                if (header.getInt() != MAGIC) {
+                    throw new IOException(journalFile + " isn't a journal");
+                }
+                baseRevision = header.getInt();
+            }
+
+            byte[] nonce = encryptionService.generateNonce();
+            byte[] encryptedChanges = encryptionService.encryptRecord(changes, 0, changes.length, nonce,
+                    associatedData(baseRevision, revision));
+            ByteArrayOutputStream entry = new ByteArrayOutputStream(8 + nonce.length + encryptedChanges.length);
+            DataOutputStream dos = new DataOutputStream(entry);
+            dos.writeInt(encryptedChanges.length);
+            dos.writeInt(revision);
+            dos.write(nonce);
+            dos.write(encryptedChanges);
+
+            // Write the entry with a single call so that a crash can only ever
+            // leave a partial entry at the end of the file
+            writeFully(channel, ByteBuffer.wrap(entry.toByteArray()), channel.size());
+            channel.force(false);
+        }
+    }
+
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+
+    /**
+     * Apply the changes in the journal that are newer than the database.
+     * Replay stops at the first entry that can't be read, this will usually
+     * be an entry that was only partly written when UPM was stopped. The
+     * journal is truncated after the last complete entry so that entries
+     * appended later don't end up behind the partial one, where they'd
+     * never be read.
+     * 
+     * Replay also stops at an entry that conflicts with the database. The
+     * journal is copied to getConflictFile() and left as it is; saving the
+     * database in full will then start a new one.
+     * @param database a database that's just been read from its file
+     * @return the number of entries applied
+     */
+    public int replay(PasswordDatabase database) throws IOException, ProblemReadingDatabaseFile {
+        if (!Files.exists(journalFile)) {
+            return 0;
+        }
+
+        int fileRevision = database.getRevision();
+        int entriesApplied = 0;
+        long validLength = 0;
+        boolean truncate = false;
+        boolean stale = false;
+        boolean conflict = false;
+        int baseRevision = fileRevision;
+        try (InputStream is = Files.newInputStream(journalFile)) {
+            DataInputStream dis = new DataInputStream(new BufferedInputStream(is));
+            try {
+                if (dis.readInt() != MAGIC) {
+                    throw new ProblemReadingDatabaseFile(journalFile + " isn't a journal");
+                }
+                baseRevision = dis.readInt();
+            } catch (EOFException e) {
+                // The header was only partly written so there can't be any
+                // entries
+                truncate = true;
+            }
+            if (!truncate) {
+                validLength = HEADER_LENGTH;
+                stale = baseRevision < fileRevision;
+            }
+
+            while (!truncate) {
+                int length;
+                int revision;
+                byte[] nonce = new byte[EncryptionService.NONCE_LENGTH];
+                byte[] encryptedChanges;
+                try {
+                    length = dis.readInt();
+                    revision = dis.readInt();
+                    if (length < EncryptionService.TAG_LENGTH || length > MAX_ENTRY_LENGTH) {
+                        LOG.warn("Ignoring the rest of journal " + journalFile + ", invalid entry length " + length);
+                        truncate = true;
+                        break;
+                    }
+                    dis.readFully(nonce);
+                    encryptedChanges = new byte[length];
+                    dis.readFully(encryptedChanges);
+                } catch (EOFException e) {
+                    // Anything left over is a partly written entry
+                    truncate = Files.size(journalFile) > validLength;
+                    break;
+                }
+                long entryEnd = validLength + 8 + nonce.length + length;
+
+                if (stale && revision <= fileRevision) {
+                    // Already part of the database
+                    validLength = entryEnd;
+                    continue;
+                }
+                if (baseRevision != fileRevision || revision != database.getRevision() + 1) {
+                    LOG.warn("Journal " + journalFile + " has an entry for revision " + revision + " based on revision "
+                            + baseRevision + " which conflicts with the database at revision " + database.getRevision());
+                    conflict = true;
+                    break;
+                }
+
+                byte[] changes;
+                try {
+                    changes = encryptionService.decryptRecord(encryptedChanges, 0, length, nonce,
+                            associatedData(baseRevision, revision));
+                } catch (CryptoException e) {
+                    // The entry is all there so it wasn't a crash. It was
+                    // written against a different database file (or with a
+                    // different key).
+                    LOG.warn("Journal " + journalFile + " has an entry for revision " + revision
+                            + " that doesn't belong to this database");
+                    conflict = true;
+                    break;
+                }
+                applyChanges(database, changes);
+                database.getRevisionObj().setRevision(revision);
+                entriesApplied++;
+                validLength = entryEnd;
+            }
+        }
+
+        if (conflict) {
+            conflictFile = new File(journalFile + CONFLICT_SUFFIX);
+            Files.copy(journalFile, conflictFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } else if (baseRevision != fileRevision) {
+            // Everything in it is in the database file already (or it has
+            // no entries), and new entries need the current file as their
+            // base
+            delete();
+        } else if (truncate) {
+            LOG.warn("Truncating journal " + journalFile + " to " + validLength + " bytes");
+            try (FileChannel channel = FileChannel.open(journalFile, StandardOpenOption.WRITE)) {
+                channel.truncate(validLength);
+                channel.force(false);
+            }
+        }
+        return entriesApplied;
+    }
+
+
+    /**
+     * @return a copy of the journal made when replay() found an entry that
+     * conflicts with the database, or null if it didn't
+     */
+    public File getConflictFile() {
+        return conflictFile;
+    }
+
+
+    private void applyChanges(PasswordDatabase database, byte[] changes) throws IOException, ProblemReadingDatabaseFile {
+        FlatPackReader reader = new FlatPackReader(changes, 0, changes.length, FlatPackFormat.BINARY);
+        while (reader.hasMoreFields()) {
+            int op = reader.readInt();
+            if (op == OP_DELETE) {
+                database.deleteAccount(reader.readString(StandardCharsets.UTF_8));
+            } else if (op == OP_PUT) {
+                database.addAccount(new AccountInformation(reader, StandardCharsets.UTF_8));
+            } else {
+                throw new ProblemReadingDatabaseFile("Unknown journal operation " + op);
+            }
+        }
+    }
+
+
+    /**
+     * @return the size of the journal in bytes, 0 if there isn't one
+     */
+    public long length() {
+        return journalFile.toFile().length();
+    }
+
+
+    public boolean exists() {
+        return Files.exists(journalFile);
+    }
+
+
+    public void delete() throws IOException {
+        Files.deleteIfExists(journalFile);
+    }
+
+
+    /**
+     * Binds an entry to the database file it extends
+     */
+    private byte[] associatedData(int baseRevision, int revision) {
+        byte[] salt = encryptionService.getSalt();
+        return ByteBuffer.allocate(salt.length + 8).put(salt).putInt(baseRevision).putInt(revision).array();
+    }
+
+}
@@ -22,7 +22,7 @@ package com._17od.upm.database;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 
 public class DatabaseOptions extends FlatPackObject {
 
@@ -37,8 +37,15 @@ public class DatabaseOptions extends FlatPackObject {
     
     
     public DatabaseOptions(InputStream is) throws IOException, ProblemReadingDatabaseFile {
-        remoteLocation = getString(is);
-        authDBEntry = getString(is);
+        this(new FlatPackReader(is));
+    }
+    
+    
+    public DatabaseOptions(FlatPackReader reader) throws IOException, ProblemReadingDatabaseFile {
+        long end = reader.beginRecord();
+        remoteLocation = reader.readString(StandardCharsets.UTF_8);
+        authDBEntry = reader.readString(StandardCharsets.UTF_8);
+        reader.endRecord(end);
     }
     
     
@@ -55,9 +62,11 @@ public class DatabaseOptions extends FlatPackObject {
     }
     
     
-    public void flatPack(OutputStream os) throws IOException {
-        os.write(flatPack(remoteLocation));
-        os.write(flatPack(authDBEntry));
+    public void flatPack(FlatPackWriter writer) throws FieldTooLongException {
+        int mark = writer.beginRecord();
+        writer.writeString(remoteLocation);
+        writer.writeString(authDBEntry);
+        writer.endRecord(mark);
     }
 
 
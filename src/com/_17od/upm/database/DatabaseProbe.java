@@ -0,0 +1,149 @@
+/*
+ * Universal Password Manager
+ * Copyright (C) 2005-2013 Adrian Smith
+ *
+ * This file is part of Universal Password Manager.
+ *   
+ * Universal Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Universal Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Universal Password Manager; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com._17od.upm.database;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import com._17od.upm.crypto.EncryptionService;
+
+
+/**
+ * Reads the unencrypted header at the start of a database file without
+ * touching the rest of it. It's enough to tell whether a file is a UPM
+ * database that this version can open and, from version 6 on, what revision
+ * it's at, all without the password and in the same time whatever the size
+ * of the file.
+ * 
+ * Nothing in the header is authenticated until the database is decrypted.
+ * PasswordDatabasePersistence checks the revision in the header against the
+ * encrypted one when the database is loaded.
+ */
+public final class DatabaseProbe {
+
+    private final boolean upmDatabase;
+    private final int dbVersion;
+    private final int flags;
+    private final byte[] salt;
+    private final int revision;
+
+
+    private DatabaseProbe(byte[] header) {
+        upmDatabase = header != null && PasswordDatabasePersistence.isUPMDatabase(header);
+        if (!upmDatabase) {
+            dbVersion = -1;
+            flags = 0;
+            salt = null;
+            revision = -1;
+            return;
+        }
+
+        dbVersion = header[PasswordDatabasePersistence.DB_VERSION_POS];
+        salt = Arrays.copyOfRange(header, PasswordDatabasePersistence.SALT_POS,
+                PasswordDatabasePersistence.SALT_POS + EncryptionService.SALT_LENGTH);
+        if (dbVersion >= PasswordDatabasePersistence.FLAGS_VERSION) {
+            flags = header[PasswordDatabasePersistence.FLAGS_POS] & 0xff;
+        } else {
+            flags = 0;
+        }
+        if ((flags & PasswordDatabasePersistence.FLAG_REVISION) != 0) {
+            revision = PasswordDatabasePersistence.getInt(header, PasswordDatabasePersistence.REVISION_POS);
+        } else {
+            revision = -1;
+        }
+    }
+
+
+    /**
+     * Read the header of the given file. Only the header is read, however
+     * big the file is.
+     */
+    public static DatabaseProbe probe(File databaseFile) throws IOException {
+        try (InputStream is = Files.newInputStream(databaseFile.toPath())) {
+            return new DatabaseProbe(PasswordDatabasePersistence.readHeader(is));
+        } catch (ProblemReadingDatabaseFile e) {
+            // Too short to have a header
+            return new DatabaseProbe(null);
+        }
+    }
+
+
+    /**
+     * @return true if the file starts with the UPM magic number. Databases
+     * from before version 2 didn't have one so false doesn't rule out a very
+     * old database.
+     */
+    public boolean isUPMDatabase() {
+        return upmDatabase;
+    }
+
+
+    /**
+     * @return true if this version of UPM knows how to open the database
+     */
+    public boolean isSupported() {
+        return upmDatabase && dbVersion >= 2 && dbVersion <= PasswordDatabasePersistence.LATEST_DB_VERSION
+                && (flags & ~PasswordDatabasePersistence.SUPPORTED_FLAGS) == 0;
+    }
+
+
+    /**
+     * @return the database version or -1 if this isn't a UPM database
+     */
+    public int getDbVersion() {
+        return dbVersion;
+    }
+
+
+    /**
+     * @return the salt the key is derived with or null if this isn't a UPM
+     * database
+     */
+    public byte[] getSalt() {
+        return salt == null ? null : salt.clone();
+    }
+
+
+    public boolean isCompressed() {
+        return (flags & PasswordDatabasePersistence.FLAG_COMPRESSED) != 0;
+    }
+
+
+    /**
+     * @return true if the header has a copy of the database's revision
+     * (version 6 onwards)
+     */
+    public boolean hasRevision() {
+        return (flags & PasswordDatabasePersistence.FLAG_REVISION) != 0;
+    }
+
+
+    /**
+     * @return the revision from the header or -1 if hasRevision() is false
+     */
+    public int getRevision() {
+        return revision;
+    }
+
+}
@@ -0,0 +1,45 @@
+/*
+ * Universal Password Manager
+ * Copyright (C) 2005-2013 Adrian Smith
+ *
+ * This file is part of Universal Password Manager.
+ *   
+ * Universal Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Universal Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Universal Password Manager; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com._17od.upm.database;
+
+
+/**
+ * The encodings FlatPackReader and FlatPackWriter understand.
+ */
+public enum FlatPackFormat {
+
+    /**
+     * Every field is prefixed with its length as four ASCII digits. Used
+     * by database versions 3 and earlier. No field can be longer than 9999
+     * bytes.
+     */
+    ASCII,
+
+    /**
+     * Every field starts with a type byte. Strings and byte arrays are
+     * prefixed with their length as a varint, ints are stored as zigzag
+     * varints and records (a group of fields) are prefixed with their total
+     * length so that readers can skip fields they don't know about. Used
+     * from database version 4.
+     */
+    BINARY
+
+}
@@ -0,0 +1,430 @@
+/*
+ * Universal Password Manager
+ * Copyright (C) 2005-2013 Adrian Smith
+ *
+ * This file is part of Universal Password Manager.
+ *   
+ * Universal Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Universal Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Universal Password Manager; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com._17od.upm.database;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+
+/**
+ * Decodes the fields written by FlatPackObject.flatPack(). The fields are
+ * read from a byte array using a cursor: field lengths are parsed directly
+ * from the ASCII digits (or varints in the BINARY format) and strings are
+ * decoded straight out of the array.
+ * 
+ * When reading from an InputStream the reader pulls the bytes for each field
+ * into an internal buffer with a single bulk read. It never reads further
+ * ahead than the field being decoded (apart from hasMoreFields()) so the
+ * same stream can be handed to several readers in turn.
+ */
+public final class FlatPackReader {
+
+    private static final int INITIAL_BUFFER_SIZE = 1024;
+
+    // No legitimate field comes close to this. A bigger length means the
+    // data is corrupt (or was decrypted with the wrong key).
+    private static final int MAX_FIELD_LENGTH = 64 * 1024 * 1024;
+
+    private final InputStream source;
+    private final FlatPackFormat format;
+    private byte[] buffer;
+    private int pos;
+    private int limit;
+
+    // The number of bytes consumed from the source before buffer[0]
+    private long bufferStart;
+
+    // Reused by readUndecodedStrings() to gather the field bodies
+    private byte[] scratch;
+
+
+    public FlatPackReader(InputStream source) {
+        this(source, FlatPackFormat.ASCII);
+    }
+
+
+    public FlatPackReader(InputStream source, FlatPackFormat format) {
+        this.source = source;
+        this.format = format;
+        this.buffer = new byte[INITIAL_BUFFER_SIZE];
+    }
+
+
+    public FlatPackReader(byte[] bytes) {
+        this(bytes, 0, bytes.length);
+    }
+
+
+    public FlatPackReader(byte[] bytes, int offset, int length) {
+        this(bytes, offset, length, FlatPackFormat.ASCII);
+    }
+
+
+    public FlatPackReader(byte[] bytes, int offset, int length, FlatPackFormat format) {
+        this.source = null;
+        this.format = format;
+        this.buffer = bytes;
+        this.pos = offset;
+        this.limit = offset + length;
+    }
+
+
+    public FlatPackFormat getFormat() {
+        return format;
+    }
+
+
+    /**
+     * @return true if there's at least one more byte to read. Used to find
+     * the end of the accounts without relying on an EOFException.
+     */
+    public boolean hasMoreFields() throws IOException {
+        if (pos < limit) {
+            return true;
+        }
+        if (source == null) {
+            return false;
+        }
+        bufferStart += limit;
+        pos = 0;
+        limit = 0;
+        int bytesRead;
+        do {
+            bytesRead = source.read(buffer, 0, buffer.length);
+        } while (bytesRead == 0);
+        if (bytesRead > 0) {
+            limit = bytesRead;
+        }
+        return bytesRead > 0;
+    }
+
+
+    public byte[] readBytes() throws IOException, ProblemReadingDatabaseFile {
+        int length = readFieldLength(FlatPackObject.TYPE_BYTES);
+        byte[] bytes = Arrays.copyOfRange(buffer, pos, pos + length);
+        pos += length;
+        return bytes;
+    }
+
+
+    public String readString(Charset charset) throws IOException, ProblemReadingDatabaseFile {
+        int length = readFieldLength(FlatPackObject.TYPE_STRING);
+        String s = new String(buffer, pos, length, charset);
+        pos += length;
+        return s;
+    }
+
+
+    /**
+     * Read ends.length string fields without decoding them. The field bodies
+     * are returned back to back in a single array and ends[i] is set to the
+     * offset in that array just past the body of field i.
+     */
+    byte[] readUndecodedStrings(int[] ends) throws IOException, ProblemReadingDatabaseFile {
+        if (scratch == null) {
+            scratch = new byte[256];
+        }
+        int total = 0;
+        for (int i = 0; i < ends.length; i++) {
+            int length = readFieldLength(FlatPackObject.TYPE_STRING);
+            if (scratch.length - total < length) {
+                scratch = Arrays.copyOf(scratch, Math.max(scratch.length * 2, total + length));
+            }
+            System.arraycopy(buffer, pos, scratch, total, length);
+            pos += length;
+            total += length;
+            ends[i] = total;
+        }
+        return Arrays.copyOf(scratch, total);
+    }
+
+
+    public int readInt() throws IOException, ProblemReadingDatabaseFile {
+        if (format == FlatPackFormat.BINARY) {
+            readType(FlatPackObject.TYPE_INT);
+            int value = readVarint();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        int length = readFieldLength(FlatPackObject.TYPE_INT);
+        int end = pos + length;
+        int i = pos;
+        boolean negative = length > 1 && buffer[i] == '-';
+        if (negative) {
+            i++;
+        }
+        if (i == end) {
+            throw new ProblemReadingDatabaseFile("A numeric field was empty");
+        }
+        long value = 0;
+        for (; i < end; i++) {
+            int digit = buffer[i] - '0';
+            if (digit < 0 || digit > 9 || value > Integer.MAX_VALUE) {
+                throw new ProblemReadingDatabaseFile("A numeric field had invalid characters");
+            }
+            value = value * 10 + digit;
+        }
+        value = negative ? -value : value;
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            throw new ProblemReadingDatabaseFile("A numeric field had invalid characters");
+        }
+        pos = end;
+        return (int) value;
+    }
+
+
+    public void skipField() throws IOException, ProblemReadingDatabaseFile {
+        if (format != FlatPackFormat.BINARY) {
+            pos += readFieldLength(FlatPackObject.TYPE_BYTES);
+            return;
+        }
+        require(1);
+        byte type = buffer[pos++];
+        switch (type) {
+            case FlatPackObject.TYPE_INT:
+                readVarint();
+                break;
+            case FlatPackObject.TYPE_STRING:
+            case FlatPackObject.TYPE_BYTES:
+            case FlatPackObject.TYPE_RECORD:
+                skip(readLength());
+                break;
+            default:
+                throw new ProblemReadingDatabaseFile("Unknown field type " + type);
+        }
+    }
+
+
+    /**
+     * Copy the next n fields to out exactly as they're encoded, without
+     * decoding them. Used to find where each account ends so the accounts
+     * can be handed to another reader (and thread) to decode.
+     */
+    void copyFields(int n, OutputStream out) throws IOException, ProblemReadingDatabaseFile {
+        for (int i = 0; i < n; i++) {
+            if (format != FlatPackFormat.BINARY) {
+                require(FlatPackObject.LENGTH_FIELD_NUM_CHARS);
+                out.write(buffer, pos, FlatPackObject.LENGTH_FIELD_NUM_CHARS);
+                copy(readFieldLength(FlatPackObject.TYPE_BYTES), out);
+                continue;
+            }
+            require(1);
+            byte type = buffer[pos++];
+            out.write(type);
+            switch (type) {
+                case FlatPackObject.TYPE_INT:
+                    writeVarint(readVarint(), out);
+                    break;
+                case FlatPackObject.TYPE_STRING:
+                case FlatPackObject.TYPE_BYTES:
+                case FlatPackObject.TYPE_RECORD:
+                    int length = readLength();
+                    writeVarint(length, out);
+                    copy(length, out);
+                    break;
+                default:
+                    throw new ProblemReadingDatabaseFile("Unknown field type " + type);
+            }
+        }
+    }
+
+
+    /**
+     * Start reading a record written by FlatPackWriter.beginRecord(). Pass
+     * the returned value to endRecord() once the fields you know about have
+     * been read and any fields added by newer versions will be skipped.
+     */
+    public long beginRecord() throws IOException, ProblemReadingDatabaseFile {
+        if (format != FlatPackFormat.BINARY) {
+            return -1;
+        }
+        readType(FlatPackObject.TYPE_RECORD);
+        int length = readLength();
+        return position() + length;
+    }
+
+
+    public void endRecord(long end) throws IOException, ProblemReadingDatabaseFile {
+        if (format != FlatPackFormat.BINARY) {
+            return;
+        }
+        long remaining = end - position();
+        if (remaining < 0) {
+            throw new ProblemReadingDatabaseFile("A record was shorter than its fields");
+        }
+        skip(remaining);
+    }
+
+
+    /**
+     * @return the offset of the cursor from the start of the data
+     */
+    private long position() {
+        return bufferStart + pos;
+    }
+
+
+    private void readType(byte expectedType) throws IOException, ProblemReadingDatabaseFile {
+        require(1);
+        byte type = buffer[pos++];
+        if (type != expectedType) {
+            throw new ProblemReadingDatabaseFile("Expected a field of type " + expectedType
+                    + " but found " + type);
+        }
+    }
+
+
+    /**
+     * Parse the field length and make sure the whole field body is in the
+     * buffer, leaving the cursor at the start of the body.
+     */
+    private int readFieldLength(byte type) throws IOException, ProblemReadingDatabaseFile {
+        int length;
+        if (format == FlatPackFormat.BINARY) {
+            readType(type);
+            length = readLength();
+        } else {
+            require(FlatPackObject.LENGTH_FIELD_NUM_CHARS);
+            length = 0;
+            for (int i = 0; i < FlatPackObject.LENGTH_FIELD_NUM_CHARS; i++) {
+                int digit = buffer[pos + i] - '0';
+                if (digit < 0 || digit > 9) {
+                    throw new ProblemReadingDatabaseFile("A field length had invalid characters");
+                }
+                length = length * 10 + digit;
+            }
+            pos += FlatPackObject.LENGTH_FIELD_NUM_CHARS;
+        }
+        require(length);
+        return length;
+    }
+
+
+    private int readLength() throws IOException, ProblemReadingDatabaseFile {
+        int length = readVarint();
+        if (length < 0 || length > MAX_FIELD_LENGTH) {
+            throw new ProblemReadingDatabaseFile("Invalid field length " + (length & 0xffffffffL));
+        }
+        return length;
+    }
+
+
+    private int readVarint() throws IOException, ProblemReadingDatabaseFile {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            require(1);
+            byte b = buffer[pos++];
+            value |= (b & 0x7f) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new ProblemReadingDatabaseFile("A varint was longer than 5 bytes");
+    }
+
+
+    private void skip(long n) throws IOException {
+        while (n > 0) {
+            int available = limit - pos;
+            if (available == 0) {
+                refill();
+                continue;
+            }
+            int skipped = (int) Math.min(n, available);
+            pos += skipped;
+            n -= skipped;
+        }
+    }
+
+
+    private void copy(int n, OutputStream out) throws IOException {
+        while (n > 0) {
+            int available = limit - pos;
+            if (available == 0) {
+                refill();
+                continue;
+            }
+            int copied = Math.min(n, available);
+            out.write(buffer, pos, copied);
+            pos += copied;
+            n -= copied;
+        }
+    }
+
+
+    private static void writeVarint(int value, OutputStream out) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+
+    /**
+     * Fill the (empty) buffer with as much as the source will give us in one
+     * read. Used when the bytes are going to be passed over rather than
+     * decoded, require(1) would read them one at a time.
+     */
+    private void refill() throws IOException {
+        if (!hasMoreFields()) {
+            throw new EOFException();
+        }
+    }
+
+
+    /**
+     * Ensure there are at least n unread bytes in the buffer
+     */
+    private void require(int n) throws IOException {
+        if (limit - pos >= n) {
+            return;
+        }
+        if (source == null) {
+            throw new EOFException();
+        }
+
+        // Move the unread bytes to the front of the buffer
+        int unread = limit - pos;
+        System.arraycopy(buffer, pos, buffer, 0, unread);
+        bufferStart += pos;
+        pos = 0;
+        limit = unread;
+
+        while (limit < n) {
+            // Only grow the buffer as the data actually arrives so a bogus
+            // length can't make us allocate a huge array up front
+            if (limit == buffer.length) {
+                buffer = Arrays.copyOf(buffer, (int) Math.min(n, buffer.length * 2L));
+            }
+            int bytesRead = source.read(buffer, limit, Math.min(n, buffer.length) - limit);
+            if (bytesRead == -1) {
+                throw new EOFException();
+            }
+            limit += bytesRead;
+        }
+    }
+
+}
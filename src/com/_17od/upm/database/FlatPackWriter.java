@@ -0,0 +1,346 @@
+/*
+ * Universal Password Manager
+ * Copyright (C) 2005-2013 Adrian Smith
+ *
+ * This file is part of Universal Password Manager.
+ *   
+ * Universal Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Universal Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Universal Password Manager; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com._17od.upm.database;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+
+/**
+ * Encodes fields in the format read by FlatPackReader. Everything is written
+ * into a single growable buffer which can be drained to an OutputStream and
+ * reused, so flatpacking an object doesn't allocate anything once the buffer
+ * has grown to fit the largest object.
+ */
+public final class FlatPackWriter {
+
+    private static final int DEFAULT_BUFFER_SIZE = 1024;
+
+    // The space reserved for a record's length until the record is complete
+    private static final int MAX_VARINT_LENGTH = 5;
+
+    private final FlatPackFormat format;
+    private byte[] buffer;
+    private int count;
+
+
+    public FlatPackWriter() {
+        this(FlatPackFormat.ASCII);
+    }
+
+
+    public FlatPackWriter(FlatPackFormat format) {
+        this(format, DEFAULT_BUFFER_SIZE);
+    }
+
+
+    public FlatPackWriter(FlatPackFormat format, int initialSize) {
+        this.format = format;
+        buffer = new byte[initialSize];
+    }
+
+
+    public FlatPackFormat getFormat() {
+        return format;
+    }
+
+
+    /**
+     * Write the given string as a field, encoding it as UTF-8 directly into
+     * the buffer
+     */
+    public void writeString(String s) throws FieldTooLongException {
+        if (format == FlatPackFormat.BINARY) {
+            int length = utf8Length(s);
+            ensureCapacity(count + 1 + MAX_VARINT_LENGTH + length);
+            buffer[count++] = FlatPackObject.TYPE_STRING;
+            count = writeVarint(length, count);
+            count = encodeUTF8(s, buffer, count);
+        } else {
+            // UTF-8 needs at most three bytes per char (a surrogate pair is
+            // two chars encoded as four bytes)
+            ensureCapacity(count + FlatPackObject.LENGTH_FIELD_NUM_CHARS + s.length() * 3);
+            int bodyStart = count + FlatPackObject.LENGTH_FIELD_NUM_CHARS;
+            int bodyEnd = encodeUTF8(s, buffer, bodyStart);
+            writeFieldLength(bodyEnd - bodyStart);
+        }
+    }
+
+
+    /**
+     * Write a string field from bytes that are already UTF-8 encoded
+     */
+    void writeUTF8(byte[] utf8, int offset, int length) throws FieldTooLongException {
+        writeField(FlatPackObject.TYPE_STRING, utf8, offset, length);
+    }
+
+
+    /**
+     * Write a string field from the UTF-8 bytes between the buffer's
+     * position and limit. The buffer's position isn't changed.
+     */
+    void writeUTF8(ByteBuffer utf8) throws FieldTooLongException {
+        int length = utf8.remaining();
+        int bodyStart = beginField(FlatPackObject.TYPE_STRING, length);
+        utf8.duplicate().get(buffer, bodyStart, length);
+        endField(length);
+    }
+
+
+    public void writeBytes(byte[] bytes) throws FieldTooLongException {
+        writeField(FlatPackObject.TYPE_BYTES, bytes, 0, bytes.length);
+    }
+
+
+    public void writeInt(int i) throws FieldTooLongException {
+        if (format == FlatPackFormat.BINARY) {
+            ensureCapacity(count + 1 + MAX_VARINT_LENGTH);
+            buffer[count++] = FlatPackObject.TYPE_INT;
+            // Zigzag encode so that small negative numbers stay small
+            count = writeVarint((i << 1) ^ (i >> 31), count);
+            return;
+        }
+
+        // An int is at most 11 chars long (including the sign)
+        ensureCapacity(count + FlatPackObject.LENGTH_FIELD_NUM_CHARS + 11);
+        int bodyStart = count + FlatPackObject.LENGTH_FIELD_NUM_CHARS;
+        int bodyEnd = bodyStart;
+        long value = i;
+        if (value < 0) {
+            buffer[bodyEnd++] = '-';
+            value = -value;
+        }
+        int numDigits = numDigits(value);
+        writeDigits(value, bodyEnd, numDigits);
+        bodyEnd += numDigits;
+        writeFieldLength(bodyEnd - bodyStart);
+    }
+
+
+    /**
+     * Start a record, a group of fields that a reader can skip over as a
+     * whole. Pass the returned mark to endRecord() once the fields have been
+     * written. Records are only framed in the BINARY format, in the ASCII
+     * format the fields are written one after another as before.
+     */
+    public int beginRecord() {
+        if (format != FlatPackFormat.BINARY) {
+            return count;
+        }
+        ensureCapacity(count + 1 + MAX_VARINT_LENGTH);
+        buffer[count++] = FlatPackObject.TYPE_RECORD;
+        int mark = count;
+        count += MAX_VARINT_LENGTH;
+        return mark;
+    }
+
+
+    public void endRecord(int mark) {
+        if (format != FlatPackFormat.BINARY) {
+            return;
+        }
+        // Write the record length in the space reserved for it and move the
+        // fields back over whatever space the length didn't need
+        int bodyStart = mark + MAX_VARINT_LENGTH;
+        int length = count - bodyStart;
+        int lengthEnd = writeVarint(length, mark);
+        System.arraycopy(buffer, bodyStart, buffer, lengthEnd, length);
+        count = lengthEnd + length;
+    }
+
+
+    /**
+     * @return the number of bytes waiting in the buffer
+     */
+    public int size() {
+        return count;
+    }
+
+
+    /**
+     * Write the contents of the buffer to the given stream. The buffer isn't
+     * cleared, call reset() for that.
+     */
+    public void writeTo(OutputStream os) throws IOException {
+        os.write(buffer, 0, count);
+    }
+
+
+    /**
+     * Empty the buffer so that it can be reused
+     */
+    public void reset() {
+        count = 0;
+    }
+
+
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buffer, count);
+    }
+
+
+    private void writeField(byte type, byte[] bytes, int offset, int length) throws FieldTooLongException {
+        int bodyStart = beginField(type, length);
+        System.arraycopy(bytes, offset, buffer, bodyStart, length);
+        endField(length);
+    }
+
+
+    /**
+     * Make room for a field with a body of the given length
+     * @return the position the body should be written at
+     */
+    private int beginField(byte type, int length) {
+        if (format == FlatPackFormat.BINARY) {
+            ensureCapacity(count + 1 + MAX_VARINT_LENGTH + length);
+            buffer[count++] = type;
+            count = writeVarint(length, count);
+            return count;
+        }
+        ensureCapacity(count + FlatPackObject.LENGTH_FIELD_NUM_CHARS + length);
+        return count + FlatPackObject.LENGTH_FIELD_NUM_CHARS;
+    }
+
+
+    private void endField(int length) throws FieldTooLongException {
+        if (format == FlatPackFormat.BINARY) {
+            count += length;
+        } else {
+            writeFieldLength(length);
+        }
+    }
+
+
+    /**
+     * Fill in the length digits in front of a body that's already been
+     * written after the space left for them
+     */
+    private void writeFieldLength(int length) throws FieldTooLongException {
+        if (length > FlatPackObject.MAX_ASCII_FIELD_LENGTH) {
+            // Don't let the length spill into the body, the field would be
+            // unreadable
+            throw new FieldTooLongException("A field of " + length
+                    + " bytes is too long to be stored in this database version");
+        }
+        writeDigits(length, count, FlatPackObject.LENGTH_FIELD_NUM_CHARS);
+        count += FlatPackObject.LENGTH_FIELD_NUM_CHARS + length;
+    }
+
+
+    /**
+     * Write value as an unsigned LEB128 varint starting at pos
+     * @return the position after the last byte written
+     */
+    private int writeVarint(int value, int pos) {
+        while ((value & ~0x7f) != 0) {
+            buffer[pos++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        buffer[pos++] = (byte) value;
+        return pos;
+    }
+
+
+    /**
+     * Write value as numDigits ASCII digits (zero padded) starting at pos
+     */
+    private void writeDigits(long value, int pos, int numDigits) {
+        for (int i = pos + numDigits - 1; i >= pos; i--) {
+            buffer[i] = (byte) ('0' + (value % 10));
+            value /= 10;
+        }
+    }
+
+
+    private static int numDigits(long value) {
+        int numDigits = 1;
+        while (value >= 10) {
+            value /= 10;
+            numDigits++;
+        }
+        return numDigits;
+    }
+
+
+    /**
+     * Encode s as UTF-8 into b starting at pos. Unpaired surrogates are
+     * replaced with '?', as String.getBytes() does.
+     * @return the position after the last byte written
+     */
+    static int encodeUTF8(CharSequence s, byte[] b, int pos) {
+        int length = s.length();
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                b[pos++] = (byte) c;
+            } else if (c < 0x800) {
+                b[pos++] = (byte) (0xc0 | (c >> 6));
+                b[pos++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, s.charAt(++i));
+                b[pos++] = (byte) (0xf0 | (codePoint >> 18));
+                b[pos++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                b[pos++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                b[pos++] = (byte) (0x80 | (codePoint & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                b[pos++] = '?';
+            } else {
+                b[pos++] = (byte) (0xe0 | (c >> 12));
+                b[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                b[pos++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        return pos;
+    }
+
+
+    static int utf8Length(CharSequence s) {
+        int length = s.length();
+        int utf8Length = length;
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c >= 0x800) {
+                if (Character.isHighSurrogate(c) && i + 1 < length
+                        && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    // Two chars, four bytes
+                    utf8Length += 2;
+                    i++;
+                } else if (!Character.isSurrogate(c)) {
+                    utf8Length += 2;
+                }
+            } else if (c >= 0x80) {
+                utf8Length++;
+            }
+        }
+        return utf8Length;
+    }
+
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(capacity, buffer.length * 2));
+        }
+    }
+
+}
@@ -0,0 +1,198 @@
+/*
+ * Universal Password Manager
+ * Copyright (C) 2005-2013 Adrian Smith
+ *
+ * This file is part of Universal Password Manager.
+ *   
+ * Universal Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Universal Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Universal Password Manager; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com._17od.upm.database;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+
+/**
+ * Reads the accounts at the end of a database in two passes. The reading
+ * thread only finds where each account ends, which is just a matter of
+ * following the field lengths, and copies the accounts into batches. Each
+ * full batch is decoded on the common ForkJoinPool while the reading thread
+ * carries on decrypting and splitting up the rest of the database.
+ * 
+ * A database small enough to fit in a single batch is decoded on the
+ * reading thread without involving the pool at all.
+ */
+final class ParallelAccountReader {
+
+    // Big enough that a batch is worth handing to another thread, small
+    // enough that a few hundred thousand accounts are spread over all the
+    // cores
+    static final int BATCH_SIZE = 256 * 1024;
+
+    // The number of fields written by AccountInformation.flatPack(). In the
+    // BINARY format they're wrapped in a single record.
+    private static final int ACCOUNT_FIELDS = 5;
+
+    private final FlatPackReader reader;
+    private final Charset charset;
+    private final int fieldsPerAccount;
+
+
+    ParallelAccountReader(FlatPackReader reader, Charset charset) {
+        this.reader = reader;
+        this.charset = charset;
+        this.fieldsPerAccount = reader.getFormat() == FlatPackFormat.BINARY ? 1 : ACCOUNT_FIELDS;
+    }
+
+
+    /**
+     * Read accounts until the reader runs out of fields. If two accounts
+     * have the same name the last one wins, as it always has.
+     */
+    HashMap<String,AccountInformation> readAccounts() throws IOException, ProblemReadingDatabaseFile {
+        ArrayDeque<ForkJoinTask<List<AccountInformation>>> decoding = new ArrayDeque<>();
+        try {
+            Batch batch = new Batch();
+            while (reader.hasMoreFields()) {
+                reader.copyFields(fieldsPerAccount, batch);
+                if (batch.size() >= BATCH_SIZE) {
+                    decoding.add(ForkJoinPool.commonPool().submit(new Decoder(batch)));
+                    batch = new Batch();
+                }
+            }
+
+            HashMap<String,AccountInformation> accounts = new HashMap<>();
+            while (!decoding.isEmpty()) {
+                put(accounts, join(decoding.remove()));
+            }
+            put(accounts, new Decoder(batch).call());
+            return accounts;
+        } finally {
+            for (ForkJoinTask<List<AccountInformation>> task : decoding) {
+                task.cancel(false);
+            }
+        }
+    }
+
+
+    private static void put(HashMap<String,AccountInformation> accounts, List<AccountInformation> decoded) {
+        for (AccountInformation ai : decoded) {
+            accounts.put(ai.getAccountName(), ai);
+        }
+    }
+
+
+    private static List<AccountInformation> join(ForkJoinTask<List<AccountInformation>> task) throws IOException, ProblemReadingDatabaseFile {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading the accounts", e);
+        } catch (ExecutionException e) {
+            // The pool may have wrapped the exception thrown by the decoder
+            // (more than once) so look for it in the chain of causes
+            for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                if (cause instanceof ProblemReadingDatabaseFile) {
+                    throw (ProblemReadingDatabaseFile) cause;
+                }
+            }
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+
+    /**
+     * Decodes the accounts in a batch and wipes it.
+     */
+    private final class Decoder implements Callable<List<AccountInformation>> {
+
+        private final Batch batch;
+
+        Decoder(Batch batch) {
+            this.batch = batch;
+        }
+
+        public List<AccountInformation> call() throws IOException, ProblemReadingDatabaseFile {
+            try {
+                FlatPackReader batchReader = new FlatPackReader(batch.bytes, 0, batch.count, reader.getFormat());
+                List<AccountInformation> accounts = new ArrayList<>();
+                while (batchReader.hasMoreFields()) {
+                    accounts.add(new AccountInformation(batchReader, charset));
+                }
+                return accounts;
+            } finally {
+                batch.wipe();
+            }
+        }
+
+    }
+
+
+    /**
+     * Accounts copied out of the decrypted stream waiting to be decoded.
+     * Unlike a ByteArrayOutputStream it wipes the old array when it grows.
+     */
+    private static final class Batch extends OutputStream {
+
+        private byte[] bytes = new byte[8192];
+        private int count;
+
+        int size() {
+            return count;
+        }
+
+        public void write(int b) {
+            ensureCapacity(count + 1);
+            bytes[count++] = (byte) b;
+        }
+
+        public void write(byte[] b, int off, int len) {
+            ensureCapacity(count + len);
+            System.arraycopy(b, off, bytes, count, len);
+            count += len;
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (capacity > bytes.length) {
+                byte[] old = bytes;
+                bytes = Arrays.copyOf(old, Math.max(capacity, old.length * 2));
+                Arrays.fill(old, (byte) 0);
+            }
+        }
+
+        void wipe() {
+            Arrays.fill(bytes, 0, count, (byte) 0);
+        }
+
+    }
+
+}
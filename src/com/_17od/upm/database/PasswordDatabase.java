@@ -21,6 +21,7 @@
 package com._17od.upm.database;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 
@@ -35,6 +36,19 @@ public class PasswordDatabase {
     private final Revision revision;
     private final DatabaseOptions dbOptions;
     private final HashMap<String,AccountInformation> accounts;
+    private int dbVersion = PasswordDatabasePersistence.DEFAULT_DB_VERSION;
+    private boolean compressed = true;
+
+    // The passwords and notes of the accounts, kept off the heap
+    private final SecretStore secrets = new SecretStore();
+
+    // Accounts that are still encrypted in the database file. Each one is
+    // moved into accounts the first time it's asked for.
+    private RecordIndex unloadedAccounts;
+
+    // A copy of a journal that couldn't all be replayed, see
+    // DatabaseJournal.getConflictFile()
+    private File journalConflictFile;
 
     
     public PasswordDatabase(Revision revision, DatabaseOptions dbOptions, HashMap<String,AccountInformation> accounts, File databaseFile) {
@@ -42,6 +56,9 @@ public class PasswordDatabase {
         this.dbOptions = dbOptions;
         this.accounts = accounts;
         this.databaseFile = databaseFile;
+        for (AccountInformation ai : accounts.values()) {
+            ai.moveSecretsTo(secrets);
+        }
     }
 
 
@@ -53,29 +70,143 @@ public class PasswordDatabase {
     }
     
 
+    PasswordDatabase(Revision revision, DatabaseOptions dbOptions, RecordIndex unloadedAccounts, File databaseFile) {
+        this(revision, dbOptions, new HashMap<String,AccountInformation>(), databaseFile);
+        this.unloadedAccounts = unloadedAccounts;
+    }
+
+
     public void addAccount(AccountInformation ai) {
+        if (unloadedAccounts != null) {
+            unloadedAccounts.remove(ai.getAccountName());
+        }
+        ai.moveSecretsTo(secrets);
         accounts.put(ai.getAccountName(), ai);
     }
     
 
     public void deleteAccount(String accountName) {
+        if (unloadedAccounts != null) {
+            unloadedAccounts.remove(accountName);
+        }
         accounts.remove(accountName);
     }
 
     
-    public AccountInformation getAccount(String name) {
-        return accounts.get(name);
+    /**
+     * Get the named account, decrypting it from the database file if it
+     * hasn't been needed before
+     * @throws ProblemReadingDatabaseFile if the account's record can't be
+     * read, e.g. because the file has been replaced since it was loaded
+     */
+    public AccountInformation getAccount(String name) throws ProblemReadingDatabaseFile {
+        AccountInformation ai = accounts.get(name);
+        if (ai == null && unloadedAccounts != null && unloadedAccounts.get(name) != null) {
+            ai = loadAccount(name);
+        }
+        return ai;
     }
 
 
-    public ArrayList<AccountInformation> getAccounts() {
-        return new ArrayList<>(accounts.values());
+    /**
+     * @return the names of all the accounts. Unlike getAccounts() this
+     * doesn't need to decrypt any accounts.
+     */
+    public ArrayList<String> getAccountNames() {
+        ArrayList<String> accountNames = new ArrayList<>(accounts.keySet());
+        if (unloadedAccounts != null) {
+            accountNames.addAll(unloadedAccounts.getAccountNames());
+        }
+        return accountNames;
     }
 
 
-    public HashMap<String,AccountInformation> getAccountsHash() {
+    public ArrayList<AccountInformation> getAccounts() throws ProblemReadingDatabaseFile {
+        return new ArrayList<>(getAccountsHash().values());
+    }
+
+
+    public HashMap<String,AccountInformation> getAccountsHash() throws ProblemReadingDatabaseFile {
+        if (unloadedAccounts != null) {
+            for (String name : new ArrayList<>(unloadedAccounts.getAccountNames())) {
+                loadAccount(name);
+            }
+            unloadedAccounts = null;
+        }
         return accounts;
     }
+
+
+    private AccountInformation loadAccount(String name) throws ProblemReadingDatabaseFile {
+        try {
+            AccountInformation ai = unloadedAccounts.readAccount(name);
+            unloadedAccounts.remove(name);
+            ai.moveSecretsTo(secrets);
+            accounts.put(name, ai);
+            return ai;
+        } catch (IOException e) {
+            throw new ProblemReadingDatabaseFile("Couldn't read account [" + name + "]", e);
+        }
+    }
+
+
+    /**
+     * @return true if some of the accounts are still encrypted in the
+     * database file, so it mustn't be rewritten behind this object's back
+     */
+    public boolean hasUnloadedAccounts() {
+        return unloadedAccounts != null;
+    }
+
+
+    /**
+     * Wipe the decrypted fields of every account. Call this when the
+     * database is closed or locked, the accounts are unusable afterwards.
+     */
+    public void wipe() {
+        for (AccountInformation ai : accounts.values()) {
+            ai.wipe();
+        }
+        secrets.wipe();
+    }
+
+
+    /**
+     * @return the accounts that have been decrypted so far
+     */
+    HashMap<String,AccountInformation> getLoadedAccounts() {
+        return accounts;
+    }
+
+
+    /**
+     * @return the accounts that haven't been decrypted yet, or null if there
+     * aren't any
+     */
+    RecordIndex getUnloadedAccounts() {
+        return unloadedAccounts;
+    }
+
+
+    void setUnloadedAccounts(RecordIndex unloadedAccounts) {
+        this.unloadedAccounts = unloadedAccounts;
+    }
+
+
+    /**
+     * @return a copy of the database's journal if some of its changes
+     * conflicted with the database file and weren't applied when it was
+     * loaded, otherwise null. The database should be saved in full before
+     * any more changes are journalled.
+     */
+    public File getJournalConflictFile() {
+        return journalConflictFile;
+    }
+
+
+    void setJournalConflictFile(File journalConflictFile) {
+        this.journalConflictFile = journalConflictFile;
+    }
     
     
     public File getDatabaseFile() {
@@ -97,4 +228,40 @@ public class PasswordDatabase {
         return revision.getRevision();
     }
 
+
+    /**
+     * @return the version of the file format this database is saved in
+     */
+    public int getDbVersion() {
+        return dbVersion;
+    }
+
+
+    /**
+     * Change the file format used the next time this database is saved.
+     * Upgrading is one way as far as older versions of UPM are concerned,
+     * they won't be able to open the database afterwards.
+     */
+    public void setDbVersion(int dbVersion) {
+        if (dbVersion < PasswordDatabasePersistence.DEFAULT_DB_VERSION
+                || dbVersion > PasswordDatabasePersistence.LATEST_DB_VERSION) {
+            throw new IllegalArgumentException("Unsupported database version " + dbVersion);
+        }
+        this.dbVersion = dbVersion;
+    }
+
+
+    /**
+     * @return true if the database is compressed before it's encrypted. Only
+     * version 6 onwards supports this, earlier versions ignore it.
+     */
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+
+    public void setCompressed(boolean compressed) {
+        this.compressed = compressed;
+    }
+
 }
@@ -20,23 +20,43 @@
  */
 package com._17od.upm.database;
 
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.EOFException;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
+import com._17od.upm.crypto.BlockCipherInputStream;
+import com._17od.upm.crypto.BlockCipherOutputStream;
+import com._17od.upm.crypto.ChunkedCipherOutputStream;
+import com._17od.upm.crypto.CryptoEngine;
+import com._17od.upm.crypto.CryptoEngines;
 import com._17od.upm.crypto.CryptoException;
-import com._17od.upm.crypto.DESDecryptionService;
 import com._17od.upm.crypto.EncryptionService;
 import com._17od.upm.crypto.InvalidPasswordException;
+import com._17od.upm.crypto.KeyDerivation;
 import com._17od.upm.util.Util;
 
 /**
@@ -45,6 +65,30 @@ import com._17od.upm.util.Util;
  * care of those differences.
  * 
  * Database versions and formats. The items between [] brackets are encrypted.
+ *   6     >> MAGIC_NUMBER DB_VERSION SALT FLAGS (REVISION) (KDF) (HEADER_MAC) [DB_REVISION DB_OPTIONS ACCOUNTS]
+ *      (laid out as version 4 with a byte of flags after the salt. If
+ *      FLAG_COMPRESSED is set the fields are deflated before they're
+ *      encrypted. If FLAG_REVISION is set an unencrypted copy of the
+ *      revision follows the flags as a 4 byte int so that it can be read
+ *      without the password, see DatabaseProbe. If FLAG_CHUNKED is set
+ *      the fields are encrypted in chunks using AES-GCM rather than as one
+ *      AES-CBC stream, see ChunkedCipherOutputStream. Every chunk is
+ *      authenticated together with the unencrypted header. If FLAG_KDF is
+ *      set the key isn't derived the legacy way, KDF is a byte holding the
+ *      algorithm followed by a 4 byte int holding the number of iterations,
+ *      see KeyDerivation. If FLAG_HEADER_MAC is set the header ends with
+ *      a MAC of everything before it so that the revision can be trusted
+ *      without decrypting the database, see getVerifiedRevision().)
+ *   5     >> MAGIC_NUMBER DB_VERSION SALT INDEX_LENGTH INDEX_NONCE [INDEX] [ACCOUNT]...
+ *      INDEX = DB_REVISION DB_OPTIONS (ACCOUNT_NAME RECORD_OFFSET RECORD_LENGTH RECORD_NONCE)...
+ *      (the index and each account are encrypted separately using AES-GCM so
+ *      that accounts can be decrypted one at a time. The index is
+ *      authenticated together with the unencrypted header and each account
+ *      together with its name. Record offsets are relative to the end of the
+ *      index. Fields are encoded as in version 4.)
+ *   4     >> MAGIC_NUMBER DB_VERSION SALT [DB_REVISION DB_OPTIONS ACCOUNTS]
+ *      (fields are typed and their lengths are stored as binary varints so
+ *      there's no limit on the length of a field, see FlatPackFormat.BINARY)
  *   3     >> MAGIC_NUMBER DB_VERSION SALT [DB_REVISION DB_OPTIONS ACCOUNTS]
  *      (all strings are encoded using UTF-8)
  *   2     >> MAGIC_NUMBER DB_VERSION SALT [DB_REVISION DB_OPTIONS ACCOUNTS]
@@ -53,6 +97,8 @@ import com._17od.upm.util.Util;
  * 
  *   DB_VERSION = The structural version of the database
  *   SALT = The salt used to mix with the user password to create the key
+ *   FLAGS = Bits marking which optional features the database uses
+ *   KDF = How the key is derived from the password and salt
  *   DB_HEADER = Was used to store the structural version of the database (pre version 2)
  *   DB_OPTIONS = Options relating to the database
  *   ACCOUNTS = The account information
@@ -63,10 +109,75 @@ import com._17od.upm.util.Util;
  */
 public class PasswordDatabasePersistence {
 
-    private static final String FILE_HEADER = "UPM";
-    private static final int DB_VERSION = 3;
+    static final String FILE_HEADER = "UPM";
 
+    /**
+     * The version new databases are saved in. Older versions of UPM can't
+     * read anything newer so databases are only upgraded when the user asks.
+     */
+    public static final int DEFAULT_DB_VERSION = 3;
+    public static final int LATEST_DB_VERSION = 6;
+
+    // The version where each account is encrypted separately
+    private static final int RECORD_CONTAINER_VERSION = 5;
+
+    // The first version with a FLAGS byte after the salt
+    static final int FLAGS_VERSION = 6;
+
+    // The bits in FLAGS
+    static final int FLAG_COMPRESSED = 0x01;
+    static final int FLAG_REVISION = 0x02;
+    static final int FLAG_CHUNKED = 0x04;
+    static final int FLAG_KDF = 0x08;
+    static final int FLAG_HEADER_MAC = 0x10;
+    static final int SUPPORTED_FLAGS = FLAG_COMPRESSED | FLAG_REVISION | FLAG_CHUNKED | FLAG_KDF | FLAG_HEADER_MAC;
+
+    // Positions of the unencrypted items at the start of the file
+    static final int DB_VERSION_POS = FILE_HEADER.length();
+    static final int SALT_POS = DB_VERSION_POS + 1;
+    private static final int HEADER_LENGTH = SALT_POS + EncryptionService.SALT_LENGTH;
+    static final int FLAGS_POS = HEADER_LENGTH;
+    static final int REVISION_POS = FLAGS_POS + 1;
+    private static final int KDF_LENGTH = 5;
+
+    /**
+     * The longest the unencrypted header can be. Reading this much of a
+     * database is enough for getVerifiedRevision().
+     */
+    public static final int MAX_HEADER_LENGTH = REVISION_POS + 4 + KDF_LENGTH + EncryptionService.MAC_LENGTH;
+
+    private static final int FLATPACK_BUFFER_SIZE = 8192;
+
+    // Guards against allocating a huge buffer for a corrupt index length
+    private static final int MAX_INDEX_LENGTH = 64 * 1024 * 1024;
+
+    // Don't bother compacting a journal smaller than this
+    private static final long MIN_JOURNAL_COMPACTION_LENGTH = 64 * 1024;
+
+    // Serialises writes to the database file and its journal so that a
+    // journal can be compacted on a background thread
+    private static final Object JOURNAL_LOCK = new Object();
+
+    // Files at least this big are memory mapped rather than read through a
+    // stream when the read mode is AUTO
+    private static final long MAPPED_READ_THRESHOLD = 1024 * 1024;
+
+    // Windows won't let a file be replaced while it's mapped and a mapping
+    // isn't released until it's garbage collected, which would make the
+    // next save fail
+    private static final boolean CAN_REPLACE_MAPPED_FILES =
+            !System.getProperty("os.name", "").startsWith("Windows");
+
+    /**
+     * How the database file is read. MAPPED feeds the decryptor straight
+     * from a memory mapping of the file, STREAM reads it in chunks through
+     * an InputStream.
+     */
+    enum ReadMode { AUTO, STREAM, MAPPED }
+
+    private final CryptoEngine cryptoEngine = CryptoEngines.getPreferred();
     private EncryptionService encryptionService;
+    private ReadMode readMode = ReadMode.AUTO;
 
     /**
      * Used when we have a password and we want to get an instance of the class
@@ -81,275 +192,873 @@ public class PasswordDatabasePersistence {
      * @throws CryptoException
      */
     public PasswordDatabasePersistence(char[] password) throws CryptoException {
-        encryptionService = new EncryptionService(password);
+        encryptionService = new EncryptionService(password, cryptoEngine);
     }
 
     public PasswordDatabase load(File databaseFile) throws InvalidPasswordException, ProblemReadingDatabaseFile, IOException {
 
-        byte[] fullDatabase = readFile(databaseFile);
+        PasswordDatabase database;
 
-        // Check the database is a minimum length
-        if (fullDatabase.length < EncryptionService.SALT_LENGTH) {
-            throw new ProblemReadingDatabaseFile("This file doesn't appear to be a UPM password database");
+        try (InputStream fileStream = openDatabaseFile(databaseFile)) {
+
+            // Ensure this is a real UPM database by checking for the existence of 
+            // the string "UPM" at the start of the file
+            byte[] header = readHeader(fileStream);
+            if (!isUPMDatabase(header)) {
+                // This might be an old database (pre version 2).
+                // By throwing InvalidPasswordException the calling method can ask
+                // the user for the password so that the load(File, char[]) method
+                // can be called. That method knows how to load old versions of the
+                // db
+                throw new InvalidPasswordException();
+            }
+
+            try {
+                database = readDatabase(fileStream, header, databaseFile);
+            } catch (IOException e) {
+                throw new ProblemReadingDatabaseFile(e.getMessage(), e);
+            }
         }
 
-        PasswordDatabase passwordDatabase;
-        ByteArrayInputStream is;
-        Revision revision;
-        DatabaseOptions dbOptions;
-        HashMap<String,AccountInformation> accounts;
-        Charset charset = StandardCharsets.UTF_8;
+        replayJournal(database);
+        return database;
+    }
 
-        // Ensure this is a real UPM database by checking for the existence of 
-        // the string "UPM" at the start of the file
-        byte[] header = new byte[FILE_HEADER.getBytes().length];
-        System.arraycopy(fullDatabase, 0, header, 0, header.length);
-        if (Arrays.equals(header, FILE_HEADER.getBytes())) {
-
-            // Calculate the positions of each item in the file
-            int dbVersionPos      = header.length;
-            int saltPos           = dbVersionPos + 1;
-            int encryptedBytesPos = saltPos + EncryptionService.SALT_LENGTH;
-
-            // Get the database version 
-            byte dbVersion = fullDatabase[dbVersionPos];
-
-            if (dbVersion == 2 || dbVersion == 3) {
-                byte[] salt = new byte[EncryptionService.SALT_LENGTH];
-                System.arraycopy(fullDatabase, saltPos, salt, 0, EncryptionService.SALT_LENGTH);
-                int encryptedBytesLength = fullDatabase.length - encryptedBytesPos;
-                byte[] encryptedBytes = new byte[encryptedBytesLength]; 
-                System.arraycopy(fullDatabase, encryptedBytesPos, encryptedBytes, 0, encryptedBytesLength);
-
-                // From version 3 onwards Strings in AccountInformation are
-                // encoded using UTF-8. To ensure we can still open older dbs
-                // we default back to the then character set, the system default
-                if (dbVersion < 3) {
-                    charset = Util.defaultCharset();
-                }
+    public PasswordDatabase load(File databaseFile, char[] password) throws IOException, ProblemReadingDatabaseFile, InvalidPasswordException, CryptoException {
+
+        PasswordDatabase database = null;
+
+        try (InputStream fileStream = openDatabaseFile(databaseFile)) {
+
+            // Ensure this is a real UPM database by checking for the existence of 
+            // the string "UPM" at the start of the file
+            byte[] header = readHeader(fileStream);
+            if (isUPMDatabase(header)) {
+                getDatabaseVersion(header);
+                byte[] salt = Arrays.copyOfRange(header, SALT_POS, SALT_POS + EncryptionService.SALT_LENGTH);
 
                 //Attempt to decrypt the database information
-                byte[] decryptedBytes;
-                try {
-                    decryptedBytes = encryptionService.decrypt(encryptedBytes);
-                } catch (CryptoException e1) {
-                    throw new InvalidPasswordException();
-                }
+                encryptionService = new EncryptionService(password, salt, getKeyDerivation(header), cryptoEngine);
+                database = readDatabase(fileStream, header, databaseFile);
+            }
+        }
 
-                //If we've got here then the database was successfully decrypted 
-                is = new ByteArrayInputStream(decryptedBytes);
-                try {
-                    revision = new Revision(is);
-                    dbOptions = new DatabaseOptions(is);
-    
-                    // Read the remainder of the database in now
-                    accounts = new HashMap<>();
-                    try {
-                        while (true) { //keep loading accounts until an EOFException is thrown
-                            AccountInformation ai = new AccountInformation(is, charset);
-                            accounts.put(ai.getAccountName(), ai);
-                        }
-                    } catch (EOFException e) {
-                        //just means we hit eof
-                    }
-                    is.close();
-                } catch (IOException e) {
-                    throw new ProblemReadingDatabaseFile(e.getMessage(), e);
-                }
+        if (database == null) {
+            // This might be an old database (pre version 2) so try loading it using the old database format
+            database = loadPreVersion2(databaseFile, password);
+        }
 
-                passwordDatabase = new PasswordDatabase(revision, dbOptions, accounts, databaseFile);
+        replayJournal(database);
+        return database;
+    }
+
+    void setReadMode(ReadMode readMode) {
+        this.readMode = readMode;
+    }
 
-            } else {
-                throw new ProblemReadingDatabaseFile("Don't know how to handle database version [" + dbVersion + "]");
+    private InputStream openDatabaseFile(File databaseFile) throws IOException {
+        Path path = databaseFile.toPath();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            boolean mapped;
+            switch (readMode) {
+                case MAPPED:
+                    mapped = true;
+                    break;
+                case STREAM:
+                    mapped = false;
+                    break;
+                default:
+                    mapped = size >= MAPPED_READ_THRESHOLD && CAN_REPLACE_MAPPED_FILES;
             }
+            if (mapped && size <= Integer.MAX_VALUE) {
+                // The mapping stays valid once the channel is closed
+                return new MappedInputStream(channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+            }
+        }
+        return Files.newInputStream(path);
+    }
+
+    private InputStream decrypt(InputStream encryptedStream) {
+        if (encryptedStream instanceof MappedInputStream) {
+            return encryptionService.decrypt(((MappedInputStream) encryptedStream).takeRemaining());
+        }
+        return encryptionService.decrypt(encryptedStream);
+    }
 
+    /**
+     * Apply any changes saved with saveChange() since the database file was
+     * last written in full
+     */
+    private void replayJournal(PasswordDatabase database) throws IOException, ProblemReadingDatabaseFile {
+        synchronized (JOURNAL_LOCK) {
+            DatabaseJournal journal = getJournal(database);
+            journal.replay(database);
+            database.setJournalConflictFile(journal.getConflictFile());
+        }
+    }
+
+    /**
+     * Decrypt and parse everything after the salt. The accounts are parsed
+     * as the bytes are decrypted so at no point is there a copy of the whole
+     * database in memory.
+     */
+    private PasswordDatabase readDatabase(InputStream encryptedStream, byte[] header, File databaseFile) throws InvalidPasswordException, ProblemReadingDatabaseFile, IOException {
+
+        byte dbVersion = getDatabaseVersion(header);
+        if (dbVersion == RECORD_CONTAINER_VERSION) {
+            return readIndex(encryptedStream, header, databaseFile);
+        }
+        int flags = getFlags(header);
+
+        // From version 3 onwards Strings in AccountInformation are
+        // encoded using UTF-8. To ensure we can still open older dbs
+        // we default back to the then character set, the system default
+        Charset charset = StandardCharsets.UTF_8;
+        if (dbVersion < 3) {
+            charset = Util.defaultCharset();
+        }
+
+        InputStream is;
+        if ((flags & FLAG_CHUNKED) != 0) {
+            is = encryptionService.decryptChunked(encryptedStream, header);
         } else {
-            
-            // This might be an old database (pre version 2).
-            // By throwing InvalidPasswordException the calling method can ask
-            // the user for the password so that the load(File, char[]) method
-            // can be called. That method knows how to load old versions of the
-            // db
+            is = decrypt(encryptedStream);
+        }
+        Inflater inflater = null;
+        InputStream fieldStream = is;
+        if ((flags & FLAG_COMPRESSED) != 0) {
+            inflater = new Inflater();
+            fieldStream = new InflaterInputStream(is, inflater, FLATPACK_BUFFER_SIZE);
+        }
+        FlatPackReader reader = new FlatPackReader(fieldStream, getFormat(dbVersion));
+        try {
+            Revision revision = new Revision(reader);
+            if ((flags & FLAG_REVISION) != 0 && revision.getRevision() != getInt(header, REVISION_POS)) {
+                // Someone's been editing the unencrypted header
+                throw new ProblemReadingDatabaseFile("The revision in the database header doesn't match the database");
+            }
+            DatabaseOptions dbOptions = new DatabaseOptions(reader);
+            HashMap<String,AccountInformation> accounts = readAccounts(reader, charset);
+            PasswordDatabase database = new PasswordDatabase(revision, dbOptions, accounts, databaseFile);
+            // Version 2 databases are upgraded to version 3 when they're saved
+            database.setDbVersion(Math.max(dbVersion, DEFAULT_DB_VERSION));
+            if (dbVersion >= FLAGS_VERSION) {
+                database.setCompressed((flags & FLAG_COMPRESSED) != 0);
+            }
+            return database;
+        } catch (IOException e) {
+            if (BlockCipherInputStream.isDecryptionFailure(e) || !decryptsCleanly(is)) {
+                throw new InvalidPasswordException();
+            }
+            throw e;
+        } catch (ProblemReadingDatabaseFile e) {
+            if (!decryptsCleanly(is)) {
+                throw new InvalidPasswordException();
+            }
+            throw e;
+        } finally {
+            if (inflater != null) {
+                inflater.end();
+            }
+        }
+
+    }
+
+    /**
+     * Decrypt the index of a version 5 database. None of the accounts are
+     * decrypted, PasswordDatabase does that as they're needed.
+     */
+    private PasswordDatabase readIndex(InputStream is, byte[] header, File databaseFile) throws InvalidPasswordException, ProblemReadingDatabaseFile, IOException {
+        DataInputStream dis = new DataInputStream(is);
+        int indexLength = dis.readInt();
+        if (indexLength < EncryptionService.TAG_LENGTH || indexLength > MAX_INDEX_LENGTH) {
+            throw new ProblemReadingDatabaseFile("The database index has an invalid length [" + indexLength + "]");
+        }
+        byte[] nonce = new byte[EncryptionService.NONCE_LENGTH];
+        dis.readFully(nonce);
+        byte[] encryptedIndex = new byte[indexLength];
+        dis.readFully(encryptedIndex);
+
+        byte[] index;
+        try {
+            index = encryptionService.decryptRecord(encryptedIndex, 0, indexLength, nonce, header);
+        } catch (CryptoException e) {
+            // The index is authenticated so there's no way this could be
+            // anything other than the wrong password (or tampering)
             throw new InvalidPasswordException();
         }
-                
-        return passwordDatabase;
 
+        long recordsStart = HEADER_LENGTH + 4 + EncryptionService.NONCE_LENGTH + indexLength;
+        FlatPackReader reader = new FlatPackReader(index, 0, index.length, FlatPackFormat.BINARY);
+        Revision revision = new Revision(reader);
+        DatabaseOptions dbOptions = new DatabaseOptions(reader);
+        // The index gets its own copy of the key so that the accounts can
+        // still be decrypted after the master password is changed
+        RecordIndex recordIndex = new RecordIndex(databaseFile.toPath(), encryptionService.copy());
+        while (reader.hasMoreFields()) {
+            long end = reader.beginRecord();
+            String accountName = reader.readString(StandardCharsets.UTF_8);
+            long offset = recordsStart + reader.readInt();
+            int length = reader.readInt();
+            byte[] recordNonce = reader.readBytes();
+            reader.endRecord(end);
+            recordIndex.put(accountName, new RecordIndex.Entry(offset, length, recordNonce));
+        }
+        recordIndex.recordFileIdentity();
+
+        PasswordDatabase database = new PasswordDatabase(revision, dbOptions, recordIndex, databaseFile);
+        database.setDbVersion(header[DB_VERSION_POS]);
+        return database;
     }
 
-    public PasswordDatabase load(File databaseFile, char[] password) throws IOException, ProblemReadingDatabaseFile, InvalidPasswordException, CryptoException {
+    /**
+     * A wrong password isn't detected until the padding on the final block is
+     * checked. Because we parse as we decrypt it'll usually show up before
+     * then as a garbage field length, so read to the end of the stream to
+     * find out which of the two we're dealing with.
+     */
+    private boolean decryptsCleanly(InputStream is) throws IOException {
+        byte[] buffer = new byte[8192];
+        try {
+            while (is.read(buffer) != -1) {
+                // discard
+            }
+        } catch (IOException e) {
+            if (BlockCipherInputStream.isDecryptionFailure(e)) {
+                return false;
+            }
+            throw e;
+        }
+        return true;
+    }
+
+    private HashMap<String,AccountInformation> readAccounts(FlatPackReader reader, Charset charset) throws IOException, ProblemReadingDatabaseFile {
+        return new ParallelAccountReader(reader, charset).readAccounts();
+    }
+
+    private PasswordDatabase loadPreVersion2(File databaseFile, char[] password) throws IOException, ProblemReadingDatabaseFile, InvalidPasswordException, CryptoException {
 
-        byte[] fullDatabase;
-        fullDatabase = readFile(databaseFile);
+        byte[] fullDatabase = readFile(databaseFile);
 
         // Check the database is a minimum length
         if (fullDatabase.length < EncryptionService.SALT_LENGTH) {
             throw new ProblemReadingDatabaseFile("This file doesn't appear to be a UPM password database");
         }
 
-        ByteArrayInputStream is;
+        //Split up the salt and encrypted bytes
+        byte[] salt = new byte[EncryptionService.SALT_LENGTH];
+        System.arraycopy(fullDatabase, 0, salt, 0, EncryptionService.SALT_LENGTH);
+        int encryptedBytesLength = fullDatabase.length - EncryptionService.SALT_LENGTH;
+        byte[] encryptedBytes = new byte[encryptedBytesLength]; 
+        System.arraycopy(fullDatabase, EncryptionService.SALT_LENGTH, encryptedBytes, 0, encryptedBytesLength);
+
+        byte[] decryptedBytes = null;
+        //Attempt to decrypt the database information
+        try {
+            decryptedBytes = cryptoEngine.processLegacy(false, password, salt, encryptedBytes);
+        } catch (CryptoException e) {
+            throw new InvalidPasswordException();
+        }
+
+        //We'll get to here if the password was correct so load up the decryped byte
+        FlatPackReader reader = new FlatPackReader(decryptedBytes);
+        DatabaseHeader dh = new DatabaseHeader(reader);
         Revision revision;
         DatabaseOptions dbOptions;
-        Charset charset = StandardCharsets.UTF_8;
 
-        // Ensure this is a real UPM database by checking for the existence of 
-        // the string "UPM" at the start of the file
-        byte[] header = new byte[FILE_HEADER.getBytes().length];
-        System.arraycopy(fullDatabase, 0, header, 0, header.length);
-        if (Arrays.equals(header, FILE_HEADER.getBytes())) {
-
-            // Calculate the positions of each item in the file
-            int dbVersionPos      = header.length;
-            int saltPos           = dbVersionPos + 1;
-            int encryptedBytesPos = saltPos + EncryptionService.SALT_LENGTH;
-
-            // Get the database version 
-            byte dbVersion = fullDatabase[dbVersionPos];
-
-            if (dbVersion == 2 || dbVersion == 3) {
-                byte[] salt = new byte[EncryptionService.SALT_LENGTH];
-                System.arraycopy(fullDatabase, saltPos, salt, 0, EncryptionService.SALT_LENGTH);
-                int encryptedBytesLength = fullDatabase.length - encryptedBytesPos;
-                byte[] encryptedBytes = new byte[encryptedBytesLength]; 
-                System.arraycopy(fullDatabase, encryptedBytesPos, encryptedBytes, 0, encryptedBytesLength);
-
-                // From version 3 onwards Strings in AccountInformation are
-                // encoded using UTF-8. To ensure we can still open older dbs
-                // we default back to the then character set, the system default
-                if (dbVersion < 3) {
-                    charset = Util.defaultCharset();
-                }
+        // At this point we'll check to see what version the database is and load it accordingly
+        if (dh.getVersion().equals("1.1.0")) {
+            // Version 1.1.0 introduced a revision number & database options so read that in now
+            revision = new Revision(reader);
+            dbOptions = new DatabaseOptions(reader);
+        } else if (dh.getVersion().equals("1.0.0")) {
+            revision = new Revision();
+            dbOptions = new DatabaseOptions();
+        } else {
+            throw new ProblemReadingDatabaseFile("Don't know how to handle database version [" + dh.getVersion() + "]");
+        }
 
-                //Attempt to decrypt the database information
-                encryptionService = new EncryptionService(password, salt);
-                byte[] decryptedBytes;
-                try {
-                    decryptedBytes = encryptionService.decrypt(encryptedBytes);
-                } catch (CryptoException e) {
-                    throw new InvalidPasswordException();
-                }
+        // Initialise the EncryptionService so that it's ready for the "save" operation
+        encryptionService = new EncryptionService(password, cryptoEngine);
+
+        // Read the remainder of the database in now
+        HashMap<String,AccountInformation> accounts = readAccounts(reader, Util.defaultCharset());
+
+        return new PasswordDatabase(revision, dbOptions, accounts, databaseFile);
+
+    }
 
-                //If we've got here then the database was successfully decrypted 
-                is = new ByteArrayInputStream(decryptedBytes);
-                revision = new Revision(is);
-                dbOptions = new DatabaseOptions(is);
-            } else {
-                throw new ProblemReadingDatabaseFile("Don't know how to handle database version [" + dbVersion + "]");
+    /**
+     * Save the database in the version given by database.getDbVersion()
+     * @throws FieldTooLongException if one of the fields can't be stored in
+     * that version. The database file is left untouched. Upgrading the
+     * database to LATEST_DB_VERSION will allow it to be saved.
+     */
+    public void save(PasswordDatabase database) throws IOException, CryptoException {
+        synchronized (JOURNAL_LOCK) {
+            write(database, true);
+        }
+    }
+
+    /**
+     * Save a single change to the journal instead of rewriting the whole
+     * database file. The change must already have been made to the database.
+     * @param deletedAccountName the name of an account that was deleted (may
+     * be null)
+     * @param account an account that was added or replaced (may be null)
+     * @throws FieldTooLongException if the account can't be stored in the
+     * database's version. Nothing is written to the journal.
+     */
+    public void saveChange(PasswordDatabase database, String deletedAccountName, AccountInformation account) throws IOException, CryptoException {
+        if (account != null && getFormat(database.getDbVersion()) == FlatPackFormat.ASCII) {
+            // Find out now rather than when the journal is compacted
+            account.flatPack(new FlatPackWriter(FlatPackFormat.ASCII));
+        }
+        synchronized (JOURNAL_LOCK) {
+            if (database.getJournalConflictFile() != null) {
+                // The journal doesn't follow on from the database any more,
+                // anything appended to it would never be replayed
+                write(database, true);
+                return;
             }
+            int revision = database.getRevision() + 1;
+            getJournal(database).append(revision, deletedAccountName, account);
+            database.getRevisionObj().setRevision(revision);
+        }
+    }
 
-        } else {
-            
-            // This might be an old database (pre version 2) so try loading it using the old database format
-            
-            // Check the database is a minimum length
-            if (fullDatabase.length < EncryptionService.SALT_LENGTH) {
-                throw new ProblemReadingDatabaseFile("This file doesn't appear to be a UPM password database");
+    /**
+     * @return true if the journal has grown big enough that it's worth
+     * folding it into the database file
+     */
+    public boolean journalNeedsCompacting(PasswordDatabase database) {
+        long journalLength = getJournal(database).length();
+        return journalLength > Math.max(MIN_JOURNAL_COMPACTION_LENGTH, database.getDatabaseFile().length() / 4);
+    }
+
+    public boolean hasJournal(PasswordDatabase database) {
+        return getJournal(database).exists();
+    }
+
+    /**
+     * Rewrite the database file with the changes in its journal and delete
+     * the journal. The database is reloaded from disk so this can run on a
+     * background thread while changes are being made to the in memory
+     * database. The revision isn't incremented, the database file ends up
+     * with the revision of the last change in the journal.
+     */
+    public void compactJournal(File databaseFile) throws IOException, CryptoException, ProblemReadingDatabaseFile, InvalidPasswordException {
+        synchronized (JOURNAL_LOCK) {
+            if (!new DatabaseJournal(databaseFile, encryptionService).exists()) {
+                return;
             }
-            
-            //Split up the salt and encrypted bytes
-            byte[] salt = new byte[EncryptionService.SALT_LENGTH];
-            System.arraycopy(fullDatabase, 0, salt, 0, EncryptionService.SALT_LENGTH);
-            int encryptedBytesLength = fullDatabase.length - EncryptionService.SALT_LENGTH;
-            byte[] encryptedBytes = new byte[encryptedBytesLength]; 
-            System.arraycopy(fullDatabase, EncryptionService.SALT_LENGTH, encryptedBytes, 0, encryptedBytesLength);
-
-            byte[] decryptedBytes = null;
-            //Attempt to decrypt the database information
+            // A full decrypted copy of the database, wiped once written
+            PasswordDatabase database = load(databaseFile);
             try {
-                decryptedBytes = DESDecryptionService.decrypt(password, salt, encryptedBytes);
-            } catch (CryptoException e) {
-                throw new InvalidPasswordException();
+                write(database, false);
+            } finally {
+                database.wipe();
             }
+        }
+    }
 
-            //We'll get to here if the password was correct so load up the decryped byte
-            is = new ByteArrayInputStream(decryptedBytes);
-            DatabaseHeader dh = new DatabaseHeader(is);
-
-            // At this point we'll check to see what version the database is and load it accordingly
-            if (dh.getVersion().equals("1.1.0")) {
-                // Version 1.1.0 introduced a revision number & database options so read that in now
-                revision = new Revision(is);
-                dbOptions = new DatabaseOptions(is);
-            } else if (dh.getVersion().equals("1.0.0")) {
-                revision = new Revision();
-                dbOptions = new DatabaseOptions();
-            } else {
-                throw new ProblemReadingDatabaseFile("Don't know how to handle database version [" + dh.getVersion() + "]");
-            }
+    /**
+     * Delete the journal without applying it. Used when the database file
+     * has been replaced with a newer one.
+     */
+    public void discardJournal(PasswordDatabase database) throws IOException {
+        synchronized (JOURNAL_LOCK) {
+            getJournal(database).delete();
+        }
+    }
 
-            // Initialise the EncryptionService so that it's ready for the "save" operation
-            encryptionService = new EncryptionService(password);
+    private DatabaseJournal getJournal(PasswordDatabase database) {
+        return new DatabaseJournal(database.getDatabaseFile(), encryptionService);
+    }
 
+    private void write(PasswordDatabase database, boolean incrementRevision) throws IOException, CryptoException {
+        int dbVersion = database.getDbVersion();
+        KeyDerivation keyDerivation = encryptionService.getKeyDerivation();
+        if (dbVersion < FLAGS_VERSION && !keyDerivation.equals(KeyDerivation.LEGACY)) {
+            throw new IOException("Only version " + FLAGS_VERSION + " databases can store how the key is derived."
+                    + " Change the master password to save this database in version " + dbVersion + ".");
         }
-        
-        // Read the remainder of the database in now
-        HashMap<String,AccountInformation> accounts = new HashMap<>();
+        Path databaseFile = database.getDatabaseFile().getAbsoluteFile().toPath();
+        if (Files.exists(databaseFile)) {
+            // Don't replace a symlink with a regular file
+            databaseFile = databaseFile.toRealPath();
+        }
+
+        // Write the database to a temporary file in the same directory and
+        // then move it over the top of the real one. That way the database
+        // file is never left half written and anything watching it sees a
+        // single change.
+        Path tempFile = Files.createTempFile(databaseFile.getParent(), databaseFile.getFileName().toString(), ".tmp");
+        if (Files.exists(databaseFile)) {
+            // The temp file is only readable by its owner, keep any other
+            // permissions the user gave the database
+            copyPermissions(databaseFile, tempFile);
+        }
+        int previousRevision = database.getRevision();
+        boolean saved = false;
         try {
-            while (true) { //keep loading accounts until an EOFException is thrown
-                AccountInformation ai = new AccountInformation(is, charset);
-                accounts.put(ai.getAccountName(), ai);
+            RecordIndex recordIndex = null;
+            try (FileOutputStream fos = new FileOutputStream(tempFile.toFile())) {
+                //Write the salt and the encrypted data out to the database file
+                OutputStream bos = new BufferedOutputStream(fos);
+                if (incrementRevision) {
+                    database.getRevisionObj().increment();
+                }
+
+                int flags = 0;
+                if (dbVersion >= FLAGS_VERSION) {
+                    flags |= FLAG_REVISION | FLAG_CHUNKED | FLAG_HEADER_MAC;
+                    if (database.isCompressed()) {
+                        flags |= FLAG_COMPRESSED;
+                    }
+                    if (!keyDerivation.equals(KeyDerivation.LEGACY)) {
+                        flags |= FLAG_KDF;
+                    }
+                }
+                byte[] header = new byte[getHeaderLength(dbVersion, flags)];
+                System.arraycopy(FILE_HEADER.getBytes(), 0, header, 0, DB_VERSION_POS);
+                header[DB_VERSION_POS] = (byte) dbVersion;
+                System.arraycopy(encryptionService.getSalt(), 0, header, SALT_POS, EncryptionService.SALT_LENGTH);
+                if (dbVersion >= FLAGS_VERSION) {
+                    header[FLAGS_POS] = (byte) flags;
+                }
+                if ((flags & FLAG_REVISION) != 0) {
+                    putInt(header, REVISION_POS, database.getRevision());
+                }
+                if ((flags & FLAG_KDF) != 0) {
+                    int kdfPos = getKeyDerivationPos(flags);
+                    header[kdfPos] = (byte) keyDerivation.getAlgorithm();
+                    putInt(header, kdfPos + 1, keyDerivation.getIterations());
+                }
+                if ((flags & FLAG_HEADER_MAC) != 0) {
+                    int macPos = header.length - EncryptionService.MAC_LENGTH;
+                    System.arraycopy(encryptionService.mac(header, 0, macPos), 0, header, macPos, EncryptionService.MAC_LENGTH);
+                }
+                bos.write(header);
+                if (dbVersion == RECORD_CONTAINER_VERSION) {
+                    recordIndex = writeRecords(bos, header, database, databaseFile);
+                    bos.flush();
+                } else {
+                    writeStream(bos, header, database, dbVersion, flags);
+                }
+
+                // Make sure it's on disk before it replaces the old file
+                fos.getFD().sync();
+            }
+            moveIntoPlace(tempFile, databaseFile);
+            if (dbVersion == RECORD_CONTAINER_VERSION) {
+                // Point the accounts that haven't been decrypted yet at
+                // their new position in the file
+                if (recordIndex != null) {
+                    recordIndex.recordFileIdentity();
+                }
+                database.setUnloadedAccounts(recordIndex);
+            }
+            saved = true;
+
+            // Everything in the journal is in the database file now
+            getJournal(database).delete();
+            database.setJournalConflictFile(null);
+        } finally {
+            if (!saved) {
+                // Leave the database as it was so the save can be retried
+                database.getRevisionObj().setRevision(previousRevision);
+                Files.deleteIfExists(tempFile);
             }
-        } catch (EOFException e) {
-            //just means we hit eof
         }
-        is.close();
+    }
 
-        return new PasswordDatabase(revision, dbOptions, accounts, databaseFile);
+    /**
+     * Encrypt the whole database as one stream (every version apart from 5)
+     */
+    private void writeStream(OutputStream bos, byte[] header, PasswordDatabase database, int dbVersion, int flags) throws IOException, CryptoException {
+        // Flatpack the database straight into the cipher so that
+        // the unencrypted database is never held in memory
+        OutputStream cipherStream;
+        if ((flags & FLAG_CHUNKED) != 0) {
+            cipherStream = encryptionService.encryptChunked(bos, header);
+        } else {
+            cipherStream = encryptionService.encrypt(bos);
+        }
+        OutputStream os = cipherStream;
+        Deflater deflater = null;
+        if ((flags & FLAG_COMPRESSED) != 0) {
+            deflater = new Deflater(Deflater.BEST_COMPRESSION);
+            os = new DeflaterOutputStream(cipherStream, deflater, FLATPACK_BUFFER_SIZE);
+        }
+
+        // Flatpack the database revision and options
+        FlatPackWriter writer = new FlatPackWriter(getFormat(dbVersion), FLATPACK_BUFFER_SIZE);
+        database.getRevisionObj().flatPack(writer);
+        database.getDbOptions().flatPack(writer);
 
+        // Flatpack the accounts, reusing the same buffer throughout
+        for (AccountInformation ai : getAccountsHash(database).values()) {
+            ai.flatPack(writer);
+            if (writer.size() >= FLATPACK_BUFFER_SIZE) {
+                writer.writeTo(os);
+                writer.reset();
+            }
+        }
+        writer.writeTo(os);
+        if (deflater != null) {
+            ((DeflaterOutputStream) os).finish();
+            deflater.end();
+        }
+        if (cipherStream instanceof ChunkedCipherOutputStream) {
+            ((ChunkedCipherOutputStream) cipherStream).finish();
+        } else {
+            ((BlockCipherOutputStream) cipherStream).finish();
+        }
     }
 
-    public void save(PasswordDatabase database) throws IOException, CryptoException {
-        ByteArrayOutputStream os = new ByteArrayOutputStream();
-        
-        // Flatpack the database revision and options
-        database.getRevisionObj().increment();
-        database.getRevisionObj().flatPack(os);
-        database.getDbOptions().flatPack(os);
+    /**
+     * Write the index followed by each account encrypted on its own (version
+     * 5 onwards). Accounts that haven't been decrypted since the database
+     * was loaded are copied across from the old file as they are.
+     * @return an index of the accounts that were copied across
+     */
+    private RecordIndex writeRecords(OutputStream bos, byte[] header, PasswordDatabase database, Path databaseFile) throws IOException, CryptoException {
+        RecordIndex oldIndex = database.getUnloadedAccounts();
+        if (oldIndex != null && !oldIndex.getEncryptionService().hasSameKey(encryptionService)) {
+            // The records were encrypted with a different key (the master
+            // password has been changed) so they all need decrypting
+            getAccountsHash(database);
+            oldIndex = null;
+        }
+        List<String> copiedNames = new ArrayList<>();
+        if (oldIndex != null) {
+            copiedNames.addAll(oldIndex.getAccountNames());
+        }
+        List<AccountInformation> accounts = new ArrayList<>(database.getLoadedAccounts().values());
+
+        // The index has to be written first so work out where each record
+        // will go. The accounts are flatpacked again when they're encrypted
+        // rather than holding all of them in memory.
+        FlatPackWriter index = new FlatPackWriter(FlatPackFormat.BINARY, FLATPACK_BUFFER_SIZE);
+        database.getRevisionObj().flatPack(index);
+        database.getDbOptions().flatPack(index);
+        FlatPackWriter writer = new FlatPackWriter(FlatPackFormat.BINARY, FLATPACK_BUFFER_SIZE);
+        List<byte[]> nonces = new ArrayList<>(accounts.size());
+        long offset = 0;
+        for (String accountName : copiedNames) {
+            RecordIndex.Entry entry = oldIndex.get(accountName);
+            writeIndexEntry(index, accountName, offset, entry.length, entry.nonce);
+            offset += entry.length;
+        }
+        for (AccountInformation ai : accounts) {
+            writer.reset();
+            ai.flatPack(writer);
+            int length = writer.size() + EncryptionService.TAG_LENGTH;
+            byte[] nonce = encryptionService.generateNonce();
+            nonces.add(nonce);
+            writeIndexEntry(index, ai.getAccountName(), offset, length, nonce);
+            offset += length;
+        }
+
+        byte[] indexBytes = index.toByteArray();
+        byte[] indexNonce = encryptionService.generateNonce();
+        byte[] encryptedIndex = encryptionService.encryptRecord(indexBytes, 0, indexBytes.length, indexNonce, header);
+        DataOutputStream dos = new DataOutputStream(bos);
+        dos.writeInt(encryptedIndex.length);
+        dos.write(indexNonce);
+        dos.write(encryptedIndex);
 
-        // Flatpack the accounts
-        for (AccountInformation ai : database.getAccountsHash().values()) {
-            ai.flatPack(os);
+        // Now the records themselves
+        if (oldIndex != null) {
+            try (FileChannel oldFile = oldIndex.openFile()) {
+                for (String accountName : copiedNames) {
+                    dos.write(oldIndex.readRecord(oldFile, oldIndex.get(accountName)));
+                }
+            } catch (ProblemReadingDatabaseFile e) {
+                throw new IOException(e.getMessage(), e);
+            }
+        }
+        for (int i = 0; i < accounts.size(); i++) {
+            AccountInformation ai = accounts.get(i);
+            writer.reset();
+            ai.flatPack(writer);
+            byte[] plainText = writer.toByteArray();
+            dos.write(encryptionService.encryptRecord(plainText, 0, plainText.length, nonces.get(i),
+                    ai.getAccountName().getBytes(StandardCharsets.UTF_8)));
         }
-        os.close();
-        byte[] dataToEncrypt = os.toByteArray();
+        dos.flush();
 
-        //Now encrypt the database data
-        byte[] encryptedData = encryptionService.encrypt(dataToEncrypt);
-        
-        //Write the salt and the encrypted data out to the database file
-        FileOutputStream fos = new FileOutputStream(database.getDatabaseFile());
-        fos.write(FILE_HEADER.getBytes());
-        fos.write(DB_VERSION);
-        fos.write(encryptionService.getSalt());
-        fos.write(encryptedData);
-        fos.close();
+        // Record offsets are stored relative to the end of the index
+        long recordsStart = HEADER_LENGTH + 4 + EncryptionService.NONCE_LENGTH + encryptedIndex.length;
+        RecordIndex copied = new RecordIndex(databaseFile, encryptionService.copy());
+        offset = recordsStart;
+        for (String accountName : copiedNames) {
+            RecordIndex.Entry entry = oldIndex.get(accountName);
+            copied.put(accountName, new RecordIndex.Entry(offset, entry.length, entry.nonce));
+            offset += entry.length;
+        }
+        return copied.isEmpty() ? null : copied;
+    }
+
+    private void writeIndexEntry(FlatPackWriter index, String accountName, long offset, int length, byte[] nonce) throws IOException {
+        if (offset > Integer.MAX_VALUE) {
+            throw new IOException("The database is too large to be saved in version " + RECORD_CONTAINER_VERSION);
+        }
+        int mark = index.beginRecord();
+        index.writeString(accountName);
+        index.writeInt((int) offset);
+        index.writeInt(length);
+        index.writeBytes(nonce);
+        index.endRecord(mark);
+    }
+
+    /**
+     * Decrypt every account that hasn't been already
+     * @throws IOException if they can't be read from the database file
+     */
+    private static HashMap<String,AccountInformation> getAccountsHash(PasswordDatabase database) throws IOException {
+        try {
+            return database.getAccountsHash();
+        } catch (ProblemReadingDatabaseFile e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    private void moveIntoPlace(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static void copyPermissions(Path source, Path target) throws IOException {
+        if (Files.getFileStore(target).supportsFileAttributeView(PosixFileAttributeView.class)) {
+            Files.setPosixFilePermissions(target, Files.getPosixFilePermissions(source));
+        }
     }
 
     public EncryptionService getEncryptionService() {
         return encryptionService;
     }
 
-    private byte[] readFile(File file) throws IOException {
-        try (InputStream is = Files.newInputStream(file.toPath())) {
+    /**
+     * Read the revision from the start of a database file, e.g. one fetched
+     * with Transport.getRemoteHeader(), without decrypting it.
+     * @param header at least the unencrypted header of the database, up to
+     * MAX_HEADER_LENGTH bytes
+     * @return the revision, or -1 if the database doesn't have one in its
+     * header or its MAC wasn't made with this database's key (so it may have
+     * been tampered with, or the database has a different password)
+     */
+    public int getVerifiedRevision(byte[] header) {
+        if (encryptionService == null) {
+            return -1;
+        }
+        try {
+            header = readHeader(new ByteArrayInputStream(header));
+        } catch (IOException | ProblemReadingDatabaseFile e) {
+            return -1;
+        }
+        if (!isUPMDatabase(header) || header[DB_VERSION_POS] < FLAGS_VERSION) {
+            return -1;
+        }
+        int flags = header[FLAGS_POS] & 0xff;
+        if ((flags & FLAG_REVISION) == 0 || (flags & FLAG_HEADER_MAC) == 0) {
+            return -1;
+        }
+        int macPos = header.length - EncryptionService.MAC_LENGTH;
+        // A different salt or key derivation means a different key, so the
+        // MAC won't match
+        if (!encryptionService.verifyMac(header, 0, macPos, header, macPos)) {
+            return -1;
+        }
+        return getInt(header, REVISION_POS);
+    }
+
+    /**
+     * Derive a new key from password. Version 6 databases get a key
+     * derivation calibrated to take about unlockMillis on this machine,
+     * older versions can only use the legacy one.
+     */
+    public void changePassword(PasswordDatabase database, char[] password, long unlockMillis) {
+        KeyDerivation keyDerivation = KeyDerivation.LEGACY;
+        if (database.getDbVersion() >= FLAGS_VERSION) {
+            keyDerivation = KeyDerivation.calibrate(unlockMillis);
+        }
+        encryptionService.initCipher(password, keyDerivation);
+    }
+
+    /**
+     * Read the unencrypted MAGIC_NUMBER DB_VERSION SALT (FLAGS REVISION)
+     * prefix of the file. Only this much is read so that the rest of the
+     * stream can be handed straight to the decryptor.
+     */
+    static byte[] readHeader(InputStream is) throws IOException, ProblemReadingDatabaseFile {
+        byte[] header = new byte[HEADER_LENGTH];
+        readFully(is, header, 0);
+        if (isUPMDatabase(header) && header[DB_VERSION_POS] >= FLAGS_VERSION) {
+            header = Arrays.copyOf(header, FLAGS_POS + 1);
+            readFully(is, header, FLAGS_POS);
+            int length = getHeaderLength(header[DB_VERSION_POS], header[FLAGS_POS]);
+            if (length > header.length) {
+                int offset = header.length;
+                header = Arrays.copyOf(header, length);
+                readFully(is, header, offset);
+            }
+        }
+        return header;
+    }
+
+    private static void readFully(InputStream is, byte[] header, int offset) throws IOException, ProblemReadingDatabaseFile {
+        int numRead = 0;
+        while (offset < header.length
+                && (numRead=is.read(header, offset, header.length-offset)) >= 0) {
+            offset += numRead;
+        }
+
+        // Check the database is a minimum length
+        if (offset < header.length) {
+            throw new ProblemReadingDatabaseFile("This file doesn't appear to be a UPM password database");
+        }
+    }
+
+    private static int getHeaderLength(int dbVersion, int flags) {
+        if (dbVersion < FLAGS_VERSION) {
+            return HEADER_LENGTH;
+        }
+        int length = (flags & FLAG_KDF) != 0 ? getKeyDerivationPos(flags) + KDF_LENGTH : getKeyDerivationPos(flags);
+        return (flags & FLAG_HEADER_MAC) != 0 ? length + EncryptionService.MAC_LENGTH : length;
+    }
 
-            // Create the byte array to hold the data
-            byte[] bytes = new byte[(int) file.length()];
+    private static int getKeyDerivationPos(int flags) {
+        return (flags & FLAG_REVISION) != 0 ? REVISION_POS + 4 : REVISION_POS;
+    }
 
-            // Read in the bytes
-            int offset = 0;
-            int numRead = 0;
+    private static KeyDerivation getKeyDerivation(byte[] header) throws ProblemReadingDatabaseFile {
+        if (header[DB_VERSION_POS] < FLAGS_VERSION || (header[FLAGS_POS] & FLAG_KDF) == 0) {
+            return KeyDerivation.LEGACY;
+        }
+        int kdfPos = getKeyDerivationPos(header[FLAGS_POS]);
+        try {
+            return KeyDerivation.get(header[kdfPos] & 0xff, getInt(header, kdfPos + 1));
+        } catch (IllegalArgumentException e) {
+            throw new ProblemReadingDatabaseFile(e.getMessage(), e);
+        }
+    }
+
+    static int getInt(byte[] b, int pos) {
+        return ((b[pos] & 0xff) << 24) | ((b[pos + 1] & 0xff) << 16)
+                | ((b[pos + 2] & 0xff) << 8) | (b[pos + 3] & 0xff);
+    }
+
+    private static void putInt(byte[] b, int pos, int value) {
+        b[pos] = (byte) (value >>> 24);
+        b[pos + 1] = (byte) (value >>> 16);
+        b[pos + 2] = (byte) (value >>> 8);
+        b[pos + 3] = (byte) value;
+    }
 
-            while (offset < bytes.length
-                    && (numRead=is.read(bytes, offset, bytes.length-offset)) >= 0) {
-                offset += numRead;
+    private int getFlags(byte[] header) throws ProblemReadingDatabaseFile {
+        if (header[DB_VERSION_POS] < FLAGS_VERSION) {
+            return 0;
+        }
+        int flags = header[FLAGS_POS] & 0xff;
+        if ((flags & ~SUPPORTED_FLAGS) != 0) {
+            throw new ProblemReadingDatabaseFile("This database uses features that aren't supported by this version of UPM");
+        }
+        return flags;
+    }
+
+    static boolean isUPMDatabase(byte[] header) {
+        byte[] magicNumber = FILE_HEADER.getBytes();
+        return Arrays.equals(Arrays.copyOf(header, magicNumber.length), magicNumber);
+    }
+
+    private byte getDatabaseVersion(byte[] header) throws ProblemReadingDatabaseFile {
+        byte dbVersion = header[DB_VERSION_POS];
+        if (dbVersion < 2 || dbVersion > LATEST_DB_VERSION) {
+            throw new ProblemReadingDatabaseFile("Don't know how to handle database version [" + dbVersion + "]");
+        }
+        return dbVersion;
+    }
+
+    private static FlatPackFormat getFormat(int dbVersion) {
+        return dbVersion >= 4 ? FlatPackFormat.BINARY : FlatPackFormat.ASCII;
+    }
+
+    private byte[] readFile(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("The file " + file.getName() + " is too large to be a UPM database");
+            }
+
+            // Read straight into the array rather than through a stream's buffer
+            ByteBuffer bytes = ByteBuffer.allocate((int) size);
+            while (bytes.hasRemaining() && channel.read(bytes) >= 0) {
+                // keep reading
             }
 
             // Ensure all the bytes have been read in
-            if (offset < bytes.length) {
+            if (bytes.hasRemaining()) {
                 throw new IOException("Could not completely read file " + file.getName());
             }
-            return bytes;
+            return bytes.array();
         }
     }
 
+
+    /**
+     * Reads the header of a memory mapped database file. The rest of the
+     * mapping is then handed to the decryptor as a whole.
+     */
+    private static final class MappedInputStream extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        MappedInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int bytesRead = Math.min(len, buffer.remaining());
+            buffer.get(b, off, bytesRead);
+            return bytesRead;
+        }
+
+        public long skip(long n) {
+            int skipped = (int) Math.max(0, Math.min(n, buffer.remaining()));
+            buffer.position(buffer.position() + skipped);
+            return skipped;
+        }
+
+        public int available() {
+            return buffer.remaining();
+        }
+
+        /**
+         * @return the unread part of the mapping. The stream is left at the
+         * end.
+         */
+        ByteBuffer takeRemaining() {
+            ByteBuffer remaining = buffer.slice();
+            buffer.position(buffer.limit());
+            return remaining;
+        }
+
+    }
+
 }
@@ -0,0 +1,192 @@
+/*
+ * Universal Password Manager
+ * Copyright (C) 2005-2013 Adrian Smith
+ *
+ * This file is part of Universal Password Manager.
+ *   
+ * Universal Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Universal Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Universal Password Manager; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com._17od.upm.database;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.LinkedHashMap;
+import java.util.Objects;
+import java.util.Set;
+
+import com._17od.upm.crypto.CryptoException;
+import com._17od.upm.crypto.EncryptionService;
+
+
+/**
+ * The index of a version 5 database. Maps each account name to the position
+ * of its encrypted record in the database file so that accounts can be
+ * decrypted one at a time, as they're needed.
+ */
+final class RecordIndex {
+
+    static final class Entry {
+
+        final long offset;
+        final int length;
+        final byte[] nonce;
+
+        Entry(long offset, int length, byte[] nonce) {
+            this.offset = offset;
+            this.length = length;
+            this.nonce = nonce;
+        }
+
+    }
+
+    private final Path databaseFile;
+    private final EncryptionService encryptionService;
+    private final LinkedHashMap<String,Entry> entries = new LinkedHashMap<>();
+    private Object fileKey;
+    private long fileSize = -1;
+    private FileTime lastModified;
+
+
+    RecordIndex(Path databaseFile, EncryptionService encryptionService) {
+        this.databaseFile = databaseFile;
+        this.encryptionService = encryptionService;
+    }
+
+
+    void put(String accountName, Entry entry) {
+        entries.put(accountName, entry);
+    }
+
+
+    Entry get(String accountName) {
+        return entries.get(accountName);
+    }
+
+
+    Entry remove(String accountName) {
+        return entries.remove(accountName);
+    }
+
+
+    boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+
+    /**
+     * @return the account names in the order their records appear in the file
+     */
+    Set<String> getAccountNames() {
+        return entries.keySet();
+    }
+
+
+    EncryptionService getEncryptionService() {
+        return encryptionService;
+    }
+
+
+    /**
+     * Remember which file the records are in (its file key where there is
+     * one, size and modification time). Call this once the file's been
+     * written or read.
+     */
+    void recordFileIdentity() throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(databaseFile, BasicFileAttributes.class);
+        fileKey = attributes.fileKey();
+        fileSize = attributes.size();
+        lastModified = attributes.lastModifiedTime();
+    }
+
+
+    /**
+     * Open the database file to read records from it
+     * @throws ProblemReadingDatabaseFile if the file isn't the one the
+     * index was made for, e.g. it's been replaced by another instance of
+     * UPM or a file sync client, so the records aren't where they were
+     */
+    FileChannel openFile() throws IOException, ProblemReadingDatabaseFile {
+        FileChannel channel = FileChannel.open(databaseFile, StandardOpenOption.READ);
+        boolean sameFile = false;
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(databaseFile, BasicFileAttributes.class);
+            sameFile = Objects.equals(fileKey, attributes.fileKey())
+                    && fileSize == attributes.size()
+                    && channel.size() == fileSize
+                    && attributes.lastModifiedTime().equals(lastModified);
+        } finally {
+            if (!sameFile) {
+                channel.close();
+            }
+        }
+        if (!sameFile) {
+            throw new ProblemReadingDatabaseFile("The database file [" + databaseFile
+                    + "] has changed since it was opened, it needs to be reloaded");
+        }
+        return channel;
+    }
+
+
+    /**
+     * Read and decrypt a single account from the database file
+     */
+    AccountInformation readAccount(String accountName) throws IOException, ProblemReadingDatabaseFile {
+        Entry entry = entries.get(accountName);
+        byte[] record;
+        try (FileChannel channel = openFile()) {
+            record = readRecord(channel, entry);
+        }
+        return decryptAccount(accountName, entry, record);
+    }
+
+
+    /**
+     * Read the encrypted bytes of a record without decrypting them
+     */
+    byte[] readRecord(FileChannel channel, Entry entry) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(entry.length);
+        long position = entry.offset;
+        while (record.hasRemaining()) {
+            int bytesRead = channel.read(record, position);
+            if (bytesRead == -1) {
+                throw new EOFException();
+            }
+            position += bytesRead;
+        }
+        return record.array();
+    }
+
+
+    private AccountInformation decryptAccount(String accountName, Entry entry, byte[] record) throws ProblemReadingDatabaseFile, IOException {
+        byte[] plainText;
+        try {
+            plainText = encryptionService.decryptRecord(record, 0, record.length, entry.nonce,
+                    accountName.getBytes(StandardCharsets.UTF_8));
+        } catch (CryptoException e) {
+            throw new ProblemReadingDatabaseFile("The record for account [" + accountName + "] is corrupt", e);
+        }
+        FlatPackReader reader = new FlatPackReader(plainText, 0, plainText.length, FlatPackFormat.BINARY);
+        return new AccountInformation(reader, StandardCharsets.UTF_8);
+    }
+
+}
@@ -22,7 +22,6 @@ package com._17od.upm.database;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 
 public class Revision extends FlatPackObject {
 
@@ -39,12 +38,17 @@ public class Revision extends FlatPackObject {
     }
     
     public Revision(InputStream is) throws IOException, ProblemReadingDatabaseFile {
-        revision = getInt(is);
+        this(new FlatPackReader(is));
+    }
+
+
+    public Revision(FlatPackReader reader) throws IOException, ProblemReadingDatabaseFile {
+        revision = reader.readInt();
     }
 
     
-    public void flatPack(OutputStream os) throws IOException {
-        os.write(flatPack(String.valueOf(revision)));
+    public void flatPack(FlatPackWriter writer) throws FieldTooLongException {
+        writer.writeInt(revision);
     }
 
     
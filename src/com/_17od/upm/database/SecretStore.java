@@ -0,0 +1,161 @@
+/*
+ * Universal Password Manager
+ * Copyright (C) 2005-2013 Adrian Smith
+ *
+ * This file is part of Universal Password Manager.
+ *   
+ * Universal Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Universal Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Universal Password Manager; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com._17od.upm.database;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+
+/**
+ * Holds secrets (account passwords and notes) as UTF-8 outside the Java
+ * heap, in direct ByteBuffers. The garbage collector never copies them
+ * around, and wipe() zeros every secret in the store in one go when the
+ * database is closed.
+ * 
+ * Secrets are allocated one after another from slabs. Each one is stored as
+ * a 4 byte length followed by the bytes and is referred to by a handle made
+ * up of the slab number and the offset of the secret in the slab. Freeing a
+ * secret zeros it but the space isn't reused. The store only lives as long
+ * as its database so the waste is bounded by the edits made in one session.
+ */
+public final class SecretStore {
+
+    private static final int SLAB_SIZE = 64 * 1024;
+
+    private final ArrayList<ByteBuffer> slabs = new ArrayList<>();
+    private ByteBuffer currentSlab;
+
+
+    /**
+     * Copy the given UTF-8 bytes (from the buffer's position to its limit)
+     * into the store
+     * @return the handle to the stored secret
+     */
+    synchronized long put(ByteBuffer utf8) {
+        int length = utf8.remaining();
+        if (currentSlab == null || currentSlab.remaining() < 4 + length) {
+            currentSlab = ByteBuffer.allocateDirect(Math.max(SLAB_SIZE, 4 + length));
+            slabs.add(currentSlab);
+        }
+        int offset = currentSlab.position();
+        currentSlab.putInt(length);
+        currentSlab.put(utf8.duplicate());
+        return ((long) (slabs.size() - 1) << 32) | offset;
+    }
+
+
+    long put(byte[] utf8, int offset, int length) {
+        return put(ByteBuffer.wrap(utf8, offset, length));
+    }
+
+
+    long put(CharSequence s) {
+        byte[] utf8 = new byte[FlatPackWriter.utf8Length(s)];
+        FlatPackWriter.encodeUTF8(s, utf8, 0);
+        try {
+            return put(utf8, 0, utf8.length);
+        } finally {
+            Arrays.fill(utf8, (byte) 0);
+        }
+    }
+
+
+    /**
+     * @return a read only view of the secret's UTF-8 bytes. It's only valid
+     * until the secret is freed or the store is wiped.
+     */
+    synchronized ByteBuffer get(long handle) {
+        ByteBuffer view = slabs.get((int) (handle >>> 32)).asReadOnlyBuffer();
+        int offset = (int) handle;
+        view.limit(offset + 4 + view.getInt(offset));
+        view.position(offset + 4);
+        return view;
+    }
+
+
+    /**
+     * @return the secret decoded into a new char array. Zero the array once
+     * it's finished with.
+     */
+    char[] getChars(long handle) {
+        return decode(get(handle));
+    }
+
+
+    /**
+     * Zero the secret with the given handle. After this it reads as empty.
+     */
+    synchronized void free(long handle) {
+        ByteBuffer slab = slabs.get((int) (handle >>> 32));
+        int offset = (int) handle;
+        zero(slab, offset, 4 + slab.getInt(offset));
+    }
+
+
+    /**
+     * Zero every secret in the store. They all read as empty afterwards.
+     */
+    public synchronized void wipe() {
+        for (ByteBuffer slab : slabs) {
+            zero(slab, 0, slab.position());
+        }
+    }
+
+
+    /**
+     * Decode UTF-8 bytes straight into a char array without going through a
+     * String, which couldn't be wiped afterwards
+     */
+    static char[] decode(ByteBuffer utf8) {
+        // UTF-8 never needs more chars than bytes
+        char[] chars = new char[utf8.remaining()];
+        CharBuffer out = CharBuffer.wrap(chars);
+        CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        decoder.decode(utf8.duplicate(), out, true);
+        decoder.flush(out);
+        if (out.position() == chars.length) {
+            return chars;
+        }
+        char[] trimmed = Arrays.copyOf(chars, out.position());
+        Arrays.fill(chars, '\0');
+        return trimmed;
+    }
+
+
+    private static void zero(ByteBuffer slab, int offset, int length) {
+        int end = offset + length;
+        int i = offset;
+        for (; i + 8 <= end; i += 8) {
+            slab.putLong(i, 0L);
+        }
+        for (; i < end; i++) {
+            slab.put(i, (byte) 0);
+        }
+    }
+
+}
@@ -44,6 +44,7 @@ import java.net.URI;
 import java.net.URISyntaxException;
 import java.security.SecureRandom;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 import javax.swing.JButton;
 import javax.swing.JCheckBox;
@@ -765,9 +766,12 @@ public class AccountDialog extends EscapeDialog {
 			if (!pAccount.getUserId().equals(userId.getText())) {
 				accountChanged = true;
 			}
-			if (!pAccount.getPassword().equals(password.getText())) {
+			char[] oldPassword = pAccount.getPasswordChars();
+			char[] newPassword = password.getPassword();
+			if (!Arrays.equals(oldPassword, newPassword)) {
 				accountChanged = true;
 			}
+			Arrays.fill(oldPassword, '\0');
 			if (!pAccount.getUrl().equals(url.getText())) {
 				accountChanged = true;
 			}
@@ -777,7 +781,8 @@ public class AccountDialog extends EscapeDialog {
 
 			pAccount.setAccountName(accountName.getText().trim());
 			pAccount.setUserId(userId.getText());
-			pAccount.setPassword(password.getText());
+			pAccount.setPassword(newPassword);
+			Arrays.fill(newPassword, '\0');
 			pAccount.setUrl(url.getText());
 			pAccount.setNotes(notes.getText());
 
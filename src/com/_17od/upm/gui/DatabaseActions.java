@@ -37,16 +37,22 @@ import javax.swing.JDialog;
 import javax.swing.JFileChooser;
 import javax.swing.JOptionPane;
 import javax.swing.JPasswordField;
+import javax.swing.SwingUtilities;
 import javax.swing.Timer;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import com._17od.upm.crypto.CryptoEngines;
 import com._17od.upm.crypto.CryptoException;
+import com._17od.upm.crypto.DerivedKeyCache;
 import com._17od.upm.crypto.InvalidPasswordException;
 import com._17od.upm.database.AccountInformation;
 import com._17od.upm.database.AccountsCSVMarshaller;
+import com._17od.upm.database.DatabaseJournal;
+import com._17od.upm.database.DatabaseProbe;
 import com._17od.upm.database.ExportException;
+import com._17od.upm.database.FieldTooLongException;
 import com._17od.upm.database.ImportException;
 import com._17od.upm.database.PasswordDatabase;
 import com._17od.upm.database.PasswordDatabasePersistence;
@@ -54,6 +60,8 @@ import com._17od.upm.database.ProblemReadingDatabaseFile;
 import com._17od.upm.gui.MainWindow.ChangeDatabaseAction;
 import com._17od.upm.transport.Transport;
 import com._17od.upm.transport.TransportException;
+import com._17od.upm.transport.TransportRegistry;
+import com._17od.upm.transport.WebdavTransport;
 import com._17od.upm.util.FileChangedCallback;
 import com._17od.upm.util.FileMonitor;
 import com._17od.upm.util.Preferences;
@@ -80,6 +88,8 @@ public class DatabaseActions {
 
     public DatabaseActions(MainWindow mainWindow) {
         this.mainWindow = mainWindow;
+        CryptoEngines.setPreference(Preferences.get(Preferences.ApplicationOptions.CRYPTO_ENGINE, CryptoEngines.AUTO));
+        CryptoEngines.selectInBackground();
     }
 
 
@@ -128,6 +138,7 @@ public class DatabaseActions {
             newDatabaseFile.delete();
         }
 
+        clearCachedSecrets();
         database = new PasswordDatabase(newDatabaseFile);
         dbPers = new PasswordDatabasePersistence(masterPassword.getPassword());
         saveDatabase();
@@ -207,7 +218,9 @@ public class DatabaseActions {
 
                     //If the user clicked OK and the passwords match then change the database password
                     if (buttonClicked.equals(JOptionPane.OK_OPTION) && passwordsMatch) {
-                        this.dbPers.getEncryptionService().initCipher(masterPassword.getPassword());
+                        clearCachedSecrets();
+                        this.dbPers.changePassword(database, masterPassword.getPassword(),
+                                Preferences.getInt(Preferences.ApplicationOptions.KDF_UNLOCK_MILLIS, 200));
                         saveDatabase();
                     }
 
@@ -217,6 +230,20 @@ public class DatabaseActions {
     }
 
 
+    /**
+     * Forget the keys derived from master passwords, the transports holding
+     * credentials from the database and the downloaded copies of remote
+     * databases. Called whenever the password in use changes and when the
+     * database is locked.
+     */
+    private void clearCachedSecrets() {
+        DerivedKeyCache.clear();
+        TransportRegistry.clear();
+        WebdavTransport.clear();
+        Transport.clearCache();
+    }
+
+
     public void errorHandler(Exception e) {
         e.printStackTrace();
         String errorMessage = e.getMessage();
@@ -280,14 +307,18 @@ public class DatabaseActions {
         accountNames = getAccountNames();
         populateListview(accountNames);
 
-        // Start a thread to listen for changes to the db file
+        // Start a thread to listen for changes to the db file. Our own saves
+        // pause the monitor so any change it sees was made by someone else,
+        // even if the file's header is at the revision we have open.
         FileChangedCallback callback = new FileChangedCallback() {
             public void fileChanged(File file) {
                 databaseNeedsReload = true;
                 mainWindow.setFileChangedPanelVisible(true);
             }
         };
-        fileMonitor = new FileMonitor(database.getDatabaseFile(), callback);
+        // Changes journalled by another instance only touch the journal
+        File[] files = {database.getDatabaseFile(), DatabaseJournal.getJournalFile(database.getDatabaseFile())};
+        fileMonitor = new FileMonitor(files, callback);
         Thread thread = new Thread(fileMonitor);
         thread.start();
 
@@ -302,8 +333,45 @@ public class DatabaseActions {
         mainWindow.getSearchField().requestFocusInWindow();
 
         mainWindow.getDatabaseFileChangedPanel().setVisible(false);
+
+        if (database.getJournalConflictFile() != null) {
+            JOptionPane.showMessageDialog(mainWindow,
+                    Translator.translate("journalConflict", database.getJournalConflictFile().getPath()),
+                    Translator.translate("journalConflictTitle"), JOptionPane.WARNING_MESSAGE);
+        }
+    }
+
+    /**
+     * Fetch just the header of the remote database.
+     * @return the remote database's revision if its header proves it isn't
+     * ahead of ours (see getRevisionIfNotAhead()), otherwise -1
+     */
+    private int getRemoteRevisionIfNotAhead(Transport transport, String remoteLocation, String fileName, String httpUsername, String httpPassword) {
+        try {
+            byte[] header = transport.getRemoteHeader(remoteLocation, fileName, httpUsername, httpPassword,
+                    PasswordDatabasePersistence.MAX_HEADER_LENGTH);
+            return getRevisionIfNotAhead(dbPers, header, database.getRevision());
+        } catch (TransportException e) {
+            LOG.debug("Couldn't get the header of the remote database", e);
+            return -1;
+        }
     }
 
+
+    /**
+     * @param header the start of another copy of the database
+     * @return its revision if the header's MAC verifies with our key and
+     * the revision isn't ahead of localRevision, so there's nothing to
+     * download. Otherwise -1, and the other copy has to be downloaded and
+     * decrypted to find out its revision. The revision in a header that
+     * doesn't verify is never used.
+     */
+    static int getRevisionIfNotAhead(PasswordDatabasePersistence dbPers, byte[] header, int localRevision) {
+        int revision = dbPers.getVerifiedRevision(header);
+        return revision >= 0 && revision <= localRevision ? revision : -1;
+    }
+
+
     private void configureAutoLock() {
         boolean lockIfInactive = Preferences.get(
                 Preferences.ApplicationOptions.DATABASE_AUTO_LOCK, "false").
@@ -327,13 +395,7 @@ public class DatabaseActions {
     }
 
     public ArrayList<String> getAccountNames() {
-        ArrayList<AccountInformation> dbAccounts = database.getAccounts();
-        ArrayList<String> accountNames = new ArrayList<>();
-        for (AccountInformation dbAccount : dbAccounts) {
-            String accountName = dbAccount.getAccountName();
-            accountNames.add(accountName);
-        }
-        return accountNames;
+        return database.getAccountNames();
     }
 
 
@@ -370,6 +432,15 @@ public class DatabaseActions {
 
     public void openDatabase(String databaseFilename, char[] password) throws IOException, ProblemReadingDatabaseFile, CryptoException {
 
+        // Don't ask for the password of a database that can't be opened anyway
+        DatabaseProbe probe = DatabaseProbe.probe(new File(databaseFilename));
+        if (probe.isUPMDatabase() && !probe.isSupported()) {
+            throw new ProblemReadingDatabaseFile("Don't know how to handle database version [" + probe.getDbVersion() + "]");
+        }
+
+        // Keys derived for whatever database was open before aren't needed
+        clearCachedSecrets();
+
         boolean passwordCorrect = false;
         boolean okClicked = true;
         while (!passwordCorrect && okClicked) {
@@ -431,7 +502,7 @@ public class DatabaseActions {
                 listview.removeElement(selectedAccName);
                 accountNames.remove(selectedAccName);
                 database.deleteAccount(selectedAccName);
-                saveDatabase();
+                saveAccountChange(selectedAccName, null);
                 //[1375385] Call the filter method so that the listview is
                 //reinitialised with the remaining matching items
                 filter();
@@ -456,7 +527,7 @@ public class DatabaseActions {
             if (accDialog.okClicked()) {
                 database.deleteAccount(accInfo.getAccountName());
                 database.addAccount(accInfo);
-                saveDatabase();
+                saveAccountChange(null, accInfo);
                 accountNames.add(accInfo.getAccountName());
                 //[1375390] Ensure that the listview is properly filtered after an add
                 filter();
@@ -467,9 +538,31 @@ public class DatabaseActions {
     }
 
 
-    public AccountInformation getSelectedAccount() {
+    public AccountInformation getSelectedAccount() throws ProblemReadingDatabaseFile {
         String selectedAccName = (String) mainWindow.getAccountsListview().getSelectedValue();
-        return database.getAccount(selectedAccName);
+        return getAccount(selectedAccName);
+    }
+
+
+    /**
+     * Get an account from the open database. If it can't be decrypted from
+     * the database file (most likely because the file's been replaced since
+     * it was opened) the user is offered a reload, the same as when the file
+     * monitor notices a change.
+     */
+    private AccountInformation getAccount(String accountName) throws ProblemReadingDatabaseFile {
+        try {
+            return database.getAccount(accountName);
+        } catch (ProblemReadingDatabaseFile e) {
+            offerReload();
+            throw e;
+        }
+    }
+
+
+    private void offerReload() {
+        databaseNeedsReload = true;
+        mainWindow.setFileChangedPanelVisible(true);
     }
 
 
@@ -495,7 +588,7 @@ public class DatabaseActions {
     }
 
 
-    public void viewAccount() {
+    public void viewAccount() throws ProblemReadingDatabaseFile {
         AccountInformation accInfo = getSelectedAccount();
         AccountDialog accDialog = new AccountDialog(accInfo, mainWindow, true, accountNames);
         accDialog.pack();
@@ -509,7 +602,7 @@ public class DatabaseActions {
             PasswordDatabaseException, InvalidPasswordException, UPMException {
 
         if (getLatestVersionOfDatabase()) {
-            AccountInformation accInfo = database.getAccount(accountName);
+            AccountInformation accInfo = getAccount(accountName);
             if (accInfo == null) {
                 throw new UPMException(
                         Translator.translate(
@@ -527,6 +620,7 @@ public class DatabaseActions {
                 accInfo = accDialog.getAccount();
                 database.deleteAccount(accountName);
                 database.addAccount(accInfo);
+                boolean dbOptionsChanged = false;
                 //If the new account name is different to the old account name then update the
                 //accountNames array and refilter the listview
                 if (!accInfo.getAccountName().equals(accountName)) {
@@ -534,13 +628,19 @@ public class DatabaseActions {
                     // so this has to be checked
                     if (accountName.equals(database.getDbOptions().getAuthDBEntry())) {
                         database.getDbOptions().setAuthDBEntry(accInfo.getAccountName());
+                        dbOptionsChanged = true;
                     }
                     accountNames.remove(accountName);
                     accountNames.add(accInfo.getAccountName());
                     //[1375390] Ensure that the listview is properly filtered after an edit
                     filter();
                 }
-                saveDatabase();
+                if (dbOptionsChanged) {
+                    // The journal only records account changes
+                    saveDatabase();
+                } else {
+                    saveAccountChange(accountName, accInfo);
+                }
             }
         }
 
@@ -642,6 +742,9 @@ public class DatabaseActions {
     public void showDatabaseProperties() throws ProblemReadingDatabaseFile, IOException, CryptoException, PasswordDatabaseException {
         try {
             if (getLatestVersionOfDatabase()) {
+                // The dialog uploads the database file if the remote
+                // location changes so it has to be up to date
+                saveJournalledChanges();
                 DatabasePropertiesDialog dbPropsDialog = new DatabasePropertiesDialog(mainWindow, getAccountNames(), database);
                 dbPropsDialog.pack();
                 dbPropsDialog.setLocationRelativeTo(mainWindow);
@@ -708,6 +811,7 @@ public class DatabaseActions {
         } catch (InvalidPasswordException e) {
             // The password for the reloaded database is different to that of
             // the open database
+            clearCachedSecrets();
             boolean okClicked = false;
             do {
                 char[] password = askUserForPassword(Translator.translate("enterDatabasePassword"));
@@ -727,6 +831,7 @@ public class DatabaseActions {
         }
 
         if (reloadedDb != null) {
+            database.wipe();
             database = reloadedDb;
             doOpenDatabaseActions();
         }
@@ -763,6 +868,7 @@ public class DatabaseActions {
         } catch (InvalidPasswordException e) {
             // The password for the reloaded database is different to that of
             // the open database
+            clearCachedSecrets();
             boolean okClicked = false;
             do {
                 char[] password = askUserForPassword(Translator
@@ -785,6 +891,7 @@ public class DatabaseActions {
         }
 
         if (reloadedDb != null) {
+            database.wipe();
             database = reloadedDb;
             doOpenDatabaseActions();
             reloadSuccessful = true;
@@ -797,6 +904,7 @@ public class DatabaseActions {
 
         boolean syncSuccessful = false;
 
+        PasswordDatabase remoteDatabase = null;
         try {
             fileMonitor.pause();
 
@@ -808,56 +916,82 @@ public class DatabaseActions {
             String httpUsername = null;
             String httpPassword = null;
             if (!authDBEntry.isEmpty()) {
-                httpUsername = database.getAccount(authDBEntry).getUserId();
-                httpPassword = database.getAccount(authDBEntry).getPassword();
+                httpUsername = getAccount(authDBEntry).getUserId();
+                httpPassword = getAccount(authDBEntry).getPassword();
             }
 
-            // Download the database that's already at the remote location
             Transport transport = Transport.getTransportForURL(remoteLocation);
-            File remoteDatabaseFile = transport.getRemoteFile(remoteLocation, database.getDatabaseFile().getName(), httpUsername, httpPassword);
+            String fileName = database.getDatabaseFile().getName();
+
+            // The remote database's header has its revision and a MAC made
+            // with our key. If it verifies and the remote database isn't
+            // ahead of ours there's no need to download it at all.
+            // Otherwise the direction is decided only from the decrypted
+            // remote database.
+            int remoteRevision = getRemoteRevisionIfNotAhead(transport, remoteLocation, fileName, httpUsername, httpPassword);
+            boolean revisionKnown = remoteRevision >= 0;
+
+            File remoteDatabaseFile = null;
+            if (!revisionKnown) {
+                // Download the database that's already at the remote location.
+                // Its plaintext header isn't authenticated so the direction
+                // is decided from the decrypted revision.
+                remoteDatabaseFile = transport.getRemoteFile(remoteLocation, fileName, httpUsername, httpPassword);
+            }
 
             // Attempt to decrypt the database using the password the user entered
-            PasswordDatabase remoteDatabase = null;
             char[] password = null;
             boolean successfullyDecryptedDb = false;
-            try {
-                remoteDatabase = dbPers.load(remoteDatabaseFile);
-                successfullyDecryptedDb = true;
-            } catch (InvalidPasswordException e) {
-                // The password for the downloaded database is different to that of the open database
-                // (most likely the user changed the local database's master password)
-                boolean okClicked = false;
-                do {
-                    password = askUserForPassword(Translator.translate("enterPaswordForRemoteDB"));
-                    if (password == null) {
-                        okClicked = false;
-                    } else {
-                        okClicked = true;
-                        try {
-                            remoteDatabase = dbPers.load(remoteDatabaseFile, password);
-                            successfullyDecryptedDb = true;
-                        } catch (InvalidPasswordException invalidPassword) {
-                            JOptionPane.showMessageDialog(mainWindow, Translator.translate("incorrectPassword"));
+            if (!revisionKnown) {
+                try {
+                    remoteDatabase = dbPers.load(remoteDatabaseFile);
+                    successfullyDecryptedDb = true;
+                } catch (InvalidPasswordException e) {
+                    // The password for the downloaded database is different to that of the open database
+                    // (most likely the user changed the local database's master password)
+                    boolean okClicked = false;
+                    do {
+                        password = askUserForPassword(Translator.translate("enterPaswordForRemoteDB"));
+                        if (password == null) {
+                            okClicked = false;
+                        } else {
+                            okClicked = true;
+                            try {
+                                remoteDatabase = dbPers.load(remoteDatabaseFile, password);
+                                successfullyDecryptedDb = true;
+                            } catch (InvalidPasswordException invalidPassword) {
+                                JOptionPane.showMessageDialog(mainWindow, Translator.translate("incorrectPassword"));
+                            }
                         }
-                    }
-                } while (okClicked && !successfullyDecryptedDb);
+                    } while (okClicked && !successfullyDecryptedDb);
+                }
             }
 
             /* If the local database revision > remote database version => upload local database
                If the local database revision < remote database version => replace local database with remote database
                If the local database revision = remote database version => do nothing */
-            if (successfullyDecryptedDb) {
-                if (database.getRevision() > remoteDatabase.getRevision()) {
-                    transport.delete(remoteLocation, database.getDatabaseFile().getName(), httpUsername, httpPassword);
+            if (revisionKnown || successfullyDecryptedDb) {
+                if (!revisionKnown) {
+                    remoteRevision = remoteDatabase.getRevision();
+                }
+                if (database.getRevision() > remoteRevision) {
+                    saveJournalledChanges();
+                    transport.delete(remoteLocation, fileName, httpUsername, httpPassword);
                     transport.put(remoteLocation, database.getDatabaseFile(), httpUsername, httpPassword);
                     syncSuccessful = true;
-                } else if (database.getRevision() < remoteDatabase.getRevision()) {
+                } else if (database.getRevision() < remoteRevision) {
+                    dbPers.discardJournal(database);
                     Util.copyFile(remoteDatabaseFile, database.getDatabaseFile());
+                    PasswordDatabase oldDatabase = database;
                     database = new PasswordDatabase(
                             remoteDatabase.getRevisionObj(),
                             remoteDatabase.getDbOptions(),
                             remoteDatabase.getAccountsHash(),
-                            database.getDatabaseFile());
+                            oldDatabase.getDatabaseFile());
+                    database.setDbVersion(remoteDatabase.getDbVersion());
+                    // Its accounts, and their secrets, belong to database now
+                    remoteDatabase = null;
+                    oldDatabase.wipe();
                     doOpenDatabaseActions();
                     syncSuccessful = true;
                 } else {
@@ -898,6 +1032,9 @@ public class DatabaseActions {
             }
 
         } finally {
+            if (remoteDatabase != null) {
+                remoteDatabase.wipe();
+            }
             mainWindow.getContentPane().setCursor(new Cursor(Cursor.DEFAULT_CURSOR));
             fileMonitor.start();
         }
@@ -912,7 +1049,7 @@ public class DatabaseActions {
     }
 
 
-    public void export() {
+    public void export() throws ProblemReadingDatabaseFile {
         File exportFile = getSaveAsFile(Translator.translate("exportFile"));
         if (exportFile == null) {
             return;
@@ -922,9 +1059,17 @@ public class DatabaseActions {
             exportFile.delete();
         }
 
+        ArrayList<AccountInformation> accounts;
+        try {
+            accounts = database.getAccounts();
+        } catch (ProblemReadingDatabaseFile e) {
+            offerReload();
+            throw e;
+        }
+
         AccountsCSVMarshaller marshaller = new AccountsCSVMarshaller();
         try {
-            marshaller.marshal(database.getAccounts(), exportFile);
+            marshaller.marshal(accounts, exportFile);
         } catch (ExportException e) {
             JOptionPane.showMessageDialog(mainWindow, e.getMessage(), Translator.translate("problemExporting"), JOptionPane.ERROR_MESSAGE);
         }
@@ -951,7 +1096,7 @@ public class DatabaseActions {
                     // Add each account to the open database. If the account
                     // already exits the prompt to overwrite
                     for (AccountInformation importedAccount : accountsInCSVFile) {
-                        if (database.getAccount(importedAccount.getAccountName()) != null) {
+                        if (getAccount(importedAccount.getAccountName()) != null) {
                             Object[] options = {"Overwrite Existing", "Keep Existing", "Cancel"};
                             int answer = JOptionPane.showOptionDialog(
                                     mainWindow,
@@ -1040,14 +1185,123 @@ public class DatabaseActions {
 
 
     private void saveDatabase() throws IOException, CryptoException {
-        dbPers.save(database);
+        // Pause the monitor so that it doesn't mistake our own save for a
+        // change made by someone else
         if (fileMonitor != null) {
-            fileMonitor.start();
+            fileMonitor.pause();
+        }
+        try {
+            try {
+                dbPers.save(database);
+            } catch (FieldTooLongException e) {
+                // One of the fields won't fit in this version of the database.
+                // Offer to upgrade it, the user may still need to open it with
+                // an older version of UPM somewhere.
+                int answer = JOptionPane.showConfirmDialog(mainWindow,
+                        Translator.translate("askUpgradeDatabaseFormat"),
+                        Translator.translate("upgradeDatabaseFormat"),
+                        JOptionPane.YES_NO_OPTION);
+                if (answer != JOptionPane.YES_OPTION) {
+                    throw e;
+                }
+                database.setDbVersion(PasswordDatabasePersistence.LATEST_DB_VERSION);
+                dbPers.save(database);
+            }
+        } finally {
+            if (fileMonitor != null) {
+                fileMonitor.start();
+            }
         }
         setLocalDatabaseDirty(databaseHasRemoteInstance());
     }
 
 
+    /**
+     * Save a change to a single account. If the user has asked for changes
+     * to be journalled only the change is written and the journal is folded
+     * into the database file once it's big enough. Otherwise the whole
+     * database is saved.
+     */
+    private void saveAccountChange(String deletedAccountName, AccountInformation account) throws IOException, CryptoException {
+        if (!Boolean.parseBoolean(Preferences.get(Preferences.ApplicationOptions.DATABASE_JOURNAL, "false"))) {
+            saveDatabase();
+            return;
+        }
+
+        // Pause the monitor so that it doesn't mistake our own change to
+        // the journal for one made by someone else
+        if (fileMonitor != null) {
+            fileMonitor.pause();
+        }
+        try {
+            dbPers.saveChange(database, deletedAccountName, account);
+        } catch (FieldTooLongException e) {
+            // Let saveDatabase() offer to upgrade the database
+            saveDatabase();
+            return;
+        } finally {
+            if (fileMonitor != null) {
+                fileMonitor.start();
+            }
+        }
+        setLocalDatabaseDirty(databaseHasRemoteInstance());
+
+        if (dbPers.journalNeedsCompacting(database)) {
+            if (database.hasUnloadedAccounts()) {
+                // Compacting would move the encrypted accounts around in the
+                // file without telling the in memory database. A full save
+                // copies them across without decrypting them anyway.
+                saveDatabase();
+            } else {
+                compactJournalInBackground();
+            }
+        }
+    }
+
+
+    /**
+     * Make sure the database file has all the changes in the journal
+     */
+    private void saveJournalledChanges() throws IOException, CryptoException {
+        if (dbPers.hasJournal(database)) {
+            saveDatabase();
+        }
+    }
+
+
+    private void compactJournalInBackground() {
+        final PasswordDatabasePersistence persistence = dbPers;
+        final File databaseFile = database.getDatabaseFile();
+        final FileMonitor monitor = fileMonitor;
+        if (monitor != null) {
+            monitor.pause();
+        }
+        Thread compactJournalThread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    persistence.compactJournal(databaseFile);
+                } catch (Exception e) {
+                    // The journal is still intact so nothing's lost, it'll
+                    // be replayed the next time the database is opened
+                    LOG.error("Problem compacting the journal for " + databaseFile, e);
+                } finally {
+                    if (monitor != null) {
+                        // Restart the monitor on the event thread so that it
+                        // can't race with a save that's waiting for us
+                        SwingUtilities.invokeLater(new Runnable() {
+                            public void run() {
+                                monitor.start();
+                            }
+                        });
+                    }
+                }
+            }
+        });
+        compactJournalThread.setName("CompactJournal");
+        compactJournalThread.start();
+    }
+
+
     private void setLocalDatabaseDirty(boolean dirty) {
         localDatabaseDirty = dirty;
 
@@ -1133,6 +1387,8 @@ public class DatabaseActions {
                         databaseClosedOnTimer =
                                 database.getDatabaseFile().getAbsolutePath();
                         doCloseDatabaseActions();
+                        database.wipe();
+                        clearCachedSecrets();
                         database = null;
                         closeDBTimer = null;
                     }
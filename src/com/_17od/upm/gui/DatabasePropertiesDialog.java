@@ -47,6 +47,8 @@ import javax.swing.border.Border;
 import javax.swing.border.EtchedBorder;
 
 import com._17od.upm.database.PasswordDatabase;
+import com._17od.upm.database.PasswordDatabasePersistence;
+import com._17od.upm.database.ProblemReadingDatabaseFile;
 import com._17od.upm.transport.Transport;
 import com._17od.upm.transport.TransportException;
 import com._17od.upm.util.Translator;
@@ -138,6 +140,28 @@ public class DatabasePropertiesDialog extends EscapeDialog {
         c.gridy = 4;
         c.weighty = 1;
         mainPanel.add(verticalSpace, c);
+
+        // The database format panel
+        Border formatTitleBorder = BorderFactory.createTitledBorder(etchedBorder, ' ' + Translator.translate("databaseFormat") + ' ');
+        JPanel formatPanel = new JPanel(new GridBagLayout());
+        formatPanel.setBorder(formatTitleBorder);
+        emptyBorderPanel.add(formatPanel);
+
+        String[] formats = new String[PasswordDatabasePersistence.LATEST_DB_VERSION - PasswordDatabasePersistence.DEFAULT_DB_VERSION + 1];
+        for (int i = 0; i < formats.length; i++) {
+            formats[i] = Translator.translate("databaseFormatVersion" + (PasswordDatabasePersistence.DEFAULT_DB_VERSION + i));
+        }
+        final JComboBox<String> format = new JComboBox<>(formats);
+        format.setSelectedIndex(database.getDbVersion() - PasswordDatabasePersistence.DEFAULT_DB_VERSION);
+        c.gridx = 0;
+        c.gridy = 0;
+        c.anchor = GridBagConstraints.LINE_START;
+        c.insets = new Insets(0, 3, 3, 3);
+        c.weightx = 1;
+        c.weighty = 0;
+        c.gridwidth = 1;
+        c.fill = GridBagConstraints.HORIZONTAL;
+        formatPanel.add(format, c);
         
         // The buttons row
         JPanel buttonPanel = new JPanel(new FlowLayout());
@@ -145,7 +169,8 @@ public class DatabasePropertiesDialog extends EscapeDialog {
         JButton okButton = new JButton(Translator.translate("ok"));
         okButton.addActionListener(new ActionListener() {
             public void actionPerformed(ActionEvent e) {
-                saveDatabaseOptions(frame, urlTextField.getText().trim(), (String) auth.getSelectedItem(), database);
+                int dbVersion = PasswordDatabasePersistence.DEFAULT_DB_VERSION + format.getSelectedIndex();
+                saveDatabaseOptions(frame, urlTextField.getText().trim(), (String) auth.getSelectedItem(), dbVersion, database);
             }
         });
         buttonPanel.add(okButton);
@@ -176,14 +201,15 @@ public class DatabasePropertiesDialog extends EscapeDialog {
     }
     
     
-    private void saveDatabaseOptions(JFrame parentFrame, String remoteLocation, String authEntry, PasswordDatabase database) {
+    private void saveDatabaseOptions(JFrame parentFrame, String remoteLocation, String authEntry, int dbVersion, PasswordDatabase database) {
 
         boolean canCloseWindow = false;
 
-        // If either the url or authentication entry to use have changed then update 
+        // If either the url, authentication entry or format to use have changed then update 
         // the flag to indicate that the database needs to be saved
         if (!database.getDbOptions().getRemoteLocation().equals(remoteLocation) ||
-                !database.getDbOptions().getAuthDBEntry().equals(authEntry)) {
+                !database.getDbOptions().getAuthDBEntry().equals(authEntry) ||
+                database.getDbVersion() != dbVersion) {
             databaseNeedsSaving = true;
         } else {
             // If the db doesn't need to be saved then we can close this window
@@ -214,6 +240,8 @@ public class DatabasePropertiesDialog extends EscapeDialog {
                             canCloseWindow = true;
                         } catch (TransportException e ){
                             JOptionPane.showMessageDialog(parentFrame, e.getMessage(), Translator.translate("transportError"), JOptionPane.ERROR_MESSAGE);                            
+                        } catch (ProblemReadingDatabaseFile e) {
+                            JOptionPane.showMessageDialog(parentFrame, e.getMessage(), Translator.translate("error"), JOptionPane.ERROR_MESSAGE);
                         }
                     } else {
                         canCloseWindow = true;
@@ -240,6 +268,7 @@ public class DatabasePropertiesDialog extends EscapeDialog {
                 if (databaseNeedsSaving) {
                     database.getDbOptions().setAuthDBEntry(authEntry);
                     database.getDbOptions().setRemoteLocation(remoteLocation);
+                    database.setDbVersion(dbVersion);
                 }
                 setVisible(false);
                 dispose();
@@ -255,4 +284,4 @@ public class DatabasePropertiesDialog extends EscapeDialog {
         return databaseNeedsSaving;
     }
 
-}
\ No newline at end of file
+}
\ No newline at end of file
@@ -552,7 +552,13 @@ public class MainWindow extends JFrame implements ActionListener {
 
 			public void actionPerformed(ActionEvent e) {
 
-				AccountInformation accInfo = dbActions.getSelectedAccount();
+				AccountInformation accInfo;
+				try {
+					accInfo = dbActions.getSelectedAccount();
+				} catch (ProblemReadingDatabaseFile ex) {
+					dbActions.errorHandler(ex);
+					return;
+				}
 				String uRl = accInfo.getUrl();
 
 				// Check if the selected url is null or emty and inform the user
@@ -748,7 +754,13 @@ public class MainWindow extends JFrame implements ActionListener {
 
 			public void actionPerformed(ActionEvent e) {
 
-				AccountInformation accInfo = dbActions.getSelectedAccount();
+				AccountInformation accInfo;
+				try {
+					accInfo = dbActions.getSelectedAccount();
+				} catch (ProblemReadingDatabaseFile ex) {
+					dbActions.errorHandler(ex);
+					return;
+				}
 				String uRl = accInfo.getUrl();
 
 				// Check if the selected url is null or emty and inform the user
@@ -811,13 +823,21 @@ public class MainWindow extends JFrame implements ActionListener {
 	}
 
 	private void copyUsernameToClipboard() {
-		AccountInformation accInfo = dbActions.getSelectedAccount();
-		copyToClipboard(accInfo.getUserId());
+		try {
+			AccountInformation accInfo = dbActions.getSelectedAccount();
+			copyToClipboard(accInfo.getUserId());
+		} catch (ProblemReadingDatabaseFile e) {
+			dbActions.errorHandler(e);
+		}
 	}
 
 	private void copyPasswordToClipboard() {
-		AccountInformation accInfo = dbActions.getSelectedAccount();
-		copyToClipboard(accInfo.getPassword());
+		try {
+			AccountInformation accInfo = dbActions.getSelectedAccount();
+			copyToClipboard(accInfo.getPassword());
+		} catch (ProblemReadingDatabaseFile e) {
+			dbActions.errorHandler(e);
+		}
 	}
 
 	private void copyToClipboard(String s) {
@@ -64,6 +64,7 @@ public class OptionsDialog extends EscapeDialog {
 	private JCheckBox inclEscCharstoPassCheckbox;
 	private JCheckBox storeWindowPosCheckbox;
 	private JCheckBox appAlwaysonTopCheckbox;
+	private JCheckBox databaseJournalCheckbox;
 	private JLabel accountPasswordLengthLabel;
 	private JTextField accountPasswordLength;
 	private JTextField httpProxyHost;
@@ -308,6 +309,21 @@ public class OptionsDialog extends EscapeDialog {
 		c.fill = GridBagConstraints.NONE;
 		mainPanel.add(appAlwaysonTopCheckbox, c);
 
+		// The "Journal changes" row
+		boolean databaseJournal = Boolean.parseBoolean(
+				Preferences.get(Preferences.ApplicationOptions.DATABASE_JOURNAL, "false"));
+		databaseJournalCheckbox = new JCheckBox((Translator.translate("journalChanges")),
+				databaseJournal);
+		c.gridx = 0;
+		c.gridy = 10;
+		c.anchor = GridBagConstraints.LINE_START;
+		c.insets = new Insets(0, 2, 5, 0);
+		c.weightx = 1;
+		c.weighty = 0;
+		c.gridwidth = 1;
+		c.fill = GridBagConstraints.NONE;
+		mainPanel.add(databaseJournalCheckbox, c);
+
 		// Some spacing
 		emptyBorderPanel.add(Box.createVerticalGlue());
 
@@ -562,6 +578,8 @@ public class OptionsDialog extends EscapeDialog {
 			Preferences.set(Preferences.ApplicationOptions.DATABASE_AUTO_LOCK,
 					String.valueOf(databaseAutoLockCheckbox.isSelected()));
 			Preferences.set(Preferences.ApplicationOptions.DATABASE_AUTO_LOCK_TIME, databaseAutoLockTime.getText());
+			Preferences.set(Preferences.ApplicationOptions.DATABASE_JOURNAL,
+					String.valueOf(databaseJournalCheckbox.isSelected()));
 			Preferences.set(Preferences.ApplicationOptions.ACCOUNT_PASSWORD_LENGTH, accountPasswordLength.getText());
 			Preferences.set(Preferences.ApplicationOptions.HTTPS_ACCEPT_SELFSIGNED_CERTS,
 					String.valueOf(acceptSelfSignedCertsCheckbox.isSelected()));
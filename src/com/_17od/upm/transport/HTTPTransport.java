@@ -20,17 +20,23 @@
  */
 package com._17od.upm.transport;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.file.Path;
 
 import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.httpclient.Credentials;
+import org.apache.commons.httpclient.Header;
 import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpConnectionManager;
 import org.apache.commons.httpclient.HttpException;
+import org.apache.commons.httpclient.HttpMethod;
 import org.apache.commons.httpclient.HttpStatus;
 import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
 import org.apache.commons.httpclient.UsernamePasswordCredentials;
@@ -52,8 +58,17 @@ public class HTTPTransport extends Transport {
 
 
     public HTTPTransport() {
+        this(new MultiThreadedHttpConnectionManager());
+    }
+
+
+    /**
+     * @param connectionManager pool of connections, which may be shared
+     * with other transports (see TransportRegistry)
+     */
+    public HTTPTransport(HttpConnectionManager connectionManager) {
 
-        client = new HttpClient(new MultiThreadedHttpConnectionManager());
+        client = new HttpClient(connectionManager);
 
         boolean acceptSelfSignedCerts =
                 Boolean.parseBoolean(Preferences.get(
@@ -65,6 +80,10 @@ public class HTTPTransport extends Transport {
                     (ProtocolSocketFactory) new EasySSLProtocolSocketFactory(),
                     443);
             Protocol.registerProtocol("https", httpsProtocol);
+        } else if (Protocol.getProtocol("https").getSocketFactory() instanceof EasySSLProtocolSocketFactory) {
+            // The option's been turned off since, go back to the default
+            // (which is registered again the next time it's asked for)
+            Protocol.unregisterProtocol("https");
         }
 
         //Get the proxy settings
@@ -93,6 +112,7 @@ public class HTTPTransport extends Transport {
     
     public void put(String targetLocation, File file, String username, String password) throws TransportException {
 
+        forgetRemoteFile(addTrailingSlash(targetLocation) + file.getName());
         targetLocation = addTrailingSlash(targetLocation) + "upload.php";
         
         PostMethod post = new PostMethod(targetLocation);
@@ -109,13 +129,7 @@ public class HTTPTransport extends Transport {
             );
 
             //Set the HTTP authentication details
-            if (username != null) {
-                Credentials creds = new UsernamePasswordCredentials(username, password);
-                URL url = new URL(targetLocation);
-                AuthScope authScope = new AuthScope(url.getHost(), url.getPort());
-                client.getState().setCredentials(authScope, creds);
-                client.getParams().setAuthenticationPreemptive(true);
-            }
+            setCredentials(targetLocation, username, password);
 
             // This line makes the HTTP call
             int status = client.executeMethod(post);
@@ -150,6 +164,11 @@ public class HTTPTransport extends Transport {
 
 
     public byte[] get(String url, String username, String password) throws TransportException {
+        return getIfChanged(url, username, password, new Validators());
+    }
+
+
+    protected byte[] getIfChanged(String url, String username, String password, Validators validators) throws TransportException {
 
         byte[] retVal = null;
 
@@ -159,22 +178,17 @@ public class HTTPTransport extends Transport {
         //the connection to the HTTP server is always closed cleanly 
         try {
 
-            //Set the authentication details
-            if (username != null) {
-                Credentials creds = new UsernamePasswordCredentials(username, password);
-                URL urlObj = new URL(url);
-                AuthScope authScope = new AuthScope(urlObj.getHost(), urlObj.getPort());
-                client.getState().setCredentials(authScope, creds);
-                client.getParams().setAuthenticationPreemptive(true);
-            }
-
-            int statusCode = client.executeMethod(method);
+            int statusCode = executeGet(method, url, username, password, validators);
 
+            if (statusCode == HttpStatus.SC_NOT_MODIFIED && !validators.isEmpty()) {
+                return null;
+            }
             if (statusCode != HttpStatus.SC_OK) {
                 throw new TransportException("There's been some kind of problem getting the URL [" + url + "].\n\nThe HTTP error message is [" + HttpStatus.getStatusText(statusCode) + "]");
             }
 
             retVal = method.getResponseBody();
+            validators.set(getHeader(method, "ETag"), getHeader(method, "Last-Modified"));
 
         } catch (MalformedURLException e) {
             throw new TransportException(e);
@@ -190,9 +204,100 @@ public class HTTPTransport extends Transport {
 
     }
 
+
+    protected boolean downloadIfChanged(String url, String username, String password, Path target, Validators validators) throws TransportException {
+
+        GetMethod method = new GetMethod(url);
+
+        try {
+
+            int statusCode = executeGet(method, url, username, password, validators);
+
+            if (statusCode == HttpStatus.SC_NOT_MODIFIED && !validators.isEmpty()) {
+                return false;
+            }
+            if (statusCode != HttpStatus.SC_OK) {
+                throw new TransportException("There's been some kind of problem getting the URL [" + url + "].\n\nThe HTTP error message is [" + HttpStatus.getStatusText(statusCode) + "]");
+            }
+
+            InputStream is = method.getResponseBodyAsStream();
+            copy(is == null ? new ByteArrayInputStream(new byte[0]) : is, target);
+            validators.set(getHeader(method, "ETag"), getHeader(method, "Last-Modified"));
+            return true;
+
+        } catch (MalformedURLException e) {
+            throw new TransportException(e);
+        } catch (HttpException e) {
+            throw new TransportException(e);
+        } catch (IOException e) {
+            throw new TransportException(e);
+        } finally {
+            method.releaseConnection();
+        }
+
+    }
+
+
+    protected byte[] getRangeIfChanged(String url, String username, String password, int length, Validators validators) throws TransportException {
+
+        GetMethod method = new GetMethod(url);
+        method.setRequestHeader("Range", "bytes=0-" + (length - 1));
+
+        try {
+
+            int statusCode = executeGet(method, url, username, password, validators);
+
+            if (statusCode == HttpStatus.SC_NOT_MODIFIED && !validators.isEmpty()) {
+                return null;
+            }
+            if (statusCode != HttpStatus.SC_PARTIAL_CONTENT && statusCode != HttpStatus.SC_OK) {
+                throw new TransportException("There's been some kind of problem getting the URL [" + url + "].\n\nThe HTTP error message is [" + HttpStatus.getStatusText(statusCode) + "]");
+            }
+
+            InputStream is = method.getResponseBodyAsStream();
+            byte[] retVal = is == null ? new byte[0] : readUpTo(is, length);
+            if (statusCode == HttpStatus.SC_OK) {
+                // The server ignored the range, don't read the rest
+                method.abort();
+            }
+            return retVal;
+
+        } catch (MalformedURLException e) {
+            throw new TransportException(e);
+        } catch (HttpException e) {
+            throw new TransportException(e);
+        } catch (IOException e) {
+            throw new TransportException(e);
+        } finally {
+            method.releaseConnection();
+        }
+
+    }
+
+
+    /**
+     * Make the GET conditional on validators, set the authentication
+     * details and execute it
+     * @return the HTTP status code
+     */
+    private int executeGet(GetMethod method, String url, String username, String password, Validators validators) throws IOException {
+        if (validators.getETag() != null) {
+            method.setRequestHeader("If-None-Match", validators.getETag());
+        }
+        if (validators.getLastModified() != null) {
+            method.setRequestHeader("If-Modified-Since", validators.getLastModified());
+        }
+
+        //Set the authentication details
+        setCredentials(url, username, password);
+
+        return client.executeMethod(method);
+    }
+
     
     public void delete(String targetLocation, String name, String username, String password) throws TransportException {
 
+        forgetRemoteFile(addTrailingSlash(targetLocation) + name);
         targetLocation = addTrailingSlash(targetLocation) + "deletefile.php";
 
         PostMethod post = new PostMethod(targetLocation);
@@ -203,13 +308,7 @@ public class HTTPTransport extends Transport {
         try {
 
             //Set the authentication details
-            if (username != null) {
-                Credentials creds = new UsernamePasswordCredentials(username, password);
-                URL url = new URL(targetLocation);
-                AuthScope authScope = new AuthScope(url.getHost(), url.getPort());
-                client.getState().setCredentials(authScope, creds);
-                client.getParams().setAuthenticationPreemptive(true);
-            }
+            setCredentials(targetLocation, username, password);
 
             int status = client.executeMethod(post);
             if (status != HttpStatus.SC_OK) {
@@ -231,4 +330,28 @@ public class HTTPTransport extends Transport {
         }
 
     }
+
+
+    /**
+     * Set the credentials for the next request, or clear them if username
+     * is null. The client is shared (see TransportRegistry) so the
+     * credentials from an earlier request mustn't be left for this one.
+     */
+    private void setCredentials(String url, String username, String password) throws MalformedURLException {
+        client.getState().clearCredentials();
+        if (username != null) {
+            Credentials creds = new UsernamePasswordCredentials(username, password);
+            URL urlObj = new URL(url);
+            AuthScope authScope = new AuthScope(urlObj.getHost(), urlObj.getPort());
+            client.getState().setCredentials(authScope, creds);
+        }
+        client.getParams().setAuthenticationPreemptive(username != null);
+    }
+
+
+    private static String getHeader(HttpMethod method, String name) {
+        Header header = method.getResponseHeader(name);
+        return header == null ? null : header.getValue();
+    }
+
 }
@@ -21,10 +21,21 @@
 package com._17od.upm.transport;
 
 import java.io.File;
-import java.io.FileOutputStream;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URL;
-import java.util.Locale;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
 
 
 /**
@@ -33,6 +44,13 @@ import java.util.Locale;
  */
 public abstract class Transport {
 
+    // The last copy of each remote file downloaded by getRemoteFile(), keyed
+    // by URL and username, so that it can be reused if the file hasn't
+    // changed since. A copy is deleted as soon as it's dropped from here.
+    private static final Map<String, CachedFile> cachedFiles = new HashMap<>();
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
     public abstract void put(String targetLocation, File file, String username, String password) throws TransportException;
 
     public void put(String targetLocation, File file) throws TransportException {
@@ -50,6 +68,56 @@ public abstract class Transport {
 
     public abstract byte[] get(String url, String username, String password) throws TransportException;
 
+    /**
+     * Get the file at url unless it still matches validators, in which case
+     * return null. Otherwise validators are replaced with the ones for the
+     * file that was got (they're left empty if there aren't any). Transports
+     * that can't make conditional requests always get the file.
+     */
+    protected byte[] getIfChanged(String url, String username, String password, Validators validators) throws TransportException {
+        return get(url, username, password);
+    }
+
+    /**
+     * Get the first length bytes of the file at url (or all of it if it's
+     * shorter) unless it still matches validators, in which case return
+     * null. Transports that can't ask for part of a file get all of it.
+     */
+    protected byte[] getRangeIfChanged(String url, String username, String password, int length, Validators validators) throws TransportException {
+        byte[] file = getIfChanged(url, username, password, new Validators(validators.getETag(), validators.getLastModified()));
+        return file == null || file.length <= length ? file : Arrays.copyOf(file, length);
+    }
+
+    /**
+     * Download the file at url to target, replacing anything that's already
+     * there. The file is streamed to disk rather than held in memory.
+     */
+    public void download(String url, Path target) throws TransportException {
+        download(url, null, null, target);
+    }
+
+    public void download(String url, String username, String password, Path target) throws TransportException {
+        downloadIfChanged(url, username, password, target, new Validators());
+    }
+
+    /**
+     * Like getIfChanged() but the file is written to target.
+     * @return false if the file still matches validators, in which case
+     * target is left as it was
+     */
+    protected boolean downloadIfChanged(String url, String username, String password, Path target, Validators validators) throws TransportException {
+        byte[] file = getIfChanged(url, username, password, validators);
+        if (file == null) {
+            return false;
+        }
+        try {
+            Files.write(target, file);
+        } catch (IOException e) {
+            throw new TransportException(e);
+        }
+        return true;
+    }
+
     public abstract void delete(String targetLocation, String name, String username, String password) throws TransportException;
 
     public void delete(String targetLocation, String name) throws TransportException {
@@ -71,28 +139,158 @@ public abstract class Transport {
         return getRemoteFile(remoteLocation + fileName, httpUsername, httpPassword);
     }
 
+    /**
+     * Download the remote file to a temporary file. If the same file has
+     * been downloaded before the request is conditional on it having
+     * changed since, and if it hasn't the earlier copy is returned. The
+     * returned file mustn't be modified. It's deleted when a newer copy is
+     * downloaded, the file is uploaded or deleted, clearCache() is called,
+     * or at the latest when the JVM exits.
+     */
     public File getRemoteFile(String remoteLocation, String httpUsername, String httpPassword) throws TransportException {
+        String key = remoteLocation + '\n' + httpUsername;
+        CachedFile cached;
+        synchronized (cachedFiles) {
+            cached = cachedFiles.get(key);
+        }
+        Validators validators = new Validators();
+        if (cached != null && cached.file.isFile()) {
+            validators.set(cached.validators.getETag(), cached.validators.getLastModified());
+        }
+
+        File downloadedFile;
         try {
-            byte[] remoteFile = get(remoteLocation, httpUsername, httpPassword);
-            File downloadedFile = File.createTempFile("upm", null);
-            try (FileOutputStream fos = new FileOutputStream(downloadedFile)) {
-                fos.write(remoteFile);
+            downloadedFile = File.createTempFile("upm", null);
+        } catch (IOException e) {
+            throw new TransportException(e);
+        }
+        downloadedFile.deleteOnExit();
+        boolean downloaded = false;
+        try {
+            if (!downloadIfChanged(remoteLocation, httpUsername, httpPassword, downloadedFile.toPath(), validators)) {
+                return cached.file;
+            }
+            downloaded = true;
+        } finally {
+            if (!downloaded) {
+                downloadedFile.delete();
+            }
+        }
+        synchronized (cachedFiles) {
+            if (validators.isEmpty()) {
+                discard(cachedFiles.remove(key));
+            } else {
+                discard(cachedFiles.put(key, new CachedFile(validators, downloadedFile)));
             }
-            return downloadedFile;
+        }
+        return downloadedFile;
+    }
+
+    /**
+     * Get just the start of the remote file, e.g. to read a database's
+     * header without downloading the whole thing. If the file hasn't changed
+     * since getRemoteFile() last downloaded it the start of that copy is
+     * returned instead.
+     * @return the first length bytes, or fewer if the file is shorter
+     */
+    public byte[] getRemoteHeader(String remoteLocation, String fileName, String httpUsername, String httpPassword, int length) throws TransportException {
+        String url = addTrailingSlash(remoteLocation) + fileName;
+        CachedFile cached;
+        synchronized (cachedFiles) {
+            cached = cachedFiles.get(url + '\n' + httpUsername);
+        }
+        Validators validators = new Validators();
+        if (cached != null && cached.file.isFile()) {
+            validators.set(cached.validators.getETag(), cached.validators.getLastModified());
+        }
+
+        byte[] header = getRangeIfChanged(url, httpUsername, httpPassword, length, validators);
+        if (header != null) {
+            return header;
+        }
+        try (InputStream is = new FileInputStream(cached.file)) {
+            return readUpTo(is, length);
         } catch (IOException e) {
             throw new TransportException(e);
         }
     }
 
-    public static Transport getTransportForURL(String url) {
-        String lowerUrl = url.toLowerCase(Locale.getDefault());
-        if (lowerUrl.startsWith("http:") || lowerUrl.startsWith("https:")) {
-            return new HTTPTransport();
+    /**
+     * @return the first length bytes of the stream, or fewer if it ends
+     * before then
+     */
+    protected static byte[] readUpTo(InputStream is, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        int offset = 0;
+        int bytesRead;
+        while (offset < length && (bytesRead = is.read(bytes, offset, length - offset)) != -1) {
+            offset += bytesRead;
+        }
+        return offset == length ? bytes : Arrays.copyOf(bytes, offset);
+    }
+
+    /**
+     * Copy the stream to target through a FileChannel, so however big the
+     * file is only BUFFER_SIZE bytes of it are in memory at a time
+     */
+    protected static void copy(InputStream is, Path target) throws IOException {
+        ReadableByteChannel in = Channels.newChannel(is);
+        try (FileChannel out = FileChannel.open(target, StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            while (in.read(buffer) != -1) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+                buffer.clear();
+            }
+        }
+    }
+
+    /**
+     * Forget the cached copies of the remote file at url, whoever they were
+     * downloaded by. Called when the file's been uploaded or deleted. Most
+     * servers would say it had changed anyway but Last-Modified only has a
+     * resolution of a second.
+     */
+    protected static void forgetRemoteFile(String url) {
+        synchronized (cachedFiles) {
+            for (Iterator<Map.Entry<String, CachedFile>> it = cachedFiles.entrySet().iterator(); it.hasNext();) {
+                Map.Entry<String, CachedFile> entry = it.next();
+                if (entry.getKey().startsWith(url + '\n')) {
+                    discard(entry.getValue());
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Forget and delete every cached copy of a remote file, along with the
+     * usernames they're keyed by. Called when the database is locked.
+     */
+    public static void clearCache() {
+        synchronized (cachedFiles) {
+            for (CachedFile cached : cachedFiles.values()) {
+                discard(cached);
+            }
+            cachedFiles.clear();
         }
-        if (lowerUrl.startsWith("webdav:") || lowerUrl.startsWith("webdavs:")) {
-            return new WebdavTransport();
+    }
+
+    private static void discard(CachedFile cached) {
+        if (cached != null) {
+            cached.file.delete();
         }
-        return null;
+    }
+
+    /**
+     * @return the shared transport for url (see TransportRegistry), or
+     * null if its protocol isn't supported
+     */
+    public static Transport getTransportForURL(String url) {
+        return TransportRegistry.getTransport(url);
     }
     
     public static boolean isASupportedProtocol(String protocol) {
@@ -119,4 +317,18 @@ public abstract class Transport {
     protected static boolean isNotEmpty(String stringToCheck) {
         return stringToCheck != null && !stringToCheck.trim().isEmpty();
     }
+
+
+    private static final class CachedFile {
+
+        final Validators validators;
+        final File file;
+
+        CachedFile(Validators validators, File file) {
+            this.validators = validators;
+            this.file = file;
+        }
+
+    }
+
 }
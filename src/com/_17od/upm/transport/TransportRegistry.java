@@ -0,0 +1,140 @@
+/*
+ * Universal Password Manager
+ * Copyright (C) 2005-2013 Adrian Smith
+ *
+ * This file is part of Universal Password Manager.
+ *   
+ * Universal Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Universal Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Universal Password Manager; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com._17od.upm.transport;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+
+import com._17od.upm.util.Preferences;
+
+
+/**
+ * Hands out one transport per scheme and host, configured once and kept
+ * until the database is locked or another is opened, so that repeated
+ * syncs reuse pooled (and already authenticated TLS) connections. The HTTP
+ * transports all share a single bounded connection pool. Everything is
+ * thrown away and built again when the proxy or TLS options change.
+ */
+public final class TransportRegistry {
+
+    static final int MAX_CONNECTIONS = 8;
+    static final int MAX_CONNECTIONS_PER_HOST = 2;
+
+    private static final Map<String, Transport> transports = new HashMap<>();
+    private static MultiThreadedHttpConnectionManager connectionManager;
+    private static String settings;
+
+
+    private TransportRegistry() {
+    }
+
+
+    /**
+     * @return the transport for url, or null if its protocol isn't one
+     * that has a transport
+     */
+    public static synchronized Transport getTransport(String url) {
+        String currentSettings = getSettings();
+        if (!currentSettings.equals(settings)) {
+            clear();
+            settings = currentSettings;
+        }
+
+        String lowerUrl = url.toLowerCase(Locale.getDefault());
+        boolean http = lowerUrl.startsWith("http:") || lowerUrl.startsWith("https:");
+        boolean webdav = lowerUrl.startsWith("webdav:") || lowerUrl.startsWith("webdavs:");
+        if (!http && !webdav) {
+            return null;
+        }
+
+        String key = getKey(lowerUrl.substring(0, lowerUrl.indexOf(':')), http ? url : WebdavTransport.adjustUrl(url));
+        Transport transport = transports.get(key);
+        if (transport == null) {
+            if (http) {
+                if (connectionManager == null) {
+                    connectionManager = new MultiThreadedHttpConnectionManager();
+                    connectionManager.getParams().setMaxTotalConnections(MAX_CONNECTIONS);
+                    connectionManager.getParams().setDefaultMaxConnectionsPerHost(MAX_CONNECTIONS_PER_HOST);
+                }
+                transport = new HTTPTransport(connectionManager);
+            } else {
+                transport = new WebdavTransport();
+            }
+            transports.put(key, transport);
+        }
+        return transport;
+    }
+
+
+    /**
+     * Forget all the transports, along with any credentials they hold, and
+     * close their pooled connections.
+     */
+    public static synchronized void clear() {
+        transports.clear();
+        if (connectionManager != null) {
+            connectionManager.shutdown();
+            connectionManager = null;
+        }
+        settings = null;
+    }
+
+
+    static synchronized int size() {
+        return transports.size();
+    }
+
+
+    private static String getKey(String scheme, String url) {
+        try {
+            return scheme + "://" + new URL(url).getAuthority().toLowerCase(Locale.ENGLISH);
+        } catch (MalformedURLException e) {
+            return url;
+        }
+    }
+
+
+    /**
+     * @return the options the transports were configured from, as set in
+     * the OptionsDialog
+     */
+    private static String getSettings() {
+        StringBuilder sb = new StringBuilder();
+        String[] names = {
+            Preferences.ApplicationOptions.HTTPS_ACCEPT_SELFSIGNED_CERTS,
+            Preferences.ApplicationOptions.HTTP_PROXY_ENABLED,
+            Preferences.ApplicationOptions.HTTP_PROXY_HOST,
+            Preferences.ApplicationOptions.HTTP_PROXY_PORT,
+            Preferences.ApplicationOptions.HTTP_PROXY_USERNAME,
+            Preferences.ApplicationOptions.HTTP_PROXY_PASSWORD
+        };
+        for (int i = 0; i < names.length; i++) {
+            sb.append(Preferences.get(names[i], "")).append('\n');
+        }
+        return sb.toString();
+    }
+
+}
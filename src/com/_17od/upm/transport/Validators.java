@@ -0,0 +1,87 @@
+/*
+ * Universal Password Manager
+ * Copyright (C) 2005-2013 Adrian Smith
+ *
+ * This file is part of Universal Password Manager.
+ *   
+ * Universal Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Universal Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Universal Password Manager; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com._17od.upm.transport;
+
+
+/**
+ * What a server said about the version of a file it sent (the HTTP ETag
+ * and Last-Modified headers, or the equivalent WebDAV properties) so that
+ * the next request for it can ask for it only if it's changed.
+ */
+public final class Validators {
+
+    private String etag;
+    private String lastModified;
+
+
+    public Validators() {
+    }
+
+
+    public Validators(String etag, String lastModified) {
+        this.etag = etag;
+        this.lastModified = lastModified;
+    }
+
+
+    public String getETag() {
+        return etag;
+    }
+
+
+    public String getLastModified() {
+        return lastModified;
+    }
+
+
+    public void set(String etag, String lastModified) {
+        this.etag = etag;
+        this.lastModified = lastModified;
+    }
+
+
+    /**
+     * @return true if there's nothing to make a request conditional on
+     */
+    public boolean isEmpty() {
+        return etag == null && lastModified == null;
+    }
+
+
+    public boolean equals(Object o) {
+        if (!(o instanceof Validators)) {
+            return false;
+        }
+        Validators other = (Validators) o;
+        return equals(etag, other.etag) && equals(lastModified, other.lastModified);
+    }
+
+
+    public int hashCode() {
+        return (etag == null ? 0 : etag.hashCode()) * 31 + (lastModified == null ? 0 : lastModified.hashCode());
+    }
+
+
+    private static boolean equals(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+}
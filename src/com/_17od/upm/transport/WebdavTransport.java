@@ -21,12 +21,25 @@ package com._17od.upm.transport;
 
 import java.io.*;
 
-import java.nio.file.Files;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
+import com.github.sardine.DavResource;
 import com.github.sardine.Sardine;
 import com.github.sardine.SardineFactory;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.bouncycastle.crypto.macs.HMac;
+import org.bouncycastle.crypto.params.KeyParameter;
 
 /**
  *
@@ -35,9 +48,69 @@ import org.apache.commons.logging.LogFactory;
 public class WebdavTransport extends Transport {
     private static final Log log = LogFactory.getLog(WebdavTransport.class);
 
-    private Sardine open(String user, String pass) {
-        // FIXME: proxy settings?
-        return user == null || pass == null ? SardineFactory.begin() : SardineFactory.begin(user, pass);
+    // One client per server and user, kept until clear() is called so that
+    // its pooled connections are reused from one sync to the next. The
+    // password isn't kept, only an HMAC of it with a key that lives as long
+    // as this JVM, to tell when it's changed.
+    private static final Map<String, Client> clients = new HashMap<>();
+
+    private static final byte[] digestKey = new byte[32];
+    static {
+        new SecureRandom().nextBytes(digestKey);
+    }
+
+    private static Sardine open(String url, String user, String pass) throws MalformedURLException {
+        URL u = new URL(adjustUrl(url));
+        String key = u.getProtocol() + "://" + u.getAuthority() + '\n' + user;
+        byte[] passwordDigest = digest(pass);
+        synchronized (clients) {
+            Client client = clients.get(key);
+            if (client != null && Arrays.equals(client.passwordDigest, passwordDigest)) {
+                return client.sardine;
+            }
+            if (client != null) {
+                shutdown(client.sardine);
+            }
+            // FIXME: proxy settings?
+            Sardine sardine = user == null || pass == null ? SardineFactory.begin() : SardineFactory.begin(user, pass);
+            clients.put(key, new Client(passwordDigest, sardine));
+            return sardine;
+        }
+    }
+
+    /**
+     * Shut down every client, closing their connections and dropping the
+     * credentials they hold. Called when the database is locked or closed.
+     */
+    public static void clear() {
+        synchronized (clients) {
+            for (Client client : clients.values()) {
+                shutdown(client.sardine);
+            }
+            clients.clear();
+        }
+    }
+
+    private static byte[] digest(String pass) {
+        if (pass == null) {
+            return null;
+        }
+        byte[] passwordBytes = pass.getBytes(StandardCharsets.UTF_8);
+        HMac mac = new HMac(new SHA256Digest());
+        mac.init(new KeyParameter(digestKey));
+        mac.update(passwordBytes, 0, passwordBytes.length);
+        Arrays.fill(passwordBytes, (byte) 0);
+        byte[] digest = new byte[mac.getMacSize()];
+        mac.doFinal(digest, 0);
+        return digest;
+    }
+
+    private static void shutdown(Sardine sardine) {
+        try {
+            sardine.shutdown();
+        } catch (IOException e) {
+            log.debug("Problem shutting down a WebDAV client", e);
+        }
     }
 
     @Override
@@ -46,12 +119,12 @@ public class WebdavTransport extends Transport {
         log.info("Webdav.put('" + targetLocation + "', '" + file.getPath()
                  + "', " + (username != null ? "'" + username + "'" : "null")
                  + ", ...)");
+        forgetRemoteFile(addTrailingSlash(targetLocation) + file.getName());
         try {
-            Sardine sardine = open(username, password);
-            try (ByteArrayOutputStream bos = new ByteArrayOutputStream()) {
-                Files.copy(file.toPath(), bos);
-                sardine.put(addTrailingSlash(adjustUrl(targetLocation)) + file.getName(), bos.toByteArray());
-            }
+            Sardine sardine = open(targetLocation, username, password);
+            // A file entity is streamed from disk, and can be sent again if
+            // the server asks for authentication
+            sardine.put(addTrailingSlash(adjustUrl(targetLocation)) + file.getName(), file, "application/octet-stream");
         } catch (RuntimeException | IOException e) {
             throw new TransportException("There's been some kind of problem uploading a file to the WebDAV server.", e);
         }
@@ -60,11 +133,26 @@ public class WebdavTransport extends Transport {
     @Override
     public byte[] get(String url, String username, String password)
             throws TransportException {
+        return getIfChanged(url, username, password, new Validators());
+    }
+
+    /**
+     * The file's getetag and getlastmodified properties are fetched first
+     * (a PROPFIND of just the file) and it's only downloaded if they've
+     * changed. Servers that won't say always get the file downloaded.
+     */
+    @Override
+    protected byte[] getIfChanged(String url, String username, String password,
+                                  Validators validators) throws TransportException {
         log.info("Webdav.get('" + url + "', "
                  + (username != null ? "'" + username + "'" : "null")
                  + ", ...)");
         try {
-            Sardine sardine = open(username, password);
+            Sardine sardine = open(url, username, password);
+            Validators current = getValidators(sardine, adjustUrl(url));
+            if (!current.isEmpty() && current.equals(validators)) {
+                return null;
+            }
             try (ByteArrayOutputStream bos = new ByteArrayOutputStream();
                     InputStream is = sardine.get(adjustUrl(url))) {
                 byte[] buf = new byte[1024];
@@ -72,6 +160,7 @@ public class WebdavTransport extends Transport {
                 while ((c = is.read(buf)) > 0) {
                     bos.write(buf, 0, c);
                 }
+                validators.set(current.getETag(), current.getLastModified());
                 return bos.toByteArray();
             }
         } catch (RuntimeException | IOException e) {
@@ -79,6 +168,60 @@ public class WebdavTransport extends Transport {
         }
     }
 
+    @Override
+    protected boolean downloadIfChanged(String url, String username, String password,
+                                        Path target, Validators validators) throws TransportException {
+        log.info("Webdav.download('" + url + "', "
+                 + (username != null ? "'" + username + "'" : "null")
+                 + ", ...)");
+        try {
+            Sardine sardine = open(url, username, password);
+            Validators current = getValidators(sardine, adjustUrl(url));
+            if (!current.isEmpty() && current.equals(validators)) {
+                return false;
+            }
+            try (InputStream is = sardine.get(adjustUrl(url))) {
+                copy(is, target);
+            }
+            validators.set(current.getETag(), current.getLastModified());
+            return true;
+        } catch (RuntimeException | IOException e) {
+            throw new TransportException(e);
+        }
+    }
+
+    @Override
+    protected byte[] getRangeIfChanged(String url, String username, String password,
+                                       int length, Validators validators) throws TransportException {
+        try {
+            Sardine sardine = open(url, username, password);
+            Validators current = getValidators(sardine, adjustUrl(url));
+            if (!current.isEmpty() && current.equals(validators)) {
+                return null;
+            }
+            try (InputStream is = sardine.get(adjustUrl(url),
+                    Collections.singletonMap("Range", "bytes=0-" + (length - 1)))) {
+                return readUpTo(is, length);
+            }
+        } catch (RuntimeException | IOException e) {
+            throw new TransportException(e);
+        }
+    }
+
+    private Validators getValidators(Sardine sardine, String url) {
+        try {
+            List<DavResource> resources = sardine.list(url, 0);
+            if (resources.size() == 1) {
+                DavResource resource = resources.get(0);
+                String lastModified = resource.getModified() == null ? null : Long.toString(resource.getModified().getTime());
+                return new Validators(resource.getEtag(), lastModified);
+            }
+        } catch (RuntimeException | IOException e) {
+            log.debug("Couldn't get the properties of " + url, e);
+        }
+        return new Validators();
+    }
+
     @Override
     public void delete(String targetLocation, String name,
                        String username, String password) throws TransportException {
@@ -87,7 +230,7 @@ public class WebdavTransport extends Transport {
                  + "', " + (username != null ? "'" + username + "'" : "null")
                  + ", ...)");
         try {
-            open(username, password).delete(addTrailingSlash(adjustUrl(targetLocation)) + name);
+            open(targetLocation, username, password).delete(addTrailingSlash(adjustUrl(targetLocation)) + name);
         } catch (RuntimeException | IOException e) {
             throw new TransportException(e);
         }
@@ -98,4 +241,17 @@ public class WebdavTransport extends Transport {
         if (url.startsWith("webdav")) { return "http" + url.substring(6); }
         return url;
     }
+
+
+    private static final class Client {
+
+        final byte[] passwordDigest;
+        final Sardine sardine;
+
+        Client(byte[] passwordDigest, Sardine sardine) {
+            this.passwordDigest = passwordDigest;
+            this.sardine = sardine;
+        }
+
+    }
 }
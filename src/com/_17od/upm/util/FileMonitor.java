@@ -3,26 +3,34 @@ package com._17od.upm.util;
 import java.io.File;
 
 /**
- * Monitor a file and call a callback when the file changes.
+ * Monitor one or more files and call a callback when one of them changes.
  */
 public class FileMonitor implements Runnable {
 
     private FileChangedCallback fileChangedCallback;
-    private File fileToMonitor;
-    private long previousLastModified;
+    private File[] filesToMonitor;
+    private long[] previousLastModified;
     private boolean paused;
 
     public FileMonitor(File fileToMonitor, FileChangedCallback fileChangedCallback) {
+        this(new File[] {fileToMonitor}, fileChangedCallback);
+    }
+
+    public FileMonitor(File[] filesToMonitor, FileChangedCallback fileChangedCallback) {
         this.fileChangedCallback = fileChangedCallback;
-        this.fileToMonitor = fileToMonitor;
-        this.previousLastModified = fileToMonitor.lastModified();
+        this.filesToMonitor = filesToMonitor;
+        this.previousLastModified = new long[filesToMonitor.length];
+        for (int i = 0; i < filesToMonitor.length; i++) {
+            previousLastModified[i] = filesToMonitor[i].lastModified();
+        }
     }
 
     public void run() {
         while (true) {
             synchronized (this) {
-                if (!paused && fileChanged()) {
-                    fileChangedCallback.fileChanged(fileToMonitor);
+                File changedFile = paused ? null : getChangedFile();
+                if (changedFile != null) {
+                    fileChangedCallback.fileChanged(changedFile);
                     paused = true;
                 }
             }
@@ -34,7 +42,9 @@ public class FileMonitor implements Runnable {
     }
 
     public void start() {
-        this.previousLastModified = fileToMonitor.lastModified();
+        for (int i = 0; i < filesToMonitor.length; i++) {
+            previousLastModified[i] = filesToMonitor[i].lastModified();
+        }
         paused = false;
     }
 
@@ -43,13 +53,23 @@ public class FileMonitor implements Runnable {
     }
 
     public boolean fileChanged() {
-        boolean fileModified = false;
-        long currentLastModified = fileToMonitor.lastModified();
-        if (previousLastModified != currentLastModified) {
-            fileModified = true;
+        return getChangedFile() != null;
+    }
+
+    /**
+     * @return the first of the files that's changed since the last check,
+     * or null if none of them have
+     */
+    private File getChangedFile() {
+        File changedFile = null;
+        for (int i = 0; i < filesToMonitor.length; i++) {
+            long currentLastModified = filesToMonitor[i].lastModified();
+            if (previousLastModified[i] != currentLastModified && changedFile == null) {
+                changedFile = filesToMonitor[i];
+            }
+            previousLastModified[i] = currentLastModified;
         }
-        this.previousLastModified = currentLastModified;
-        return fileModified;
+        return changedFile;
     }
 
 }
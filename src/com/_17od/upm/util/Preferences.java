@@ -48,6 +48,9 @@ public class Preferences {
         public static final String MAINWINDOW_ALWAYS_ON_TOP="mainwindow.alwaysontop";
         public static final String DATABASE_AUTO_LOCK="database.auto_lock";
         public static final String DATABASE_AUTO_LOCK_TIME = "database.auto_lock_time";
+        public static final String DATABASE_JOURNAL = "database.journal";
+        public static final String CRYPTO_ENGINE = "crypto.engine";
+        public static final String KDF_UNLOCK_MILLIS = "kdf.unlock_millis";
         public static final String REMEMBER_WINDOW_POSITION="window.store_position";
 
         public static final String HTTP_PROXY_ENABLED="http.proxy.enabled";
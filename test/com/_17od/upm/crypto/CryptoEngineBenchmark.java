@@ -0,0 +1,113 @@
+/*
+ * Universal Password Manager
+ * Copyright (C) 2005-2013 Adrian Smith
+ *
+ * This file is part of Universal Password Manager.
+ *   
+ * Universal Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Universal Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Universal Password Manager; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com._17od.upm.crypto;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+
+/**
+ * Compares how fast each CryptoEngine encrypts and decrypts a database
+ * sized stream, both as one AES-CBC stream and in AES-GCM chunks. Not a
+ * unit test, run it with
+ *   ant benchmark -Dbenchmark=com._17od.upm.crypto.CryptoEngineBenchmark
+ * optionally passing the stream sizes to try (in MB) with
+ * -Dbenchmark.args="1 50". Each size is run several times after a warm up
+ * so the JIT has compiled the cipher.
+ */
+public class CryptoEngineBenchmark {
+
+    private static final char[] PASSWORD = "benchmark".toCharArray();
+    private static final byte[] HEADER = "UPM".getBytes();
+
+    public static void main(String[] args) throws Exception {
+        int[] sizes = {1, 50};
+        if (args.length > 0) {
+            sizes = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                sizes[i] = Integer.parseInt(args[i]);
+            }
+        }
+
+        System.out.println("size (MB)   engine         mode      encrypt (MB/s)   decrypt (MB/s)");
+        for (int size : sizes) {
+            byte[] cleartext = new byte[size * 1024 * 1024];
+            new Random(size).nextBytes(cleartext);
+            for (CryptoEngine engine : CryptoEngines.getEngines()) {
+                EncryptionService encryptionService = new EncryptionService(PASSWORD, engine);
+                for (boolean chunked : new boolean[] {false, true}) {
+                    int runs = size >= 50 ? 5 : 20;
+                    long[] encryptTimes = new long[runs];
+                    long[] decryptTimes = new long[runs];
+                    for (int i = -1; i < runs; i++) {
+                        long start = System.nanoTime();
+                        byte[] cipherText = encrypt(encryptionService, cleartext, chunked);
+                        long encrypted = System.nanoTime();
+                        decrypt(encryptionService, cipherText, chunked);
+                        long decrypted = System.nanoTime();
+                        if (i >= 0) {
+                            encryptTimes[i] = encrypted - start;
+                            decryptTimes[i] = decrypted - encrypted;
+                        }
+                    }
+                    System.out.println(String.format("%9d   %-12s   %-7s   %14.1f   %14.1f", size, engine.getName(),
+                            chunked ? "GCM" : "CBC", throughput(size, encryptTimes), throughput(size, decryptTimes)));
+                }
+            }
+        }
+    }
+
+    private static byte[] encrypt(EncryptionService encryptionService, byte[] cleartext, boolean chunked) throws Exception {
+        ByteArrayOutputStream encrypted = new ByteArrayOutputStream(cleartext.length + cleartext.length / 1000 + 64);
+        if (chunked) {
+            ChunkedCipherOutputStream os = encryptionService.encryptChunked(encrypted, HEADER);
+            os.write(cleartext, 0, cleartext.length);
+            os.finish();
+        } else {
+            BlockCipherOutputStream os = encryptionService.encrypt(encrypted);
+            os.write(cleartext, 0, cleartext.length);
+            os.finish();
+        }
+        return encrypted.toByteArray();
+    }
+
+    private static void decrypt(EncryptionService encryptionService, byte[] cipherText, boolean chunked) throws Exception {
+        InputStream is = new ByteArrayInputStream(cipherText);
+        is = chunked ? encryptionService.decryptChunked(is, HEADER) : encryptionService.decrypt(is);
+        byte[] buffer = new byte[8192];
+        while (is.read(buffer) != -1) {
+            // discard
+        }
+    }
+
+    /**
+     * @return the median throughput in MB/s
+     */
+    private static double throughput(int sizeMB, long[] times) {
+        long[] sorted = times.clone();
+        Arrays.sort(sorted);
+        return sizeMB / (sorted[sorted.length / 2] / 1e9);
+    }
+
+}
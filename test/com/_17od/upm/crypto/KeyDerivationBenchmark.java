@@ -0,0 +1,79 @@
+/*
+ * Universal Password Manager
+ * Copyright (C) 2005-2013 Adrian Smith
+ *
+ * This file is part of Universal Password Manager.
+ *   
+ * Universal Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Universal Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Universal Password Manager; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com._17od.upm.crypto;
+
+import java.util.Arrays;
+
+
+/**
+ * Reports how long unlocking a database takes on this machine with each
+ * key derivation setting, and how close calibrate() gets to its target.
+ * Not a unit test, run it with
+ *   ant benchmark -Dbenchmark=com._17od.upm.crypto.KeyDerivationBenchmark
+ * optionally passing the calibration targets to try (in ms) with
+ * -Dbenchmark.args="100 200 500".
+ */
+public class KeyDerivationBenchmark {
+
+    private static final char[] PASSWORD = "benchmark".toCharArray();
+    private static final byte[] SALT = {1, 2, 3, 4, 5, 6, 7, 8};
+    private static final int RUNS = 5;
+    private static final long WARM_UP_NANOS = 1000 * 1000 * 1000L;
+
+    public static void main(String[] args) {
+        long[] targets = {100, 200, 500};
+        if (args.length > 0) {
+            targets = new long[args.length];
+            for (int i = 0; i < args.length; i++) {
+                targets[i] = Long.parseLong(args[i]);
+            }
+        }
+
+        // Let the JIT compile the digest before the first setting is timed
+        KeyDerivation.get(KeyDerivation.PBKDF2_HMAC_SHA256, 1000).deriveFor(WARM_UP_NANOS);
+
+        System.out.println("algorithm            iterations   target (ms)   unlock (ms)");
+        report(KeyDerivation.LEGACY, "");
+        for (int iterations : new int[] {KeyDerivation.MIN_PBKDF2_ITERATIONS, 100000, 1000000}) {
+            report(KeyDerivation.get(KeyDerivation.PBKDF2_HMAC_SHA256, iterations), "");
+        }
+        for (long target : targets) {
+            report(KeyDerivation.calibrate(target), Long.toString(target));
+        }
+    }
+
+    private static void report(KeyDerivation keyDerivation, String target) {
+        // Give the JIT time to compile the digest before anything's timed.
+        // A single derivation with few iterations isn't enough.
+        keyDerivation.deriveFor(WARM_UP_NANOS / 10);
+        long[] times = new long[RUNS];
+        for (int i = 0; i < RUNS; i++) {
+            long start = System.nanoTime();
+            Arrays.fill(keyDerivation.derive(PASSWORD, SALT), (byte) 0);
+            times[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(times);
+        String algorithm = keyDerivation.getAlgorithm() == KeyDerivation.PKCS12_SHA256 ? "PKCS12-SHA256" : "PBKDF2-HMAC-SHA256";
+        System.out.println(String.format("%-18s   %10d   %11s   %11.1f", algorithm, keyDerivation.getIterations(),
+                target, times[RUNS / 2] / 1e6));
+    }
+
+}
@@ -0,0 +1,94 @@
+/*
+ * Universal Password Manager
+ * Copyright (C) 2005-2013 Adrian Smith
+ *
+ * This file is part of Universal Password Manager.
+ *   
+ * Universal Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Universal Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Universal Password Manager; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com._17od.upm.crypto;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+
+public class TestCryptoEngines extends TestCase {
+
+    protected void tearDown() {
+        CryptoEngines.setPreference(CryptoEngines.AUTO);
+    }
+
+
+    public void testEnginesAreCorrect() {
+        BouncyCastleCryptoEngine reference = new BouncyCastleCryptoEngine();
+        assertFalse(CryptoEngines.getEngines().isEmpty());
+        for (CryptoEngine engine : CryptoEngines.getEngines()) {
+            assertTrue(engine.getName(), CryptoEngines.isCorrect(engine, reference));
+        }
+    }
+
+
+    public void testLegacyDatabasesCanBeReadByEveryEngine() throws CryptoException {
+        char[] password = "password".toCharArray();
+        byte[] salt = "saltsalt".getBytes();
+        byte[] plainText = "1.1.0 database".getBytes();
+        byte[] cipherText = DESDecryptionService.encrypt(password, salt, plainText);
+        for (CryptoEngine engine : CryptoEngines.getEngines()) {
+            assertTrue(Arrays.equals(plainText, engine.processLegacy(false, password, salt, cipherText)));
+            try {
+                engine.processLegacy(false, "wrong".toCharArray(), salt, cipherText);
+                fail("Should have got a CryptoException");
+            } catch (CryptoException e) {
+                // ok to get here
+            }
+        }
+    }
+
+
+    public void testPreference() {
+        CryptoEngines.setPreference("BouncyCastle");
+        assertEquals("BouncyCastle", CryptoEngines.getPreferred().getName());
+
+        // An engine that doesn't exist falls back to the fastest
+        CryptoEngines.setPreference("nonsense");
+        assertNotNull(CryptoEngines.getPreferred());
+
+        CryptoEngines.setPreference(null);
+        assertTrue(CryptoEngines.getEngines().contains(CryptoEngines.getPreferred()));
+    }
+
+
+    public void testAutoPrefersJCA() {
+        CryptoEngines.setPreference(CryptoEngines.AUTO);
+        if (CryptoEngines.getEngine("JCA") != null) {
+            assertEquals("JCA", CryptoEngines.getPreferred().getName());
+        }
+    }
+
+
+    public void testBrokenEngineIsRejected() {
+        CryptoEngine broken = new BouncyCastleCryptoEngine() {
+            public byte[] processRecord(boolean forEncryption, byte[] key, byte[] nonce, byte[] associatedData,
+                    byte[] input, int offset, int length) throws CryptoException {
+                byte[] output = super.processRecord(forEncryption, key, nonce, associatedData, input, offset, length);
+                output[0] ^= 1;
+                return output;
+            }
+        };
+        assertFalse(CryptoEngines.isCorrect(broken, new BouncyCastleCryptoEngine()));
+    }
+
+}
@@ -0,0 +1,94 @@
+/*
+ * Universal Password Manager
+ * Copyright (C) 2005-2013 Adrian Smith
+ *
+ * This file is part of Universal Password Manager.
+ *   
+ * Universal Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Universal Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Universal Password Manager; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com._17od.upm.crypto;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+
+public class TestDerivedKeyCache extends TestCase {
+
+    protected void setUp() {
+        DerivedKeyCache.clear();
+    }
+
+
+    protected void tearDown() {
+        DerivedKeyCache.clear();
+    }
+
+
+    public void testKeyIsCachedPerPasswordAndSalt() throws CryptoException {
+        char[] password = "test password".toCharArray();
+        EncryptionService first = new EncryptionService(password);
+        assertEquals(1, DerivedKeyCache.size());
+
+        // Derived from the cache, so it must decrypt what the first encrypted
+        EncryptionService second = new EncryptionService(password, first.getSalt());
+        assertEquals(1, DerivedKeyCache.size());
+        byte[] cleartext = "samplestring".getBytes();
+        assertTrue(Arrays.equals(cleartext, second.decrypt(first.encrypt(cleartext))));
+
+        new EncryptionService("other password".toCharArray(), first.getSalt());
+        assertEquals(2, DerivedKeyCache.size());
+    }
+
+
+    public void testGetReturnsACopy() {
+        byte[] salt = new byte[] {1, 2, 3, 4, 5, 6, 7, 8};
+        char[] password = "test password".toCharArray();
+        byte[] key = new byte[] {9, 10, 11};
+        DerivedKeyCache.put("test", salt, password, key);
+        Arrays.fill(key, (byte) 0);
+
+        byte[] cached = DerivedKeyCache.get("test", salt, password);
+        assertTrue(Arrays.equals(new byte[] {9, 10, 11}, cached));
+        Arrays.fill(cached, (byte) 0);
+        assertTrue(Arrays.equals(new byte[] {9, 10, 11}, DerivedKeyCache.get("test", salt, password)));
+
+        assertNull(DerivedKeyCache.get("other", salt, password));
+        assertNull(DerivedKeyCache.get("test", new byte[8], password));
+        assertNull(DerivedKeyCache.get("test", salt, "test passwore".toCharArray()));
+    }
+
+
+    public void testSizeIsBounded() {
+        byte[] salt = new byte[8];
+        for (int i = 0; i < DerivedKeyCache.MAX_ENTRIES * 2; i++) {
+            DerivedKeyCache.put("test", salt, ("password" + i).toCharArray(), new byte[] {(byte) i});
+        }
+        assertEquals(DerivedKeyCache.MAX_ENTRIES, DerivedKeyCache.size());
+        assertNull(DerivedKeyCache.get("test", salt, "password0".toCharArray()));
+        assertNotNull(DerivedKeyCache.get("test", salt, ("password" + (DerivedKeyCache.MAX_ENTRIES * 2 - 1)).toCharArray()));
+    }
+
+
+    public void testClear() {
+        byte[] salt = new byte[8];
+        char[] password = "test password".toCharArray();
+        DerivedKeyCache.put("test", salt, password, new byte[] {1});
+        DerivedKeyCache.clear();
+        assertEquals(0, DerivedKeyCache.size());
+        assertNull(DerivedKeyCache.get("test", salt, password));
+    }
+
+}
@@ -20,7 +20,14 @@
  */
 package com._17od.upm.crypto;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import junit.framework.TestCase;
 
 
@@ -35,6 +42,241 @@ public class TestEncryptionService extends TestCase {
         assertEquals("Decrypted text is different to original cleartext", new String(cleartext), new String(cleartext2));
     }
 
+
+    public void testDecryptByteBuffer() throws CryptoException, IOException {
+        EncryptionService encryptionService = new EncryptionService("test password".toCharArray());
+        byte[] cleartext = new byte[20000];
+        for (int i = 0; i < cleartext.length; i++) {
+            cleartext[i] = (byte) i;
+        }
+        byte[] cipherText = encryptionService.encrypt(cleartext);
+
+        // Decrypt from a direct buffer, as a memory mapped file would be
+        ByteBuffer buffer = ByteBuffer.allocateDirect(cipherText.length + 10);
+        buffer.position(10);
+        buffer.put(cipherText);
+        buffer.position(10);
+        InputStream is = encryptionService.decrypt(buffer);
+        ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+        byte[] b = new byte[1000];
+        int bytesRead;
+        while ((bytesRead = is.read(b)) != -1) {
+            decrypted.write(b, 0, bytesRead);
+        }
+        is.close();
+        assertTrue(Arrays.equals(cleartext, decrypted.toByteArray()));
+        assertEquals(10, buffer.position());
+    }
+
+
+    public void testCryptoEnginesAreInterchangeable() throws CryptoException, IOException {
+        char[] password = "test password".toCharArray();
+        EncryptionService bouncyCastle = new EncryptionService(password, new BouncyCastleCryptoEngine());
+        EncryptionService jca = new EncryptionService(password, bouncyCastle.getSalt(), new JCACryptoEngine());
+        byte[] cleartext = createCleartext(20000);
+
+        byte[] cipherText = bouncyCastle.encrypt(cleartext);
+        assertTrue(Arrays.equals(cipherText, jca.encrypt(cleartext)));
+        assertTrue(Arrays.equals(cleartext, jca.decrypt(cipherText)));
+
+        ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+        BlockCipherOutputStream os = jca.encrypt(encrypted);
+        os.write(cleartext, 0, 12345);
+        os.write(cleartext, 12345, cleartext.length - 12345);
+        os.finish();
+        assertTrue(Arrays.equals(cipherText, encrypted.toByteArray()));
+
+        // A wrong password shows up in the padding with either provider
+        EncryptionService wrongPassword = new EncryptionService("wrong".toCharArray(), bouncyCastle.getSalt(), new JCACryptoEngine());
+        InputStream is = wrongPassword.decrypt(new ByteArrayInputStream(cipherText));
+        try {
+            while (is.read() != -1) {
+                // discard
+            }
+            fail("Should have got an IOException caused by a CryptoException");
+        } catch (IOException e) {
+            assertTrue(BlockCipherInputStream.isDecryptionFailure(e));
+        }
+    }
+
+
+    public void testEncryptDecryptByteBuffers() throws CryptoException {
+        char[] password = "test password".toCharArray();
+        EncryptionService bouncyCastle = new EncryptionService(password, new BouncyCastleCryptoEngine());
+        EncryptionService jca = new EncryptionService(password, bouncyCastle.getSalt(), new JCACryptoEngine());
+        byte[] cleartext = createCleartext(20001);
+        byte[] expected = bouncyCastle.encrypt(cleartext);
+        assertEquals(expected.length, bouncyCastle.getEncryptedSize(cleartext.length));
+
+        for (EncryptionService encryptionService : new EncryptionService[] {bouncyCastle, jca}) {
+            for (boolean direct : new boolean[] {false, true}) {
+                // From one buffer into another
+                ByteBuffer in = allocate(cleartext.length, direct);
+                in.put(cleartext).flip();
+                ByteBuffer out = allocate(encryptionService.getEncryptedSize(cleartext.length), !direct);
+                assertEquals(expected.length, encryptionService.encrypt(in, out));
+                assertFalse(in.hasRemaining());
+                out.flip();
+                assertTrue(Arrays.equals(expected, toArray(out.duplicate())));
+
+                ByteBuffer decrypted = allocate(encryptionService.getDecryptedSize(expected.length), direct);
+                assertEquals(cleartext.length, encryptionService.decrypt(out, decrypted));
+                decrypted.flip();
+                assertTrue(Arrays.equals(cleartext, toArray(decrypted)));
+
+                // In place, with room after the limit for the padding
+                ByteBuffer buffer = allocate(expected.length + 5, direct);
+                buffer.position(5);
+                buffer.put(cleartext).flip().position(5);
+                ByteBuffer encrypted = buffer.duplicate();
+                encrypted.limit(encrypted.capacity());
+                assertEquals(expected.length, encryptionService.encrypt(buffer, encrypted));
+                encrypted.flip().position(5);
+                assertTrue(Arrays.equals(expected, toArray(encrypted.duplicate())));
+
+                decrypted = encrypted.duplicate();
+                assertEquals(cleartext.length, encryptionService.decrypt(encrypted, decrypted));
+                decrypted.flip().position(5);
+                assertTrue(Arrays.equals(cleartext, toArray(decrypted)));
+            }
+        }
+    }
+
+
+    public void testEncryptByteBufferTooSmall() throws CryptoException {
+        EncryptionService encryptionService = new EncryptionService("test password".toCharArray());
+        ByteBuffer in = ByteBuffer.wrap(createCleartext(100));
+        ByteBuffer out = ByteBuffer.allocateDirect(100);
+        try {
+            encryptionService.encrypt(in, out);
+            fail("Should have got a CryptoException");
+        } catch (CryptoException e) {
+            // expected
+        }
+    }
+
+
+    public void testDirectBufferCopiesAreZeroed() throws CryptoException {
+        final PaddedCipher cipher = new BouncyCastleCryptoEngine().createCipher(true, new byte[32], new byte[16]);
+        final List<byte[]> pieces = new ArrayList<byte[]>();
+        PaddedCipher recording = new PaddedCipher() {
+            public int getOutputSize(int length) {
+                return cipher.getOutputSize(length);
+            }
+            public int processBytes(byte[] input, int inputOffset, int length, byte[] output, int outputOffset) throws CryptoException {
+                pieces.add(input);
+                pieces.add(output);
+                return cipher.processBytes(input, inputOffset, length, output, outputOffset);
+            }
+            public int doFinal(byte[] output, int outputOffset) throws CryptoException {
+                pieces.add(output);
+                return cipher.doFinal(output, outputOffset);
+            }
+        };
+
+        byte[] cleartext = createCleartext(1000);
+        ByteBuffer in = ByteBuffer.allocateDirect(cleartext.length);
+        in.put(cleartext).flip();
+        ByteBuffer out = ByteBuffer.allocateDirect(recording.getOutputSize(cleartext.length));
+        recording.doFinal(in, out);
+
+        assertEquals(3, pieces.size());
+        for (byte[] piece : pieces) {
+            assertTrue(Arrays.equals(new byte[piece.length], piece));
+        }
+    }
+
+
+    private ByteBuffer allocate(int capacity, boolean direct) {
+        return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+
+    private byte[] toArray(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+
+    public void testEncryptDecryptChunked() throws CryptoException, IOException {
+        EncryptionService encryptionService = new EncryptionService("test password".toCharArray());
+        byte[] header = "header".getBytes();
+        int chunkSize = ChunkedCipherOutputStream.CHUNK_SIZE;
+        for (int length : new int[] {0, 1, chunkSize, chunkSize * 5, chunkSize * 5 + 123}) {
+            byte[] cleartext = createCleartext(length);
+            byte[] cipherText = encryptChunked(encryptionService, cleartext, header);
+            assertTrue(Arrays.equals(cleartext, decryptChunked(encryptionService, cipherText, header)));
+        }
+    }
+
+
+    public void testDecryptTamperedChunks() throws CryptoException, IOException {
+        EncryptionService encryptionService = new EncryptionService("test password".toCharArray());
+        byte[] header = "header".getBytes();
+        int encryptedChunkSize = ChunkedCipherOutputStream.CHUNK_SIZE + EncryptionService.TAG_LENGTH;
+        byte[] cipherText = encryptChunked(encryptionService, createCleartext(ChunkedCipherOutputStream.CHUNK_SIZE * 3), header);
+
+        // Cut off after the first chunk
+        assertDecryptionFails(encryptionService, Arrays.copyOf(cipherText,
+                ChunkedCipherOutputStream.NONCE_PREFIX_LENGTH + encryptedChunkSize), header);
+
+        // Swap the first two chunks
+        byte[] swapped = cipherText.clone();
+        System.arraycopy(cipherText, ChunkedCipherOutputStream.NONCE_PREFIX_LENGTH, swapped,
+                ChunkedCipherOutputStream.NONCE_PREFIX_LENGTH + encryptedChunkSize, encryptedChunkSize);
+        System.arraycopy(cipherText, ChunkedCipherOutputStream.NONCE_PREFIX_LENGTH + encryptedChunkSize, swapped,
+                ChunkedCipherOutputStream.NONCE_PREFIX_LENGTH, encryptedChunkSize);
+        assertDecryptionFails(encryptionService, swapped, header);
+
+        assertDecryptionFails(encryptionService, cipherText, "Header".getBytes());
+        assertDecryptionFails(encryptionService, new byte[0], header);
+    }
+
+
+    private byte[] createCleartext(int length) {
+        byte[] cleartext = new byte[length];
+        for (int i = 0; i < cleartext.length; i++) {
+            cleartext[i] = (byte) (i * 31);
+        }
+        return cleartext;
+    }
+
+
+    private byte[] encryptChunked(EncryptionService encryptionService, byte[] cleartext, byte[] header) throws IOException {
+        ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+        ChunkedCipherOutputStream os = encryptionService.encryptChunked(encrypted, header);
+        // Write in odd sized pieces so writes straddle the chunks
+        for (int i = 0; i < cleartext.length; i += 1000) {
+            os.write(cleartext, i, Math.min(1000, cleartext.length - i));
+        }
+        os.finish();
+        return encrypted.toByteArray();
+    }
+
+
+    private byte[] decryptChunked(EncryptionService encryptionService, byte[] cipherText, byte[] header) throws IOException {
+        InputStream is = encryptionService.decryptChunked(new ByteArrayInputStream(cipherText), header);
+        ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+        byte[] b = new byte[1000];
+        int bytesRead;
+        while ((bytesRead = is.read(b)) != -1) {
+            decrypted.write(b, 0, bytesRead);
+        }
+        is.close();
+        return decrypted.toByteArray();
+    }
+
+
+    private void assertDecryptionFails(EncryptionService encryptionService, byte[] cipherText, byte[] header) {
+        try {
+            decryptChunked(encryptionService, cipherText, header);
+            fail("Should have got an IOException caused by a CryptoException");
+        } catch (IOException e) {
+            assertTrue(BlockCipherInputStream.isDecryptionFailure(e));
+        }
+    }
+
     
     public void testChangePassword() throws CryptoException {
 
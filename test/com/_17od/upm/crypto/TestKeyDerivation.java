@@ -0,0 +1,99 @@
+/*
+ * Universal Password Manager
+ * Copyright (C) 2005-2013 Adrian Smith
+ *
+ * This file is part of Universal Password Manager.
+ *   
+ * Universal Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Universal Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Universal Password Manager; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com._17od.upm.crypto;
+
+import java.util.Arrays;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import junit.framework.TestCase;
+
+
+public class TestKeyDerivation extends TestCase {
+
+    public void testPBKDF2MatchesJCA() throws Exception {
+        char[] password = "p\u00e4ssword".toCharArray();
+        byte[] salt = new byte[] {1, 2, 3, 4, 5, 6, 7, 8};
+        KeyDerivation keyDerivation = KeyDerivation.get(KeyDerivation.PBKDF2_HMAC_SHA256, 1000);
+
+        SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
+        byte[] key = factory.generateSecret(new PBEKeySpec(password, salt, 1000,
+                KeyDerivation.KEY_LENGTH * 8)).getEncoded();
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(key, "HmacSHA256"));
+        byte[] iv = mac.doFinal("UPM IV".getBytes("US-ASCII"));
+
+        byte[] derived = keyDerivation.derive(password, salt);
+        assertTrue(Arrays.equals(key, Arrays.copyOfRange(derived, 0, KeyDerivation.KEY_LENGTH)));
+        assertTrue(Arrays.equals(Arrays.copyOf(iv, KeyDerivation.IV_LENGTH),
+                Arrays.copyOfRange(derived, KeyDerivation.KEY_LENGTH, derived.length)));
+    }
+
+
+    public void testLegacyKeyDecryptsExistingDatabases() throws CryptoException {
+        // What EncryptionService derived before the key derivation could vary
+        char[] password = "test password".toCharArray();
+        EncryptionService legacy = new EncryptionService(password);
+        assertEquals(KeyDerivation.LEGACY, legacy.getKeyDerivation());
+        EncryptionService pbkdf2 = new EncryptionService(password, legacy.getSalt(),
+                KeyDerivation.get(KeyDerivation.PBKDF2_HMAC_SHA256, 1000), new BouncyCastleCryptoEngine());
+
+        byte[] cleartext = "samplestring".getBytes();
+        byte[] cipherText = legacy.encrypt(cleartext);
+        assertFalse(Arrays.equals(cipherText, pbkdf2.encrypt(cleartext)));
+
+        // The copy keeps the key derivation as well as the key
+        pbkdf2.initCipher(password, KeyDerivation.LEGACY);
+        assertTrue(Arrays.equals(cleartext, pbkdf2.copy().decrypt(cipherText)));
+    }
+
+
+    public void testCalibrate() {
+        KeyDerivation fast = KeyDerivation.calibrate(1);
+        assertEquals(KeyDerivation.PBKDF2_HMAC_SHA256, fast.getAlgorithm());
+        assertEquals(KeyDerivation.MIN_PBKDF2_ITERATIONS, fast.getIterations());
+
+        KeyDerivation slow = KeyDerivation.calibrate(100000);
+        assertTrue(slow.getIterations() > fast.getIterations());
+        assertTrue(slow.getIterations() <= KeyDerivation.MAX_ITERATIONS);
+        assertEquals(0, slow.getIterations() % 1000);
+    }
+
+
+    public void testGetRejectsBadParameters() {
+        try {
+            KeyDerivation.get(99, 1000);
+            fail("Should have got an IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            KeyDerivation.get(KeyDerivation.PBKDF2_HMAC_SHA256, KeyDerivation.MAX_ITERATIONS + 1);
+            fail("Should have got an IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+}
@@ -20,10 +20,18 @@
  */
 package com._17od.upm.database;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+import java.util.Set;
 
 import junit.framework.TestCase;
 
@@ -31,6 +39,7 @@ import com._17od.upm.crypto.CryptoException;
 import com._17od.upm.crypto.DESDecryptionService;
 import com._17od.upm.crypto.EncryptionService;
 import com._17od.upm.crypto.InvalidPasswordException;
+import com._17od.upm.crypto.KeyDerivation;
 
 public class PasswordDatabasePersistenceTest extends TestCase {
 
@@ -83,6 +92,633 @@ public class PasswordDatabasePersistenceTest extends TestCase {
         assertEquals("some notes100", new String(account.getNotes()));
     }
 
+    public void testLoadLargeDB() throws ProblemReadingDatabaseFile, CryptoException, IOException, InvalidPasswordException {
+        File f = createVer3Db(2000);
+        PasswordDatabase db = passwordDatabasePersistence.load(f, password.toCharArray());
+        assertEquals(1, db.getRevision());
+        assertEquals(2000, db.getAccounts().size());
+        AccountInformation account = db.getAccount("account1234");
+        assertEquals("auserid1234", account.getUserId());
+        assertEquals("apassword1234", account.getPassword());
+        assertEquals("http://www.a.com/1234", account.getUrl());
+        assertEquals("some notes1234", account.getNotes());
+    }
+
+    public void testLoadDBSpanningSeveralBatches() throws ProblemReadingDatabaseFile, CryptoException, IOException, InvalidPasswordException {
+        // Several times ParallelAccountReader.BATCH_SIZE of accounts so that
+        // most of them are decoded on other threads
+        for (int dbVersion : new int[] {3, 6}) {
+            File f = createDb(dbVersion, 20000);
+            PasswordDatabase db = passwordDatabasePersistence.load(f, password.toCharArray());
+            assertEquals(20000, db.getAccounts().size());
+            for (int i = 0; i < 20000; i += 997) {
+                AccountInformation account = db.getAccount("account" + i);
+                assertEquals("auserid" + i, account.getUserId());
+                assertEquals("apassword" + i, account.getPassword());
+                assertEquals("some notes" + i, account.getNotes());
+            }
+            f.delete();
+        }
+    }
+
+    public void testCorruptAccountDecodedOnPool() throws IOException {
+        // An account whose record is intact but whose fields aren't, followed
+        // by enough accounts that it's decoded on another thread
+        FlatPackWriter writer = new FlatPackWriter(FlatPackFormat.BINARY);
+        int mark = writer.beginRecord();
+        writer.writeInt(1);
+        writer.endRecord(mark);
+        for (int i = 0; writer.size() < ParallelAccountReader.BATCH_SIZE * 2; i++) {
+            new AccountInformation("account" + i, "userid", "password", "url", "notes").flatPack(writer);
+        }
+        byte[] b = writer.toByteArray();
+        FlatPackReader reader = new FlatPackReader(new ByteArrayInputStream(b), FlatPackFormat.BINARY);
+        try {
+            new ParallelAccountReader(reader, StandardCharsets.UTF_8).readAccounts();
+            fail("Should have got a ProblemReadingDatabaseFile");
+        } catch (ProblemReadingDatabaseFile e) {
+            // ok to get here
+        }
+    }
+
+    public void testLoadWithWrongPassword() throws ProblemReadingDatabaseFile, CryptoException, IOException {
+        File f = createVer3Db(200);
+        try {
+            passwordDatabasePersistence.load(f, "wrong password".toCharArray());
+            fail("Should have got an InvalidPasswordException");
+        } catch (InvalidPasswordException e) {
+            // ok to get here
+        }
+    }
+
+    public void testSaveLeavesNoTempFiles() throws ProblemReadingDatabaseFile, CryptoException, IOException, InvalidPasswordException {
+        File dir = Files.createTempDirectory("upm").toFile();
+        File f = new File(dir, "test.upm");
+        PasswordDatabase db = new PasswordDatabase(f);
+        db.addAccount(new AccountInformation("test account", "auserid", "apassword", "http://www.a.com", "some notes"));
+        PasswordDatabasePersistence dbPers = new PasswordDatabasePersistence(password.toCharArray());
+        dbPers.save(db);
+        dbPers.save(db);
+
+        assertEquals(1, dir.list().length);
+        db = passwordDatabasePersistence.load(f, password.toCharArray());
+        assertEquals(2, db.getRevision());
+        assertEquals("apassword", db.getAccount("test account").getPassword());
+
+        f.delete();
+        dir.delete();
+    }
+
+    public void testSaveKeepsPermissions() throws ProblemReadingDatabaseFile, CryptoException, IOException, InvalidPasswordException {
+        File f = createDb(6, 1);
+        if (!Files.getFileStore(f.toPath()).supportsFileAttributeView(PosixFileAttributeView.class)) {
+            f.delete();
+            return;
+        }
+        Set<PosixFilePermission> permissions = PosixFilePermissions.fromString("rw-r-----");
+        Files.setPosixFilePermissions(f.toPath(), permissions);
+        PasswordDatabase db = passwordDatabasePersistence.load(f, password.toCharArray());
+        passwordDatabasePersistence.save(db);
+        assertEquals(permissions, Files.getPosixFilePermissions(f.toPath()));
+        f.delete();
+    }
+
+    public void testSaveAndLoadVer4DB() throws ProblemReadingDatabaseFile, CryptoException, IOException, InvalidPasswordException {
+        File f = File.createTempFile("upm", "upm");
+        PasswordDatabase db = new PasswordDatabase(f);
+        db.setDbVersion(4);
+        db.getDbOptions().setRemoteLocation("http://www.a.com/upm");
+        StringBuilder notes = new StringBuilder();
+        for (int i=0; i<2000; i++) {
+            notes.append("some notes \u00e9\u20ac ").append(i);
+        }
+        db.addAccount(new AccountInformation("test account", "auserid", "apassword", "http://www.a.com", notes.toString()));
+        db.addAccount(new AccountInformation("\u00fcml\u00e4ut", "", "", "", ""));
+        new PasswordDatabasePersistence(password.toCharArray()).save(db);
+
+        db = passwordDatabasePersistence.load(f, password.toCharArray());
+        assertEquals(4, db.getDbVersion());
+        assertEquals(1, db.getRevision());
+        assertEquals("http://www.a.com/upm", db.getDbOptions().getRemoteLocation());
+        assertEquals(2, db.getAccounts().size());
+        assertEquals(notes.toString(), db.getAccount("test account").getNotes());
+        assertEquals("", db.getAccount("\u00fcml\u00e4ut").getPassword());
+        f.delete();
+    }
+
+    public void testSaveLongFieldInVer3DB() throws ProblemReadingDatabaseFile, CryptoException, IOException, InvalidPasswordException {
+        File f = createVer3Db(1);
+        PasswordDatabase db = passwordDatabasePersistence.load(f, password.toCharArray());
+        assertEquals(3, db.getDbVersion());
+        char[] notes = new char[10000];
+        Arrays.fill(notes, 'n');
+        db.getAccount("account0").setNotes(new String(notes));
+        try {
+            passwordDatabasePersistence.save(db);
+            fail("Should have got a FieldTooLongException");
+        } catch (FieldTooLongException e) {
+            // ok to get here
+        }
+
+        // The failed save shouldn't have touched the file or the revision
+        assertEquals(1, db.getRevision());
+        assertEquals("some notes0", passwordDatabasePersistence.load(f, password.toCharArray()).getAccount("account0").getNotes());
+
+        db.setDbVersion(PasswordDatabasePersistence.LATEST_DB_VERSION);
+        passwordDatabasePersistence.save(db);
+        db = passwordDatabasePersistence.load(f, password.toCharArray());
+        assertEquals(2, db.getRevision());
+        assertEquals(10000, db.getAccount("account0").getNotes().length());
+        f.delete();
+    }
+
+    public void testSaveAndLoadVer5DB() throws ProblemReadingDatabaseFile, CryptoException, IOException, InvalidPasswordException {
+        File f = createDb(5, 100);
+        PasswordDatabase db = passwordDatabasePersistence.load(f, password.toCharArray());
+        assertEquals(5, db.getDbVersion());
+        assertEquals(1, db.getRevision());
+        assertEquals("rl", db.getDbOptions().getRemoteLocation());
+        assertEquals(100, db.getAccountNames().size());
+        assertEquals(100, db.getUnloadedAccounts().getAccountNames().size());
+
+        AccountInformation account = db.getAccount("account42");
+        assertEquals("auserid42", account.getUserId());
+        assertEquals("some notes42", account.getNotes());
+        assertEquals(99, db.getUnloadedAccounts().getAccountNames().size());
+        assertNull(db.getAccount("not there"));
+
+        // Save with a mix of changed accounts and accounts that have never
+        // been decrypted
+        account.setPassword("changed");
+        db.deleteAccount("account7");
+        db.addAccount(new AccountInformation("new account", "", "newpassword", "", ""));
+        passwordDatabasePersistence.save(db);
+        assertEquals("apassword8", db.getAccount("account8").getPassword());
+
+        db = passwordDatabasePersistence.load(f, password.toCharArray());
+        assertEquals(2, db.getRevision());
+        assertEquals(100, db.getAccountNames().size());
+        assertNull(db.getAccount("account7"));
+        assertEquals("changed", db.getAccount("account42").getPassword());
+        assertEquals("newpassword", db.getAccount("new account").getPassword());
+        assertEquals("http://www.a.com/99", db.getAccount("account99").getUrl());
+        assertEquals(100, db.getAccounts().size());
+        assertNull(db.getUnloadedAccounts());
+        f.delete();
+    }
+
+    public void testLoadVer5DBWithWrongPassword() throws ProblemReadingDatabaseFile, CryptoException, IOException {
+        File f = createDb(5, 10);
+        try {
+            passwordDatabasePersistence.load(f, "wrong password".toCharArray());
+            fail("Should have got an InvalidPasswordException");
+        } catch (InvalidPasswordException e) {
+            // ok to get here
+        }
+        f.delete();
+    }
+
+    public void testLoadTamperedVer5Record() throws ProblemReadingDatabaseFile, CryptoException, IOException, InvalidPasswordException {
+        File f = createDb(5, 10);
+        byte[] b = Files.readAllBytes(f.toPath());
+        b[b.length - 1] ^= 1;
+        Files.write(f.toPath(), b);
+
+        PasswordDatabase db = passwordDatabasePersistence.load(f, password.toCharArray());
+        assertEquals(10, db.getAccountNames().size());
+        try {
+            db.getAccounts();
+            fail("Should have got a ProblemReadingDatabaseFile");
+        } catch (ProblemReadingDatabaseFile e) {
+            // ok to get here
+        }
+        f.delete();
+    }
+
+    public void testLoadVer5AccountAfterFileReplaced() throws ProblemReadingDatabaseFile, CryptoException, IOException, InvalidPasswordException {
+        File f = createDb(5, 10);
+        PasswordDatabase db = passwordDatabasePersistence.load(f, password.toCharArray());
+        assertEquals("apassword1", db.getAccount("account1").getPassword());
+
+        // Another instance saves the database, so the records move
+        PasswordDatabasePersistence other = new PasswordDatabasePersistence();
+        PasswordDatabase otherDb = other.load(f, password.toCharArray());
+        otherDb.deleteAccount("account0");
+        other.save(otherDb);
+
+        try {
+            db.getAccount("account2");
+            fail("Should have got a ProblemReadingDatabaseFile");
+        } catch (ProblemReadingDatabaseFile e) {
+            // ok to get here
+        }
+        f.delete();
+    }
+
+    public void testChangePasswordOfVer5DB() throws ProblemReadingDatabaseFile, CryptoException, IOException, InvalidPasswordException {
+        File f = createDb(5, 10);
+        PasswordDatabase db = passwordDatabasePersistence.load(f, password.toCharArray());
+        new PasswordDatabasePersistence("new password".toCharArray()).save(db);
+
+        db = passwordDatabasePersistence.load(f, "new password".toCharArray());
+        assertEquals(10, db.getAccounts().size());
+        assertEquals("apassword3", db.getAccount("account3").getPassword());
+        f.delete();
+    }
+
+    public void testChangePasswordInPlaceOfVer5DB() throws ProblemReadingDatabaseFile, CryptoException, IOException, InvalidPasswordException {
+        File f = createDb(5, 10);
+        PasswordDatabase db = passwordDatabasePersistence.load(f, password.toCharArray());
+        // This is how DatabaseActions changes the master password
+        passwordDatabasePersistence.getEncryptionService().initCipher("new password".toCharArray());
+        passwordDatabasePersistence.save(db);
+
+        db = new PasswordDatabasePersistence().load(f, "new password".toCharArray());
+        assertEquals(10, db.getAccounts().size());
+        assertEquals("apassword3", db.getAccount("account3").getPassword());
+        f.delete();
+    }
+
+    public void testChangePasswordOfVer6DBCalibratesKeyDerivation() throws ProblemReadingDatabaseFile, CryptoException, IOException, InvalidPasswordException {
+        File f = createDb(6, 10);
+        PasswordDatabase db = passwordDatabasePersistence.load(f, password.toCharArray());
+        assertEquals(KeyDerivation.LEGACY, passwordDatabasePersistence.getEncryptionService().getKeyDerivation());
+        assertEquals(0, Files.readAllBytes(f.toPath())[PasswordDatabasePersistence.FLAGS_POS] & PasswordDatabasePersistence.FLAG_KDF);
+
+        // Asking for next to no time gets the fewest iterations allowed
+        passwordDatabasePersistence.changePassword(db, "new password".toCharArray(), 1);
+        KeyDerivation keyDerivation = passwordDatabasePersistence.getEncryptionService().getKeyDerivation();
+        assertEquals(KeyDerivation.get(KeyDerivation.PBKDF2_HMAC_SHA256, KeyDerivation.MIN_PBKDF2_ITERATIONS), keyDerivation);
+        passwordDatabasePersistence.save(db);
+        assertTrue((Files.readAllBytes(f.toPath())[PasswordDatabasePersistence.FLAGS_POS] & PasswordDatabasePersistence.FLAG_KDF) != 0);
+        assertEquals(2, DatabaseProbe.probe(f).getRevision());
+
+        PasswordDatabasePersistence reloaded = new PasswordDatabasePersistence();
+        db = reloaded.load(f, "new password".toCharArray());
+        assertEquals(keyDerivation, reloaded.getEncryptionService().getKeyDerivation());
+        assertEquals("apassword3", db.getAccount("account3").getPassword());
+
+        // Older versions have nowhere to store the key derivation
+        db.setDbVersion(4);
+        try {
+            reloaded.save(db);
+            fail("Should have got an IOException");
+        } catch (IOException e) {
+            // ok to get here
+        }
+        reloaded.changePassword(db, "new password".toCharArray(), 1);
+        assertEquals(KeyDerivation.LEGACY, reloaded.getEncryptionService().getKeyDerivation());
+        reloaded.save(db);
+        assertEquals("apassword3", new PasswordDatabasePersistence().load(f, "new password".toCharArray()).getAccount("account3").getPassword());
+        f.delete();
+    }
+
+    public void testLoadVer6DBWithCorruptKeyDerivation() throws ProblemReadingDatabaseFile, CryptoException, IOException, InvalidPasswordException {
+        File f = createDb(6, 1);
+        PasswordDatabase db = passwordDatabasePersistence.load(f, password.toCharArray());
+        passwordDatabasePersistence.changePassword(db, password.toCharArray(), 1);
+        passwordDatabasePersistence.save(db);
+
+        // Make the iterations, after the revision and the algorithm, huge
+        byte[] b = Files.readAllBytes(f.toPath());
+        b[PasswordDatabasePersistence.REVISION_POS + 4 + 1] = 0x7f;
+        Files.write(f.toPath(), b);
+        try {
+            passwordDatabasePersistence.load(f, password.toCharArray());
+            fail("Should have got a ProblemReadingDatabaseFile");
+        } catch (ProblemReadingDatabaseFile e) {
+            // ok to get here
+        }
+        f.delete();
+    }
+
+    public void testSaveAndLoadVer6DB() throws ProblemReadingDatabaseFile, CryptoException, IOException, InvalidPasswordException {
+        File ver4 = createDb(4, 500);
+        File f = createDb(6, 500);
+        // The accounts are very similar so they should compress well
+        assertTrue(f.length() < ver4.length() / 2);
+
+        PasswordDatabase db = passwordDatabasePersistence.load(f, password.toCharArray());
+        assertEquals(6, db.getDbVersion());
+        assertTrue(db.isCompressed());
+        assertEquals("rl", db.getDbOptions().getRemoteLocation());
+        assertEquals(500, db.getAccounts().size());
+        assertEquals("some notes499", db.getAccount("account499").getNotes());
+
+        db.setCompressed(false);
+        passwordDatabasePersistence.save(db);
+        assertTrue(f.length() > ver4.length());
+        db = passwordDatabasePersistence.load(f, password.toCharArray());
+        assertFalse(db.isCompressed());
+        assertEquals(2, db.getRevision());
+        assertEquals("apassword499", db.getAccount("account499").getPassword());
+        ver4.delete();
+        f.delete();
+    }
+
+    public void testLoadVer6DBWithWrongPassword() throws ProblemReadingDatabaseFile, CryptoException, IOException {
+        File f = createDb(6, 200);
+        try {
+            passwordDatabasePersistence.load(f, "wrong password".toCharArray());
+            fail("Should have got an InvalidPasswordException");
+        } catch (InvalidPasswordException e) {
+            // ok to get here
+        }
+        f.delete();
+    }
+
+    public void testLoadVer6DBWithUnknownFlags() throws ProblemReadingDatabaseFile, CryptoException, IOException, InvalidPasswordException {
+        File f = createDb(6, 1);
+        byte[] b = Files.readAllBytes(f.toPath());
+        b[3 + 1 + EncryptionService.SALT_LENGTH] |= 0x80;
+        Files.write(f.toPath(), b);
+        try {
+            passwordDatabasePersistence.load(f, password.toCharArray());
+            fail("Should have got a ProblemReadingDatabaseFile");
+        } catch (ProblemReadingDatabaseFile e) {
+            // ok to get here
+        }
+        f.delete();
+    }
+
+    public void testLoadVer6DBWithTamperedHeader() throws ProblemReadingDatabaseFile, CryptoException, IOException {
+        File f = createDb(6, 200);
+        // Claim the database isn't compressed. The header is authenticated
+        // along with the encrypted chunks so this can't go unnoticed.
+        byte[] b = Files.readAllBytes(f.toPath());
+        b[PasswordDatabasePersistence.FLAGS_POS] &= ~PasswordDatabasePersistence.FLAG_COMPRESSED;
+        Files.write(f.toPath(), b);
+        try {
+            passwordDatabasePersistence.load(f, password.toCharArray());
+            fail("Should have got an InvalidPasswordException");
+        } catch (InvalidPasswordException e) {
+            // ok to get here
+        }
+        f.delete();
+    }
+
+    public void testGetVerifiedRevision() throws ProblemReadingDatabaseFile, CryptoException, IOException, InvalidPasswordException {
+        File f = createDb(6, 10);
+        PasswordDatabase db = passwordDatabasePersistence.load(f, password.toCharArray());
+        passwordDatabasePersistence.save(db);
+        byte[] b = Files.readAllBytes(f.toPath());
+        byte[] header = Arrays.copyOf(b, PasswordDatabasePersistence.MAX_HEADER_LENGTH);
+        assertEquals(2, passwordDatabasePersistence.getVerifiedRevision(header));
+        // A short read of a whole database is fine too
+        assertEquals(2, passwordDatabasePersistence.getVerifiedRevision(b));
+
+        // Nothing's known without the database's key
+        assertEquals(-1, new PasswordDatabasePersistence().getVerifiedRevision(header));
+        assertEquals(-1, new PasswordDatabasePersistence("wrong password".toCharArray()).getVerifiedRevision(header));
+
+        // Claiming to be at a later revision is caught by the MAC
+        header[PasswordDatabasePersistence.REVISION_POS + 3]++;
+        assertEquals(-1, passwordDatabasePersistence.getVerifiedRevision(header));
+
+        assertEquals(-1, passwordDatabasePersistence.getVerifiedRevision(Arrays.copyOf(b, 10)));
+        f.delete();
+
+        // Older versions don't have a MAC in their header
+        f = createDb(5, 10);
+        passwordDatabasePersistence.load(f, password.toCharArray());
+        b = Files.readAllBytes(f.toPath());
+        assertEquals(-1, passwordDatabasePersistence.getVerifiedRevision(Arrays.copyOf(b, PasswordDatabasePersistence.MAX_HEADER_LENGTH)));
+        f.delete();
+    }
+
+    public void testLoadMappedDB() throws ProblemReadingDatabaseFile, CryptoException, IOException, InvalidPasswordException {
+        passwordDatabasePersistence.setReadMode(PasswordDatabasePersistence.ReadMode.MAPPED);
+        for (int dbVersion = 3; dbVersion <= PasswordDatabasePersistence.LATEST_DB_VERSION; dbVersion++) {
+            File f = createDb(dbVersion, 50);
+            PasswordDatabase db = passwordDatabasePersistence.load(f, password.toCharArray());
+            assertEquals(dbVersion, db.getDbVersion());
+            assertEquals("rl", db.getDbOptions().getRemoteLocation());
+            assertEquals("some notes49", db.getAccount("account49").getNotes());
+
+            // Saving replaces the file while the old one is still mapped
+            db.getAccount("account0").setPassword("changed");
+            passwordDatabasePersistence.save(db);
+            db = passwordDatabasePersistence.load(f);
+            assertEquals("changed", db.getAccount("account0").getPassword());
+            assertEquals(50, db.getAccounts().size());
+
+            try {
+                passwordDatabasePersistence.load(f, "wrong password".toCharArray());
+                fail("Should have got an InvalidPasswordException");
+            } catch (InvalidPasswordException e) {
+                // ok to get here
+            }
+            f.delete();
+        }
+    }
+
+    public void testSaveChangesToJournal() throws ProblemReadingDatabaseFile, CryptoException, IOException, InvalidPasswordException {
+        File f = createVer3Db(10);
+        long databaseLength = f.length();
+        PasswordDatabase db = passwordDatabasePersistence.load(f, password.toCharArray());
+
+        AccountInformation changed = new AccountInformation("account3", "u", "changed", "", "");
+        db.addAccount(changed);
+        passwordDatabasePersistence.saveChange(db, null, changed);
+        db.deleteAccount("account5");
+        passwordDatabasePersistence.saveChange(db, "account5", null);
+        AccountInformation renamed = new AccountInformation("renamed", "", "apassword7", "", "");
+        db.deleteAccount("account7");
+        db.addAccount(renamed);
+        passwordDatabasePersistence.saveChange(db, "account7", renamed);
+        assertEquals(4, db.getRevision());
+        assertEquals(databaseLength, f.length());
+        assertTrue(passwordDatabasePersistence.hasJournal(db));
+
+        db = new PasswordDatabasePersistence().load(f, password.toCharArray());
+        assertEquals(4, db.getRevision());
+        assertEquals(9, db.getAccounts().size());
+        assertEquals("changed", db.getAccount("account3").getPassword());
+        assertNull(db.getAccount("account5"));
+        assertNull(db.getAccount("account7"));
+        assertEquals("apassword7", db.getAccount("renamed").getPassword());
+
+        // A full save folds the journal into the database file
+        passwordDatabasePersistence.save(db);
+        assertFalse(DatabaseJournal.getJournalFile(f).exists());
+        db = passwordDatabasePersistence.load(f, password.toCharArray());
+        assertEquals(5, db.getRevision());
+        assertEquals("changed", db.getAccount("account3").getPassword());
+        f.delete();
+    }
+
+    public void testCompactJournal() throws ProblemReadingDatabaseFile, CryptoException, IOException, InvalidPasswordException {
+        File f = createDb(5, 10);
+        PasswordDatabase db = passwordDatabasePersistence.load(f, password.toCharArray());
+        AccountInformation added = new AccountInformation("added", "", "apassword", "", "");
+        db.addAccount(added);
+        passwordDatabasePersistence.saveChange(db, null, added);
+
+        passwordDatabasePersistence.compactJournal(f);
+        assertFalse(DatabaseJournal.getJournalFile(f).exists());
+        db = passwordDatabasePersistence.load(f, password.toCharArray());
+        assertEquals(2, db.getRevision());
+        assertEquals(11, db.getAccountNames().size());
+        assertEquals("apassword", db.getAccount("added").getPassword());
+        assertEquals("apassword9", db.getAccount("account9").getPassword());
+        f.delete();
+    }
+
+    public void testReplayIgnoresPartialJournalEntry() throws ProblemReadingDatabaseFile, CryptoException, IOException, InvalidPasswordException {
+        File f = createVer3Db(1);
+        PasswordDatabase db = passwordDatabasePersistence.load(f, password.toCharArray());
+        AccountInformation first = new AccountInformation("first", "", "", "", "");
+        db.addAccount(first);
+        passwordDatabasePersistence.saveChange(db, null, first);
+        File journal = DatabaseJournal.getJournalFile(f);
+        long firstEntryLength = journal.length();
+        AccountInformation second = new AccountInformation("second", "", "", "", "");
+        db.addAccount(second);
+        passwordDatabasePersistence.saveChange(db, null, second);
+
+        // Simulate a crash part way through writing the second entry
+        byte[] b = Files.readAllBytes(journal.toPath());
+        Files.write(journal.toPath(), Arrays.copyOf(b, (int) firstEntryLength + 10));
+
+        db = passwordDatabasePersistence.load(f, password.toCharArray());
+        assertEquals(2, db.getRevision());
+        assertNotNull(db.getAccount("first"));
+        assertNull(db.getAccount("second"));
+        journal.delete();
+        f.delete();
+    }
+
+    public void testAppendAfterPartialJournalEntry() throws ProblemReadingDatabaseFile, CryptoException, IOException, InvalidPasswordException {
+        File f = createVer3Db(1);
+        PasswordDatabase db = passwordDatabasePersistence.load(f, password.toCharArray());
+        AccountInformation first = new AccountInformation("first", "", "", "", "");
+        db.addAccount(first);
+        passwordDatabasePersistence.saveChange(db, null, first);
+        File journal = DatabaseJournal.getJournalFile(f);
+        long firstEntryLength = journal.length();
+        AccountInformation second = new AccountInformation("second", "", "", "", "");
+        db.addAccount(second);
+        passwordDatabasePersistence.saveChange(db, null, second);
+
+        // Crash part way through the second entry, then carry on after
+        // reloading
+        byte[] b = Files.readAllBytes(journal.toPath());
+        Files.write(journal.toPath(), Arrays.copyOf(b, (int) firstEntryLength + 10));
+        db = passwordDatabasePersistence.load(f, password.toCharArray());
+        assertEquals(firstEntryLength, journal.length());
+        AccountInformation third = new AccountInformation("third", "", "", "", "");
+        db.addAccount(third);
+        passwordDatabasePersistence.saveChange(db, null, third);
+
+        db = passwordDatabasePersistence.load(f, password.toCharArray());
+        assertEquals(3, db.getRevision());
+        assertNotNull(db.getAccount("first"));
+        assertNull(db.getAccount("second"));
+        assertNotNull(db.getAccount("third"));
+
+        // Compacting keeps the change made after the crash
+        passwordDatabasePersistence.compactJournal(f);
+        assertFalse(journal.exists());
+        db = passwordDatabasePersistence.load(f, password.toCharArray());
+        assertNotNull(db.getAccount("third"));
+        f.delete();
+    }
+
+    public void testConflictingJournalEntryIsReported() throws ProblemReadingDatabaseFile, CryptoException, IOException, InvalidPasswordException {
+        File f = createDb(6, 1);
+        File journal = DatabaseJournal.getJournalFile(f);
+
+        // Two instances both journal a change on top of revision 1
+        PasswordDatabasePersistence other = new PasswordDatabasePersistence();
+        PasswordDatabase otherDb = other.load(f, password.toCharArray());
+        PasswordDatabase db = passwordDatabasePersistence.load(f, password.toCharArray());
+        AccountInformation mine = new AccountInformation("mine", "", "", "", "");
+        db.addAccount(mine);
+        passwordDatabasePersistence.saveChange(db, null, mine);
+        AccountInformation theirs = new AccountInformation("theirs", "", "", "", "");
+        otherDb.addAccount(theirs);
+        other.saveChange(otherDb, null, theirs);
+
+        db = passwordDatabasePersistence.load(f, password.toCharArray());
+        assertEquals(2, db.getRevision());
+        assertNotNull(db.getAccount("mine"));
+        assertNull(db.getAccount("theirs"));
+        File conflictFile = db.getJournalConflictFile();
+        assertNotNull(conflictFile);
+        assertTrue(Arrays.equals(Files.readAllBytes(journal.toPath()), Files.readAllBytes(conflictFile.toPath())));
+
+        // The next change can't go in the journal after the conflicting
+        // entry so the database is saved in full
+        AccountInformation next = new AccountInformation("next", "", "", "", "");
+        db.addAccount(next);
+        passwordDatabasePersistence.saveChange(db, null, next);
+        assertFalse(journal.exists());
+        assertNull(db.getJournalConflictFile());
+        db = passwordDatabasePersistence.load(f, password.toCharArray());
+        assertEquals(3, db.getRevision());
+        assertNotNull(db.getAccount("mine"));
+        assertNotNull(db.getAccount("next"));
+        assertNull(db.getJournalConflictFile());
+
+        conflictFile.delete();
+        f.delete();
+    }
+
+    public void testJournalOfAnotherDatabaseIsNotApplied() throws ProblemReadingDatabaseFile, CryptoException, IOException, InvalidPasswordException {
+        File f = createDb(6, 1);
+        File g = createDb(6, 1);
+        PasswordDatabase db = passwordDatabasePersistence.load(f, password.toCharArray());
+        AccountInformation change = new AccountInformation("change", "", "", "", "");
+        db.addAccount(change);
+        passwordDatabasePersistence.saveChange(db, null, change);
+
+        // Same password and revision but a different salt
+        Files.move(DatabaseJournal.getJournalFile(f).toPath(), DatabaseJournal.getJournalFile(g).toPath());
+        db = passwordDatabasePersistence.load(g, password.toCharArray());
+        assertEquals(1, db.getRevision());
+        assertNull(db.getAccount("change"));
+        assertNotNull(db.getJournalConflictFile());
+
+        db.getJournalConflictFile().delete();
+        DatabaseJournal.getJournalFile(g).delete();
+        f.delete();
+        g.delete();
+    }
+
+    public void testSaveLongFieldInVer3DBJournal() throws ProblemReadingDatabaseFile, CryptoException, IOException, InvalidPasswordException {
+        File f = createVer3Db(1);
+        PasswordDatabase db = passwordDatabasePersistence.load(f, password.toCharArray());
+        char[] notes = new char[10000];
+        AccountInformation account = new AccountInformation("long", "", "", "", new String(notes));
+        db.addAccount(account);
+        try {
+            passwordDatabasePersistence.saveChange(db, null, account);
+            fail("Should have got a FieldTooLongException");
+        } catch (FieldTooLongException e) {
+            // ok to get here
+        }
+        assertFalse(DatabaseJournal.getJournalFile(f).exists());
+        assertEquals(1, db.getRevision());
+        f.delete();
+    }
+
+    private File createVer3Db(int numAccounts) throws IOException, CryptoException {
+        return createDb(3, numAccounts);
+    }
+
+    private File createDb(int dbVersion, int numAccounts) throws IOException, CryptoException {
+        File f = File.createTempFile("upm", "upm");
+        PasswordDatabase db = new PasswordDatabase(f);
+        db.setDbVersion(dbVersion);
+        db.getDbOptions().setRemoteLocation("rl");
+        for (int i=0; i<numAccounts; i++) {
+            db.addAccount(new AccountInformation("account" + i, "auserid" + i,
+                    "apassword" + i, "http://www.a.com/" + i, "some notes" + i));
+        }
+        new PasswordDatabasePersistence(password.toCharArray()).save(db);
+        return f;
+    }
+
     private File createVer100Db() throws IOException, CryptoException {
         byte[] b = createVer100DbBytes();
         return saveToFile(b);
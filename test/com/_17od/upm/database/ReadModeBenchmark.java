@@ -0,0 +1,116 @@
+/*
+ * Universal Password Manager
+ * Copyright (C) 2005-2013 Adrian Smith
+ *
+ * This file is part of Universal Password Manager.
+ *   
+ * Universal Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Universal Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Universal Password Manager; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com._17od.upm.database;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Random;
+
+
+/**
+ * Compares loading a database through an InputStream with loading it from a
+ * memory mapped file. Not a unit test, run it with
+ *   ant benchmark -Dbenchmark=com._17od.upm.database.ReadModeBenchmark
+ * optionally passing the database sizes to try (in MB) with
+ * -Dbenchmark.args="1 50 500". The file is read several times so it'll be
+ * in the OS's page cache, this measures the cost of getting the bytes from
+ * there to the decryptor.
+ */
+public class ReadModeBenchmark {
+
+    private static final char[] PASSWORD = "benchmark".toCharArray();
+    private static final int NOTES_LENGTH = 16 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        int[] sizes = {1, 50, 500};
+        if (args.length > 0) {
+            sizes = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                sizes[i] = Integer.parseInt(args[i]);
+            }
+        }
+
+        System.out.println("size (MB)   mode      best (ms)   median (ms)   MB/s");
+        for (int size : sizes) {
+            File databaseFile = createDatabase(size);
+            try {
+                int runs = size >= 500 ? 3 : 7;
+                for (PasswordDatabasePersistence.ReadMode mode : new PasswordDatabasePersistence.ReadMode[] {
+                        PasswordDatabasePersistence.ReadMode.STREAM, PasswordDatabasePersistence.ReadMode.MAPPED}) {
+                    report(size, mode, time(databaseFile, mode, runs));
+                }
+            } finally {
+                databaseFile.delete();
+            }
+        }
+    }
+
+    private static File createDatabase(int sizeMB) throws Exception {
+        File databaseFile = File.createTempFile("upm-benchmark", ".upm");
+        PasswordDatabase database = new PasswordDatabase(databaseFile);
+        database.setDbVersion(4);
+
+        // Random notes so the size on disk is what was asked for
+        Random random = new Random(sizeMB);
+        char[] notes = new char[NOTES_LENGTH];
+        int numAccounts = Math.max(1, sizeMB * 1024 * 1024 / NOTES_LENGTH);
+        for (int i = 0; i < numAccounts; i++) {
+            for (int j = 0; j < notes.length; j++) {
+                notes[j] = (char) ('a' + random.nextInt(26));
+            }
+            database.addAccount(new AccountInformation("account" + i, "user" + i,
+                    "password" + i, "http://www.example.com/" + i, new String(notes)));
+        }
+        new PasswordDatabasePersistence(PASSWORD).save(database);
+        database.wipe();
+        return databaseFile;
+    }
+
+    /**
+     * @return the time taken by each run in nanoseconds, sorted
+     */
+    private static long[] time(File databaseFile, PasswordDatabasePersistence.ReadMode mode, int runs) throws Exception {
+        // Derive the key once with a warm up load, it's not what's being
+        // measured. load(File) then reuses it.
+        PasswordDatabasePersistence persistence = new PasswordDatabasePersistence();
+        persistence.setReadMode(mode);
+        persistence.load(databaseFile, PASSWORD).wipe();
+
+        long[] times = new long[runs];
+        for (int i = 0; i < runs; i++) {
+            System.gc();
+            long start = System.nanoTime();
+            PasswordDatabase database = persistence.load(databaseFile);
+            times[i] = System.nanoTime() - start;
+            database.wipe();
+        }
+        Arrays.sort(times);
+        return times;
+    }
+
+    private static void report(int sizeMB, PasswordDatabasePersistence.ReadMode mode, long[] times) {
+        double bestMs = times[0] / 1e6;
+        double medianMs = times[times.length / 2] / 1e6;
+        System.out.println(String.format("%9d   %-6s   %9.1f   %11.1f   %6.1f",
+                sizeMB, mode, bestMs, medianMs, sizeMB / (medianMs / 1000)));
+    }
+
+}
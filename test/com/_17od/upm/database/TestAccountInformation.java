@@ -24,6 +24,8 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
 import junit.framework.TestCase;
 
@@ -50,6 +52,134 @@ public class TestAccountInformation extends TestCase {
     }
 
 
+    public void testFlatPackToReusedWriter() throws IOException, ProblemReadingDatabaseFile {
+        String notes = "caf\u00e9 \u20ac \ud83d\udd11 \ud800";
+        FlatPackWriter writer = new FlatPackWriter(FlatPackFormat.ASCII, 16);
+        new AccountInformation("a", "b", "c", "d", notes).flatPack(writer);
+        writer.reset();
+        new AccountInformation("Hotmail", "", "p", "", notes).flatPack(writer);
+
+        byte[] expectedNotes = notes.getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        expected.write("0007Hotmail00000001p0000".getBytes());
+        expected.write(("00" + expectedNotes.length).getBytes());
+        expected.write(expectedNotes);
+        assertTrue(Arrays.equals(expected.toByteArray(), writer.toByteArray()));
+
+        AccountInformation ai = new AccountInformation(new FlatPackReader(writer.toByteArray()), StandardCharsets.UTF_8);
+        assertEquals(new String(expectedNotes, StandardCharsets.UTF_8), ai.getNotes());
+    }
+
+
+    public void testFlatPackBinary() throws IOException, ProblemReadingDatabaseFile {
+        FlatPackWriter writer = new FlatPackWriter(FlatPackFormat.BINARY);
+        new AccountInformation("Hotmail", "u", "", "", "\u00e9").flatPack(writer);
+        byte[] expected = new byte[] {4, 20,
+                1, 7, 'H', 'o', 't', 'm', 'a', 'i', 'l',
+                1, 1, 'u',
+                1, 0,
+                1, 0,
+                1, 2, (byte) 0xc3, (byte) 0xa9};
+        assertTrue(Arrays.equals(expected, writer.toByteArray()));
+
+        AccountInformation ai = new AccountInformation(new FlatPackReader(
+                new ByteArrayInputStream(expected), FlatPackFormat.BINARY), StandardCharsets.UTF_8);
+        assertEquals("Hotmail", ai.getAccountName());
+        assertEquals("\u00e9", ai.getNotes());
+    }
+
+
+    public void testAssembleBinarySkipsUnknownFields() throws IOException, ProblemReadingDatabaseFile {
+        // An account written by a newer version with an extra field on the end
+        FlatPackWriter writer = new FlatPackWriter(FlatPackFormat.BINARY);
+        int mark = writer.beginRecord();
+        writer.writeString("Hotmail");
+        writer.writeString("u");
+        writer.writeString("p");
+        writer.writeString("url");
+        writer.writeString("notes");
+        writer.writeInt(-12345);
+        writer.endRecord(mark);
+        new AccountInformation("Yahoo", "", "", "", "").flatPack(writer);
+
+        FlatPackReader reader = new FlatPackReader(new ByteArrayInputStream(writer.toByteArray()), FlatPackFormat.BINARY);
+        assertEquals("notes", new AccountInformation(reader, StandardCharsets.UTF_8).getNotes());
+        assertEquals("Yahoo", new AccountInformation(reader, StandardCharsets.UTF_8).getAccountName());
+        assertFalse(reader.hasMoreFields());
+    }
+
+
+    public void testSetFieldsOfAssembledAccount() throws IOException, ProblemReadingDatabaseFile {
+        FlatPackWriter writer = new FlatPackWriter(FlatPackFormat.BINARY);
+        new AccountInformation("Hotmail", "u", "p", "url", "n\u00f6tes").flatPack(writer);
+
+        FlatPackReader reader = new FlatPackReader(new ByteArrayInputStream(writer.toByteArray()), FlatPackFormat.BINARY);
+        AccountInformation ai = new AccountInformation(reader, StandardCharsets.UTF_8);
+        assertEquals("Hotmail", ai.getAccountName());
+        assertEquals("n\u00f6tes", ai.getNotes());
+
+        ai.setPassword("ch\u00e4nged");
+        ai.setUserId("");
+        ai.setUrl(null);
+        assertEquals("", ai.getUserId());
+        assertEquals("ch\u00e4nged", ai.getPassword());
+        assertEquals("", ai.getUrl());
+        assertEquals("n\u00f6tes", ai.getNotes());
+
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        ai.flatPack(os);
+        assertEquals("0007Hotmail00000008ch\u00e4nged00000006n\u00f6tes", os.toString("UTF-8"));
+    }
+
+
+    public void testWipe() {
+        AccountInformation ai = new AccountInformation("Hotmail", "u", "pw", "", "n");
+        ai.wipe();
+        assertEquals("Hotmail", ai.getAccountName());
+        assertEquals("\0\0", ai.getPassword());
+        assertEquals("\0", ai.getNotes());
+    }
+
+
+    public void testMoveSecretsToStore() throws IOException {
+        AccountInformation ai = new AccountInformation("Hotmail", "u", "p\u00e4ss", "url", "notes");
+        SecretStore store = new SecretStore();
+        ai.moveSecretsTo(store);
+        assertEquals("u", ai.getUserId());
+        assertEquals("p\u00e4ss", ai.getPassword());
+        assertTrue(Arrays.equals("p\u00e4ss".toCharArray(), ai.getPasswordChars()));
+        assertEquals("url", ai.getUrl());
+        assertEquals("notes", ai.getNotes());
+
+        ai.setPassword("changed".toCharArray());
+        ai.setUrl("");
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        ai.flatPack(os);
+        assertEquals("0007Hotmail0001u0007changed00000005notes", os.toString());
+
+        SecretStore otherStore = new SecretStore();
+        ai.moveSecretsTo(otherStore);
+        store.wipe();
+        assertEquals("changed", ai.getPassword());
+
+        otherStore.wipe();
+        assertEquals("", ai.getPassword());
+        assertEquals("", ai.getNotes());
+        assertEquals("u", ai.getUserId());
+    }
+
+
+    public void testAssembleBinaryBadFieldLength() throws IOException {
+        byte[] b = new byte[] {4, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x0f};
+        try {
+            new AccountInformation(new FlatPackReader(new ByteArrayInputStream(b), FlatPackFormat.BINARY), StandardCharsets.UTF_8);
+            fail("Should have got an ProblemReadingDatabaseFile exception now");
+        } catch (ProblemReadingDatabaseFile e ) {
+            //ok to get here
+        }
+    }
+
+
     public void testAssemble() throws IOException, ProblemReadingDatabaseFile {
 
         String s = new String("0007Hotmail" +
@@ -69,6 +199,27 @@ public class TestAccountInformation extends TestCase {
     }
 
     
+    public void testAssembleFromReader() throws IOException, ProblemReadingDatabaseFile {
+        byte[] b = ("0007Hotmail" +
+                    "0018this is the userid" +
+                    "0020this is the password" +
+                    "0015this is the url" +
+                    "0017this is the notes" +
+                    "0005Yahoo0000000000000000").getBytes();
+        FlatPackReader reader = new FlatPackReader(b);
+
+        AccountInformation ai = new AccountInformation(reader, StandardCharsets.UTF_8);
+        assertEquals("Hotmail", ai.getAccountName());
+        assertEquals("this is the notes", ai.getNotes());
+        assertTrue(reader.hasMoreFields());
+
+        ai = new AccountInformation(reader, StandardCharsets.UTF_8);
+        assertEquals("Yahoo", ai.getAccountName());
+        assertEquals("", ai.getPassword());
+        assertFalse(reader.hasMoreFields());
+    }
+
+    
     public void testAssembleCharsInFieldLength() throws IOException {
         ByteArrayInputStream is = new ByteArrayInputStream("bad input".getBytes());
         try {
@@ -0,0 +1,116 @@
+/*
+ * Universal Password Manager
+ * Copyright (C) 2005-2013 Adrian Smith
+ *
+ * This file is part of Universal Password Manager.
+ *   
+ * Universal Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Universal Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Universal Password Manager; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com._17od.upm.database;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import com._17od.upm.crypto.CryptoException;
+import com._17od.upm.crypto.InvalidPasswordException;
+
+
+public class TestDatabaseProbe extends TestCase {
+
+    private static final char[] PASSWORD = "password".toCharArray();
+
+    public void testProbeVer3DB() throws IOException, CryptoException {
+        File f = createDb(3);
+        DatabaseProbe probe = DatabaseProbe.probe(f);
+        assertTrue(probe.isUPMDatabase());
+        assertTrue(probe.isSupported());
+        assertEquals(3, probe.getDbVersion());
+        assertEquals(8, probe.getSalt().length);
+        assertFalse(probe.hasRevision());
+        assertEquals(-1, probe.getRevision());
+        f.delete();
+    }
+
+    public void testProbeVer6DB() throws IOException, CryptoException, ProblemReadingDatabaseFile, InvalidPasswordException {
+        File f = createDb(6);
+        PasswordDatabasePersistence persistence = new PasswordDatabasePersistence();
+        PasswordDatabase db = persistence.load(f, PASSWORD);
+        persistence.save(db);
+
+        DatabaseProbe probe = DatabaseProbe.probe(f);
+        assertTrue(probe.isSupported());
+        assertEquals(6, probe.getDbVersion());
+        assertTrue(probe.isCompressed());
+        assertTrue(probe.hasRevision());
+        assertEquals(2, probe.getRevision());
+        assertTrue(Arrays.equals(persistence.getEncryptionService().getSalt(), probe.getSalt()));
+        f.delete();
+    }
+
+    public void testProbeOtherFiles() throws IOException {
+        File f = File.createTempFile("upm", "txt");
+        Files.write(f.toPath(), "UP".getBytes());
+        assertFalse(DatabaseProbe.probe(f).isUPMDatabase());
+
+        Files.write(f.toPath(), "This is just some text".getBytes());
+        DatabaseProbe probe = DatabaseProbe.probe(f);
+        assertFalse(probe.isUPMDatabase());
+        assertFalse(probe.isSupported());
+        assertEquals(-1, probe.getDbVersion());
+
+        Files.write(f.toPath(), "UPM\u0063saltsalt\u0000".getBytes());
+        probe = DatabaseProbe.probe(f);
+        assertTrue(probe.isUPMDatabase());
+        assertFalse(probe.isSupported());
+        assertEquals(99, probe.getDbVersion());
+
+        Files.write(f.toPath(), "UPM\u0006saltsalt\u0080".getBytes("ISO-8859-1"));
+        probe = DatabaseProbe.probe(f);
+        assertTrue(probe.isUPMDatabase());
+        assertFalse(probe.isSupported());
+        assertEquals(6, probe.getDbVersion());
+        f.delete();
+    }
+
+    public void testTamperedRevisionIsDetected() throws IOException, CryptoException, ProblemReadingDatabaseFile {
+        File f = createDb(6);
+        byte[] b = Files.readAllBytes(f.toPath());
+        b[PasswordDatabasePersistence.REVISION_POS + 3]++;
+        Files.write(f.toPath(), b);
+        assertEquals(2, DatabaseProbe.probe(f).getRevision());
+        // The header is authenticated along with the encrypted chunks
+        try {
+            new PasswordDatabasePersistence().load(f, PASSWORD);
+            fail("Should have got an InvalidPasswordException");
+        } catch (InvalidPasswordException e) {
+            // ok to get here
+        }
+        f.delete();
+    }
+
+    private File createDb(int dbVersion) throws IOException, CryptoException {
+        File f = File.createTempFile("upm", "upm");
+        PasswordDatabase db = new PasswordDatabase(f);
+        db.setDbVersion(dbVersion);
+        db.addAccount(new AccountInformation("account", "userid", "password", "url", "notes"));
+        new PasswordDatabasePersistence(PASSWORD).save(db);
+        return f;
+    }
+
+}
@@ -0,0 +1,117 @@
+/*
+ * Universal Password Manager
+ * Copyright (C) 2005-2013 Adrian Smith
+ *
+ * This file is part of Universal Password Manager.
+ *   
+ * Universal Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Universal Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Universal Password Manager; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com._17od.upm.gui;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import com._17od.upm.crypto.CryptoException;
+import com._17od.upm.crypto.InvalidPasswordException;
+import com._17od.upm.database.DatabaseProbe;
+import com._17od.upm.database.PasswordDatabase;
+import com._17od.upm.database.PasswordDatabasePersistence;
+import com._17od.upm.database.ProblemReadingDatabaseFile;
+
+
+public class TestDatabaseActions extends TestCase {
+
+    private static final int REVISION_POS = 13;
+
+    private final char[] password = "password".toCharArray();
+    private File local;
+    private File remote;
+    private PasswordDatabasePersistence dbPers;
+    private PasswordDatabase database;
+
+
+    public void setUp() throws Exception {
+        local = File.createTempFile("upm", null);
+        remote = File.createTempFile("upm", null);
+        new PasswordDatabasePersistence(password).save(createDatabase(local));
+        dbPers = new PasswordDatabasePersistence();
+        database = dbPers.load(local, password);
+    }
+
+
+    public void tearDown() {
+        local.delete();
+        remote.delete();
+    }
+
+
+    public void testVerifiedHeaderSkipsTheDownload() throws IOException, CryptoException {
+        byte[] header = readHeader(local);
+        assertEquals(database.getRevision(), DatabaseActions.getRevisionIfNotAhead(dbPers, header, database.getRevision()));
+
+        // A remote database that's ahead has to be downloaded
+        dbPers.save(database);
+        assertEquals(-1, DatabaseActions.getRevisionIfNotAhead(dbPers, readHeader(local), database.getRevision() - 1));
+    }
+
+
+    public void testHeaderWithBadMacNeedsAFullLoad() throws IOException, CryptoException, ProblemReadingDatabaseFile, InvalidPasswordException {
+        // The remote database is a revision ahead but its plaintext header
+        // has been changed to say it's at the same revision as ours
+        Files.copy(local.toPath(), remote.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        PasswordDatabase remoteDatabase = dbPers.load(remote, password);
+        dbPers.save(remoteDatabase);
+        byte[] header = readHeader(remote);
+        header[REVISION_POS + 3]--;
+        Files.write(remote.toPath(), header);
+        assertEquals(database.getRevision(), DatabaseProbe.probe(remote).getRevision());
+
+        assertEquals(-1, DatabaseActions.getRevisionIfNotAhead(dbPers, header, database.getRevision()));
+    }
+
+
+    public void testHeaderFromAnotherKeyNeedsAFullLoad() throws IOException, CryptoException, ProblemReadingDatabaseFile, InvalidPasswordException {
+        // Same revision in the header, but the MAC wasn't made with our key
+        char[] otherPassword = "other password".toCharArray();
+        PasswordDatabasePersistence otherPers = new PasswordDatabasePersistence(otherPassword);
+        otherPers.save(createDatabase(remote));
+        assertEquals(database.getRevision(), otherPers.getVerifiedRevision(readHeader(remote)));
+        byte[] header = readHeader(remote);
+        Files.write(remote.toPath(), header);
+        assertEquals(database.getRevision(), DatabaseProbe.probe(remote).getRevision());
+
+        assertEquals(-1, DatabaseActions.getRevisionIfNotAhead(dbPers, header, database.getRevision()));
+    }
+
+
+    // Only version 6 on has a revision and MAC in its header
+    private PasswordDatabase createDatabase(File file) {
+        PasswordDatabase db = new PasswordDatabase(file);
+        db.setDbVersion(PasswordDatabasePersistence.LATEST_DB_VERSION);
+        return db;
+    }
+
+
+    private byte[] readHeader(File file) throws IOException {
+        byte[] b = Files.readAllBytes(file.toPath());
+        return Arrays.copyOf(b, Math.min(b.length, PasswordDatabasePersistence.MAX_HEADER_LENGTH));
+    }
+
+}
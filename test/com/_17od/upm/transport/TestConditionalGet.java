@@ -0,0 +1,198 @@
+/*
+ * Universal Password Manager
+ * Copyright (C) 2005-2013 Adrian Smith
+ *
+ * This file is part of Universal Password Manager.
+ *   
+ * Universal Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Universal Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Universal Password Manager; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com._17od.upm.transport;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import com._17od.upm.util.Preferences;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+
+public class TestConditionalGet extends TestCase {
+
+    private HttpServer server;
+    private String url;
+    private volatile byte[] content;
+    private volatile String etag;
+    private final List<String> ifNoneMatch = new ArrayList<>();
+    private final List<String> authorization = new ArrayList<>();
+
+
+    public void setUp() throws Exception {
+        Preferences.load();
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                String condition = exchange.getRequestHeaders().getFirst("If-None-Match");
+                synchronized (ifNoneMatch) {
+                    ifNoneMatch.add(condition);
+                    authorization.add(exchange.getRequestHeaders().getFirst("Authorization"));
+                }
+                if (etag.equals(condition)) {
+                    exchange.sendResponseHeaders(304, -1);
+                } else {
+                    byte[] body = content;
+                    int status = 200;
+                    String range = exchange.getRequestHeaders().getFirst("Range");
+                    if (range != null && range.startsWith("bytes=0-")) {
+                        int length = Integer.parseInt(range.substring(8)) + 1;
+                        body = Arrays.copyOf(content, Math.min(length, content.length));
+                        status = 206;
+                    }
+                    exchange.getResponseHeaders().set("ETag", etag);
+                    exchange.sendResponseHeaders(status, body.length);
+                    try (OutputStream os = exchange.getResponseBody()) {
+                        os.write(body);
+                    }
+                }
+                exchange.close();
+            }
+        });
+        server.start();
+        url = "http://127.0.0.1:" + server.getAddress().getPort() + "/db/";
+    }
+
+
+    public void tearDown() {
+        server.stop(0);
+        Transport.forgetRemoteFile(url + "test");
+    }
+
+
+    public void testUnchangedFileIsNotDownloadedAgain() throws Exception {
+        content = "first".getBytes();
+        etag = "\"1\"";
+        HTTPTransport transport = new HTTPTransport();
+
+        File first = transport.getRemoteFile(url, "test", null, null);
+        assertTrue(Arrays.equals(content, Files.readAllBytes(first.toPath())));
+
+        // A new transport, as DatabaseActions uses for each sync
+        File second = new HTTPTransport().getRemoteFile(url, "test", null, null);
+        assertEquals(first, second);
+        assertEquals(Arrays.asList(null, "\"1\""), ifNoneMatch);
+
+        content = "second".getBytes();
+        etag = "\"2\"";
+        File third = transport.getRemoteFile(url, "test", null, null);
+        assertTrue(Arrays.equals(content, Files.readAllBytes(third.toPath())));
+        assertEquals("\"1\"", ifNoneMatch.get(2));
+    }
+
+
+    public void testGetRemoteHeader() throws Exception {
+        content = "first".getBytes();
+        etag = "\"1\"";
+        HTTPTransport transport = new HTTPTransport();
+
+        assertEquals("fir", new String(transport.getRemoteHeader(url, "test", null, null, 3)));
+        assertEquals("first", new String(transport.getRemoteHeader(url, "test", null, null, 10)));
+        assertEquals(Arrays.asList(null, null), ifNoneMatch);
+
+        // Once downloaded the header comes from the cached copy if the file
+        // hasn't changed
+        transport.getRemoteFile(url, "test", null, null);
+        assertEquals("fir", new String(transport.getRemoteHeader(url, "test", null, null, 3)));
+        assertEquals("\"1\"", ifNoneMatch.get(3));
+
+        content = "second".getBytes();
+        etag = "\"2\"";
+        assertEquals("sec", new String(transport.getRemoteHeader(url, "test", null, null, 3)));
+    }
+
+
+    public void testDownload() throws Exception {
+        // Bigger than the copy buffer
+        content = new byte[200 * 1024 + 7];
+        new Random(1).nextBytes(content);
+        etag = "\"1\"";
+        File target = File.createTempFile("upm", null);
+        try {
+            Files.write(target.toPath(), "something longer than nothing".getBytes());
+            new HTTPTransport().download(url + "test", target.toPath());
+            assertTrue(Arrays.equals(content, Files.readAllBytes(target.toPath())));
+            // Downloads are always unconditional
+            assertEquals(Arrays.asList((String) null), ifNoneMatch);
+        } finally {
+            target.delete();
+        }
+    }
+
+
+    public void testOldCopiesAreDeleted() throws Exception {
+        content = "first".getBytes();
+        etag = "\"1\"";
+        HTTPTransport transport = new HTTPTransport();
+
+        File first = transport.getRemoteFile(url, "test", null, null);
+        content = "second".getBytes();
+        etag = "\"2\"";
+        File second = transport.getRemoteFile(url, "test", null, null);
+        assertFalse(first.exists());
+        assertTrue(second.exists());
+
+        // Uploading forgets the cached copy
+        Transport.forgetRemoteFile(url + "test");
+        assertFalse(second.exists());
+
+        File third = transport.getRemoteFile(url, "test", null, null);
+        Transport.clearCache();
+        assertFalse(third.exists());
+    }
+
+
+    public void testCredentialsArentKeptForTheNextRequest() throws Exception {
+        content = "first".getBytes();
+        etag = "\"1\"";
+        HTTPTransport transport = new HTTPTransport();
+
+        transport.get(url + "test", "user", "pass");
+        transport.get(url + "test", null, null);
+        assertEquals(2, authorization.size());
+        assertNotNull(authorization.get(0));
+        assertNull(authorization.get(1));
+    }
+
+
+    public void testUploadForgetsTheCachedFile() throws Exception {
+        content = "first".getBytes();
+        etag = "\"1\"";
+        HTTPTransport transport = new HTTPTransport();
+        transport.getRemoteFile(url, "test", null, null);
+
+        Transport.forgetRemoteFile(url + "test");
+        transport.getRemoteFile(url, "test", null, null);
+        assertEquals(Arrays.asList(null, null), ifNoneMatch);
+    }
+
+}
@@ -0,0 +1,72 @@
+/*
+ * Universal Password Manager
+ * Copyright (C) 2005-2013 Adrian Smith
+ *
+ * This file is part of Universal Password Manager.
+ *   
+ * Universal Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Universal Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Universal Password Manager; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com._17od.upm.transport;
+
+import junit.framework.TestCase;
+
+import com._17od.upm.util.Preferences;
+
+
+public class TestTransportRegistry extends TestCase {
+
+    private String proxyHost;
+
+
+    public void setUp() throws Exception {
+        Preferences.load();
+        proxyHost = Preferences.get(Preferences.ApplicationOptions.HTTP_PROXY_HOST, "");
+        TransportRegistry.clear();
+    }
+
+
+    public void tearDown() {
+        Preferences.set(Preferences.ApplicationOptions.HTTP_PROXY_HOST, proxyHost);
+        TransportRegistry.clear();
+    }
+
+
+    public void testTransportsAreSharedPerSchemeAndHost() {
+        Transport transport = Transport.getTransportForURL("http://example.com/db/");
+        assertTrue(transport instanceof HTTPTransport);
+        assertSame(transport, Transport.getTransportForURL("HTTP://Example.com/other/"));
+        assertNotSame(transport, Transport.getTransportForURL("https://example.com/db/"));
+        assertNotSame(transport, Transport.getTransportForURL("http://example.com:8080/db/"));
+
+        Transport webdav = Transport.getTransportForURL("webdavs://example.com/db/");
+        assertTrue(webdav instanceof WebdavTransport);
+        assertSame(webdav, Transport.getTransportForURL("webdavs://example.com/other/"));
+
+        assertNull(Transport.getTransportForURL("ftp://example.com/db/"));
+        assertEquals(4, TransportRegistry.size());
+    }
+
+
+    public void testTransportsAreRebuiltWhenTheProxyChanges() {
+        Transport transport = Transport.getTransportForURL("http://example.com/db/");
+        Preferences.set(Preferences.ApplicationOptions.HTTP_PROXY_HOST, proxyHost);
+        assertSame(transport, Transport.getTransportForURL("http://example.com/db/"));
+
+        Preferences.set(Preferences.ApplicationOptions.HTTP_PROXY_HOST, "proxy.example.com");
+        assertNotSame(transport, Transport.getTransportForURL("http://example.com/db/"));
+        assertEquals(1, TransportRegistry.size());
+    }
+
+}
@@ -0,0 +1,119 @@
+/*
+ * Universal Password Manager
+ * Copyright (C) 2005-2013 Adrian Smith
+ *
+ * This file is part of Universal Password Manager.
+ *   
+ * Universal Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Universal Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Universal Password Manager; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com._17od.upm.transport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+
+public class TestWebdavTransport extends TestCase {
+
+    private HttpServer server;
+    private String url;
+    private final List<byte[]> uploads = new ArrayList<>();
+    private final List<Integer> clientPorts = new ArrayList<>();
+
+
+    public void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                ByteArrayOutputStream body = new ByteArrayOutputStream();
+                try (InputStream is = exchange.getRequestBody()) {
+                    byte[] buf = new byte[8192];
+                    int c;
+                    while ((c = is.read(buf)) != -1) {
+                        body.write(buf, 0, c);
+                    }
+                }
+                synchronized (uploads) {
+                    uploads.add(body.toByteArray());
+                    clientPorts.add(exchange.getRemoteAddress().getPort());
+                }
+                exchange.sendResponseHeaders(201, -1);
+                exchange.close();
+            }
+        });
+        server.start();
+        url = "webdav://127.0.0.1:" + server.getAddress().getPort() + "/db/";
+    }
+
+
+    public void tearDown() {
+        server.stop(0);
+    }
+
+
+    public void testPutReusesTheConnection() throws Exception {
+        File file = File.createTempFile("upm", null);
+        try {
+            byte[] content = new byte[300 * 1024];
+            new Random(1).nextBytes(content);
+            Files.write(file.toPath(), content);
+
+            new WebdavTransport().put(url, file, "user", "pass");
+            // A new transport, as DatabaseActions uses for each sync
+            new WebdavTransport().put(url, file, "user", "pass");
+
+            assertEquals(2, uploads.size());
+            assertTrue(Arrays.equals(content, uploads.get(0)));
+            assertTrue(Arrays.equals(content, uploads.get(1)));
+            assertEquals(clientPorts.get(0), clientPorts.get(1));
+        } finally {
+            file.delete();
+        }
+    }
+
+
+    public void testClearClosesTheConnection() throws Exception {
+        File file = File.createTempFile("upm", null);
+        try {
+            Files.write(file.toPath(), new byte[] {1, 2, 3});
+
+            new WebdavTransport().put(url, file, "user", "pass");
+            WebdavTransport.clear();
+            new WebdavTransport().put(url, file, "user", "pass");
+            // A different password needs a new client too
+            new WebdavTransport().put(url, file, "user", "other");
+
+            assertEquals(3, uploads.size());
+            assertFalse(clientPorts.get(0).equals(clientPorts.get(1)));
+            assertFalse(clientPorts.get(1).equals(clientPorts.get(2)));
+        } finally {
+            file.delete();
+        }
+    }
+
+}